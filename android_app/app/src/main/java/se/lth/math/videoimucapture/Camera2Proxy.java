@@ -3,19 +3,21 @@ package se.lth.math.videoimucapture;
 import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.MeteringRectangle;
-import android.hardware.camera2.params.OisSample;
 import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.SessionConfiguration;
 import android.hardware.camera2.params.StreamConfigurationMap;
@@ -23,21 +25,33 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Trace;
 import androidx.annotation.NonNull;
 
 import androidx.preference.PreferenceManager;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 
+import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.Math.abs;
 
 public class Camera2Proxy {
 
     private static final String TAG = "Camera2Proxy";
+    // Upper bound on waiting for a session rebuild, the camera may close meanwhile.
+    private static final long SESSION_TIMEOUT_MS = 2000;
 
     private Activity mActivity;
 
@@ -54,13 +68,48 @@ public class Camera2Proxy {
     private CaptureRequest mPreviewRequest;
     private Handler mBackgroundHandler;
     private HandlerThread mBackgroundThread;
+    // Handles capture results off the camera thread, runs along with it.
+    private CaptureResultProcessor mResultProcessor;
     private Surface mPreviewSurface;
     private SurfaceTexture mPreviewSurfaceTexture = null;
+    // Encoder input surface, set while recording in direct mode. Camera thread only.
+    private Surface mEncoderSurface = null;
+    // Fixed fps range when recording in constrained high speed mode, otherwise null.
+    private Range<Integer> mHighSpeedFpsRange = null;
+
+    // Optional uncompressed frame outputs, full resolution and low resolution luma.
+    private RawFrameWriter mRawFrameWriter = null;
+    private RawFrameWriter mGrayFrameWriter = null;
+    private RawFrameWriter mDepthFrameWriter = null;
+    private StillFrameWriter mStillFrameWriter = null;
+    private KeyframeScheduler mKeyframeScheduler = null;  // camera thread
+    private static final Object STILL_REQUEST_TAG = new Object();
+    private static final byte STILL_JPEG_QUALITY = 95;
+    private List<RawFrameWriter> mRawFrameWriters = new ArrayList<>();
+    // Encoders fed directly by the physical cameras of a logical camera, by physical id.
+    private final Map<String, VideoEncoderCore> mPhysicalEncoders = new HashMap<>();
+    // Written on the camera thread before the streams start, read on the result thread.
+    private volatile Map<String, FocalLengthHelper> mPhysicalFocalLengthHelpers = new HashMap<>();
+
+    // Frame delivery statistics for the current recording, updated on the result processor
+    // thread, failures and lost buffers on the camera thread.
+    private long mStatFrameCount;
+    private long mStatFailedCaptures;
+    private long mStatLostBuffers;
+    private long mStatFirstTimestampNs;
+    private long mStatLastTimestampNs;
+    // Result processor thread.
+    private final FrameIntervalMonitor mFrameIntervalMonitor = new FrameIntervalMonitor();
+    private final FrameTimingAnalyzer mFrameTiming = new FrameTimingAnalyzer();
+    private float[] mOisShifts = new float[0];
+    private final float[] mEffectiveIntrinsic = new float[4];
 
     private RecordingWriter mRecordingWriter = null;
 
     // https://stackoverflow.com/questions/3786825/volatile-boolean-vs-atomicboolean
     private volatile boolean mRecordingMetadata = false;
+    // Capture data goes to the pre-record ring of the writer while not recording.
+    private volatile boolean mPreRollMetadata = false;
     private boolean mSwappedDimensions;
     private int mSensorOrientation;
     private boolean mExposureTriggered = false;
@@ -68,12 +117,37 @@ public class Camera2Proxy {
 
     private FocalLengthHelper mFocalLengthHelper = new FocalLengthHelper();
 
+    private final CameraConfigCache mConfigCache;
+    // The camera was opened from the cache and the full configuration is still to run.
+    private boolean mNeedsValidation = false;
+    private boolean mUsedCachedConfig = false;
+    // Time to first preview frame, from configureCamera().
+    private long mStartupNs;
+    private boolean mFirstFrameLogged = false;  // camera thread
+
     public boolean getSwappedDimensions() {return mSwappedDimensions;}
+    public int getSensorOrientation() {return mSensorOrientation;}
+
+    // Sensor timestamps follow elapsedRealtimeNanos(), otherwise System.nanoTime().
+    public boolean hasRealtimeTimestamps() {
+        Integer source = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        return source != null && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
 
     private CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
         @Override
         public void onOpened(@NonNull CameraDevice camera) {
             Log.d(TAG, "onOpened");
+            if (!camera.getId().equals(mCameraIdStr)) {
+                // Opened from a stale cached configuration.
+                camera.close();
+                try {
+                    mCameraManager.openCamera(mCameraIdStr, mStateCallback, mBackgroundHandler);
+                } catch (CameraAccessException | SecurityException e) {
+                    e.printStackTrace();
+                }
+                return;
+            }
             mCameraDevice = camera;
             initPreviewRequest();
         }
@@ -91,25 +165,353 @@ public class Camera2Proxy {
         }
     };
 
-    public void startRecordingCaptureResult(RecordingWriter recordingWriter) {
+    public void startRecordingCaptureResult(RecordingWriter recordingWriter, String outputDir) {
         mRecordingWriter = recordingWriter;
+        for (RawFrameWriter writer : mRawFrameWriters) {
+            writer.startRecording(outputDir);
+        }
+        if (mBackgroundHandler != null) {
+            mBackgroundHandler.post(() -> setRawFrameTargets(true));
+        }
+        if (mStillFrameWriter != null) {
+            mStillFrameWriter.startRecording(outputDir);
+        }
+        mStatFailedCaptures = mStatLostBuffers = 0;
+        if (mResultProcessor != null) {
+            mResultProcessor.resetStats();
+            // Ahead of the first recorded frame, which is queued after mRecordingMetadata is set.
+            mResultProcessor.post(this::resetFrameStats);
+        } else {
+            resetFrameStats();
+        }
+        if (mBackgroundHandler != null && mKeyframeScheduler != null) {
+            double rotation = getIntegratedRotation();
+            mBackgroundHandler.post(() -> mKeyframeScheduler.start(rotation));
+        }
         mRecordingMetadata = true;
         writeCameraInfo();
     }
 
-    public void stopRecordingCaptureResult() {
-        if (mRecordingMetadata) {
-            mRecordingMetadata = false;
+    public void startPreRollCaptureResult(RecordingWriter recordingWriter) {
+        mRecordingWriter = recordingWriter;
+        mPreRollMetadata = true;
+    }
+
+    public void stopPreRollCaptureResult() {
+        mPreRollMetadata = false;
+    }
+
+    // Result processor thread, or before the camera thread runs.
+    private void resetFrameStats() {
+        mStatFrameCount = 0;
+        mStatFirstTimestampNs = mStatLastTimestampNs = 0;
+        mFrameTiming.reset();
+    }
+
+    /**
+     * Stops writing capture data and writes the capture summary.  Returns right away, the
+     * stop runs on the camera thread so no recorded frame follows it, and the summary is
+     * written on the result processor thread after the frames already queued.  The physical
+     * streams are finished there first.  onStopped, if not null, runs on that thread once
+     * the summary has been queued to the writer.
+     */
+    public void stopRecordingCaptureResult(Runnable onStopped) {
+        Handler handler = mBackgroundHandler;
+        if (handler == null || !handler.post(() -> stopRecordingOnCameraThread(onStopped))) {
+            // Camera released, which already stopped the capture data.
+            if (onStopped != null) {
+                onStopped.run();
+            }
+        }
+    }
+
+    private void stopRecordingOnCameraThread(Runnable onStopped) {
+        CaptureResultProcessor processor = mResultProcessor;
+        if (!mRecordingMetadata) {
+            if (onStopped != null) {
+                // Behind the summary of a stop that is still queued.
+                processor.post(onStopped);
+            }
+            return;
+        }
+        mRecordingMetadata = false;
+        setRawFrameTargets(false);
+        CountDownLatch physicalDetached = new CountDownLatch(1);
+        List<VideoEncoderCore> physicalEncoders = detachPhysicalStreams(physicalDetached);
+        processor.post(() -> {
+            // Their last frame times go to the writer before it is stopped.
+            finishPhysicalStreams(physicalEncoders, physicalDetached);
+            for (RawFrameWriter writer : mRawFrameWriters) {
+                writer.stopRecording();
+            }
+            if (mStillFrameWriter != null) {
+                mStillFrameWriter.stopRecording();
+            }
+            writeCaptureSummary();
+            if (onStopped != null) {
+                onStopped.run();
+            }
+        });
+    }
+
+    // Raw frames are only requested while recording, to spare the ISP and memory bandwidth.
+    // Camera thread.
+    private void setRawFrameTargets(boolean enable) {
+        if (mRawFrameWriters.isEmpty() || mPreviewRequestBuilder == null) {
+            return;
+        }
+        for (RawFrameWriter writer : mRawFrameWriters) {
+            if (enable) {
+                mPreviewRequestBuilder.addTarget(writer.getSurface());
+            } else {
+                mPreviewRequestBuilder.removeTarget(writer.getSurface());
+            }
+        }
+        mPreviewRequest = mPreviewRequestBuilder.build();
+        startPreview();
+    }
+
+    private void setupRawFrameOutputs() {
+        if (mHighSpeedFpsRange != null || !mRawFrameWriters.isEmpty() || mStillFrameWriter != null) {
+            // High speed sessions are limited to preview and video outputs.
+            return;
+        }
+        StreamConfigurationMap map = mCameraCharacteristics.get(CameraCharacteristics
+                .SCALER_STREAM_CONFIGURATION_MAP);
+        Size videoSize = mCameraSettingsManager.getVideoSize();
+
+        RawFrameWriter.Format format = mCameraSettingsManager.getRawFrameFormat();
+        if (format != null) {
+            int imageFormat = getRawImageFormat(map, format);
+            Size rawSize = CameraUtils.chooseOptimalSize(map.getOutputSizes(imageFormat),
+                    videoSize.getWidth(), videoSize.getHeight(), videoSize);
+            Log.d(TAG, "Raw frames " + format + " " + rawSize + " image format " + imageFormat);
+            mRawFrameWriter = new RawFrameWriter("raw_frames", format, rawSize, imageFormat);
+            mRawFrameWriters.add(mRawFrameWriter);
+        }
+
+        Size graySize = mCameraSettingsManager.getLowResGraySize();
+        if (graySize != null) {
+            int imageFormat = getRawImageFormat(map, RawFrameWriter.Format.LUMA);
+            if (!Arrays.asList(map.getOutputSizes(imageFormat)).contains(graySize)) {
+                // Size was picked among YUV sizes.
+                imageFormat = ImageFormat.YUV_420_888;
+            }
+            Log.d(TAG, "Gray frames " + graySize + " image format " + imageFormat);
+            mGrayFrameWriter = new RawFrameWriter("gray_frames", RawFrameWriter.Format.LUMA,
+                    graySize, imageFormat);
+            mRawFrameWriters.add(mGrayFrameWriter);
+        }
+
+        RawFrameWriter.Format depthFormat = mCameraSettingsManager.getDepthFrameFormat();
+        if (depthFormat != null) {
+            Size depthSize = mCameraSettingsManager.getDepthSize();
+            Log.d(TAG, "Depth frames " + depthFormat + " " + depthSize);
+            mDepthFrameWriter = new RawFrameWriter("depth_frames", depthFormat, depthSize,
+                    ImageFormat.DEPTH16);
+            mRawFrameWriters.add(mDepthFrameWriter);
+        }
+
+        KeyframeScheduler scheduler = new KeyframeScheduler(
+                mCameraSettingsManager.getStillIntervalSeconds() * 1000000000L,
+                Math.toRadians(mCameraSettingsManager.getStillRotationDegrees()));
+        if (scheduler.isEnabled()) {
+            Size stillSize = Collections.max(Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
+                    new CameraUtils.CompareSizesByArea());
+            Log.d(TAG, "Still keyframes " + stillSize);
+            mKeyframeScheduler = scheduler;
+            mStillFrameWriter = new StillFrameWriter(stillSize, timestampNs -> {
+                Handler handler = mBackgroundHandler;
+                if (handler != null) {
+                    handler.post(() -> mKeyframeScheduler.onCompleted());
+                }
+            });
+        }
+    }
+
+    private static int getRawImageFormat(StreamConfigurationMap map, RawFrameWriter.Format format) {
+        if (format == RawFrameWriter.Format.LUMA && Build.VERSION.SDK_INT >= 29
+                && map.isOutputSupportedFor(ImageFormat.Y8)) {
+            return ImageFormat.Y8;
+        }
+        return ImageFormat.YUV_420_888;
+    }
+
+    private void releaseRawFrameOutputs() {
+        for (RawFrameWriter writer : mRawFrameWriters) {
+            writer.release();
+        }
+        mRawFrameWriters.clear();
+        mRawFrameWriter = null;
+        mGrayFrameWriter = null;
+        mDepthFrameWriter = null;
+        if (mStillFrameWriter != null) {
+            mStillFrameWriter.release();
+            mStillFrameWriter = null;
+        }
+    }
+
+    /**
+     * Adds the encoder input surface as a second output, so frames go from the camera to the
+     * encoder without passing through GL. The capture session is recreated, which briefly
+     * interrupts the preview.
+     */
+    public void attachEncoderSurface(Surface encoderSurface) {
+        if (mBackgroundHandler == null) {
+            return;
+        }
+        mBackgroundHandler.post(() -> {
+            // Recording may have been stopped before the encoder was ready.
+            if (!(mRecordingMetadata || mPreRollMetadata) || mCameraDevice == null) {
+                Log.w(TAG, "attachEncoderSurface: not recording, ignoring");
+                return;
+            }
+            Log.d(TAG, "attachEncoderSurface");
+            mEncoderSurface = encoderSurface;
+            mPreviewRequestBuilder.addTarget(mEncoderSurface);
+            createCaptureSession();
+        });
+    }
+
+    /**
+     * Removes the encoder surface again, call before the encoder is released.  Blocks until
+     * the camera no longer writes to the surface, that is until the session without it has
+     * been configured, so do not call on the camera thread.
+     */
+    public void detachEncoderSurface() {
+        CountDownLatch detached = new CountDownLatch(1);
+        Handler handler = mBackgroundHandler;
+        if (handler == null || !handler.post(() -> {
+            if (mEncoderSurface == null || mCameraDevice == null) {
+                detached.countDown();
+                return;
+            }
+            Log.d(TAG, "detachEncoderSurface");
+            mPreviewRequestBuilder.removeTarget(mEncoderSurface);
+            mEncoderSurface = null;
+            createCaptureSession(detached::countDown);
+        })) {
+            // Camera thread gone, the session went with it.
+            return;
+        }
+        awaitSession(detached);
+    }
+
+    private static void awaitSession(CountDownLatch latch) {
+        try {
+            if (!latch.await(SESSION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for the capture session");
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting for the capture session");
+        }
+    }
+
+    /**
+     * Records each physical camera in configs to its own file next to the main stream.  The
+     * encoders get the frames directly from the camera and the capture session is recreated,
+     * which briefly interrupts the preview.  Call after startRecordingCaptureResult(), the
+     * streams are finished by stopRecordingCaptureResult().
+     */
+    public void startPhysicalStreams(List<TextureMovieEncoder.EncoderConfig> configs) {
+        if (mBackgroundHandler == null || configs.isEmpty()) {
+            return;
+        }
+        mBackgroundHandler.post(() -> {
+            if (!mRecordingMetadata || mCameraDevice == null || !mPhysicalEncoders.isEmpty()) {
+                Log.w(TAG, "startPhysicalStreams: not recording, ignoring");
+                return;
+            }
+            Map<String, FocalLengthHelper> helpers = new HashMap<>();
+            for (TextureMovieEncoder.EncoderConfig config : configs) {
+                String id = config.mPhysicalCameraId;
+                try {
+                    CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(id);
+                    FocalLengthHelper helper = new FocalLengthHelper();
+                    helper.setLensParams(characteristics);
+                    helper.setImageSize(mCameraSettingsManager.getVideoSize());
+                    VideoEncoderCore encoder = new VideoEncoderCore(config);
+                    helpers.put(id, helper);
+                    mPhysicalEncoders.put(id, encoder);
+                    mPreviewRequestBuilder.addTarget(encoder.getInputSurface());
+                    mRecordingWriter.queueData(buildCameraInfo(characteristics, helper)
+                            .setPhysicalCameraId(id).build());
+                    Log.d(TAG, "Physical stream " + config);
+                } catch (CameraAccessException | IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            mPhysicalFocalLengthHelpers = helpers;
+            createCaptureSession();
+        });
+    }
+
+    /**
+     * Removes the physical streams from the session, detached counts down once the camera no
+     * longer writes to them.  Camera thread.
+     */
+    private List<VideoEncoderCore> detachPhysicalStreams(CountDownLatch detached) {
+        List<VideoEncoderCore> encoders = new ArrayList<>(mPhysicalEncoders.values());
+        mPhysicalEncoders.clear();
+        if (encoders.isEmpty() || mCameraDevice == null) {
+            detached.countDown();
+            return encoders;
+        }
+        Log.d(TAG, "detachPhysicalStreams");
+        for (VideoEncoderCore encoder : encoders) {
+            mPreviewRequestBuilder.removeTarget(encoder.getInputSurface());
         }
+        createCaptureSession(detached::countDown);
+        return encoders;
+    }
+
+    // Result processor thread, after the metadata of the physical streams has been written.
+    private void finishPhysicalStreams(List<VideoEncoderCore> encoders, CountDownLatch detached) {
+        if (encoders.isEmpty()) {
+            return;
+        }
+        awaitSession(detached);
+        for (VideoEncoderCore encoder : encoders) {
+            encoder.drainEncoder(true);
+            encoder.release();
+        }
+        mPhysicalFocalLengthHelpers = new HashMap<>();
     }
 
     public Camera2Proxy(Activity activity, CameraSettingsManager cameraSettingsManager) {
         mActivity = activity;
         mCameraManager = (CameraManager) mActivity.getSystemService(Context.CAMERA_SERVICE);
         mCameraSettingsManager = cameraSettingsManager;
+        mConfigCache = new CameraConfigCache(activity);
     }
 
+    /**
+     * Picks the camera and preview size.  With a cached configuration from an earlier launch
+     * this returns right away, the full configuration then runs on the camera thread in
+     * openCamera(), ahead of onOpened().
+     */
     public Size configureCamera() {
+        mStartupNs = System.nanoTime();
+        mFirstFrameLogged = false;
+        CameraConfigCache.Snapshot snapshot = mConfigCache.load();
+        if (snapshot != null) {
+            Log.d(TAG, "Using cached configuration, " + snapshot);
+            mCameraIdStr = snapshot.mCameraId;
+            mPreviewSize = snapshot.mPreviewSize;
+            mSensorOrientation = snapshot.mSensorOrientation;
+            mSwappedDimensions = (mSensorOrientation == 90 || mSensorOrientation == 270);
+            mUsedCachedConfig = true;
+            mNeedsValidation = true;
+            return mPreviewSize;
+        }
+        mUsedCachedConfig = false;
+        loadConfiguration();
+        return mPreviewSize;
+    }
+
+    // Queries the camera and settings, and saves the result for the next launch.
+    private void loadConfiguration() {
+        long startNs = System.nanoTime();
         try {
             mCameraIdStr = CameraUtils.getRearCameraId(mCameraManager);
             mCameraCharacteristics = mCameraManager.getCameraCharacteristics(mCameraIdStr);
@@ -129,23 +531,52 @@ public class Camera2Proxy {
 
             // Find out if we need to swap dimension to get the preview size relative to sensor coordinate.
             mSensorOrientation = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+
+            int[] capabilities = mCameraCharacteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+            if (capabilities != null && Arrays.stream(capabilities).anyMatch(
+                    c -> c == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_DEPTH_OUTPUT)) {
+                Log.d(TAG, "Depth output supported, largest DEPTH16 size " +
+                        mCameraSettingsManager.getDepthSize());
+            }
             mSwappedDimensions = (mSensorOrientation == 90 || mSensorOrientation == 270);
 
 
             StreamConfigurationMap map = mCameraCharacteristics.get(CameraCharacteristics
                     .SCALER_STREAM_CONFIGURATION_MAP);
 
-            mPreviewSize = CameraUtils.chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                    videoSize.getWidth(), videoSize.getHeight(), videoSize);
+            mHighSpeedFpsRange = mCameraSettingsManager.getHighSpeedFpsRange();
+            if (mHighSpeedFpsRange != null) {
+                // All outputs of a high speed session must have the same, high speed, size.
+                mPreviewSize = videoSize;
+            } else {
+                mPreviewSize = CameraUtils.chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
+                        videoSize.getWidth(), videoSize.getHeight(), videoSize);
+            }
+            Log.d(TAG, "High speed fps range " + mHighSpeedFpsRange);
             Log.d(TAG, "Video size " + videoSize.toString() +
                     " preview size " + mPreviewSize.toString());
 
             logAnalyticsConfig();
+            mConfigCache.save(new CameraConfigCache.Snapshot(mCameraIdStr, mPreviewSize, mSensorOrientation));
 
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
-        return mPreviewSize;
+        Log.d(TAG, String.format(Locale.US, "Camera configuration took %.1f ms",
+                (System.nanoTime() - startNs) / 1e6));
+    }
+
+    // Camera thread, before onOpened() for the cached camera id.
+    private void validateCachedConfiguration(String cachedCameraId, Size cachedPreviewSize) {
+        loadConfiguration();
+        boolean previewSizeChanged = !mPreviewSize.equals(cachedPreviewSize);
+        if (!mCameraIdStr.equals(cachedCameraId) || previewSizeChanged) {
+            Log.w(TAG, "Cached configuration was stale: camera " + cachedCameraId + " -> " +
+                    mCameraIdStr + ", preview " + cachedPreviewSize + " -> " + mPreviewSize);
+        }
+        Size previewSize = mPreviewSize;
+        mActivity.runOnUiThread(() ->
+                ((CameraCaptureActivity) mActivity).onCameraConfigured(previewSize, previewSizeChanged));
     }
 
     public void openCamera() {
@@ -155,8 +586,15 @@ public class Camera2Proxy {
             Log.v(TAG, "openCamera - needs configuring");
             configureCamera();
         }
+        String cameraId = mCameraIdStr;
+        if (mNeedsValidation) {
+            // Runs while the camera device opens, onOpened() is queued behind it.
+            mNeedsValidation = false;
+            Size previewSize = mPreviewSize;
+            mBackgroundHandler.post(() -> validateCachedConfiguration(cameraId, previewSize));
+        }
         try {
-            mCameraManager.openCamera(mCameraIdStr, mStateCallback, mBackgroundHandler);
+            mCameraManager.openCamera(cameraId, mStateCallback, mBackgroundHandler);
         } catch (CameraAccessException | SecurityException e) {
             e.printStackTrace();
         }
@@ -164,7 +602,8 @@ public class Camera2Proxy {
 
     public void releaseCamera() {
         Log.v(TAG, "releaseCamera");
-        stopRecordingCaptureResult();
+        stopRecordingCaptureResult(null);
+        stopPreRollCaptureResult();
         if (null != mCaptureSession) {
             mCaptureSession.close();
             mCaptureSession = null;
@@ -173,7 +612,9 @@ public class Camera2Proxy {
             mCameraDevice.close();
             mCameraDevice = null;
         }
+        releaseRawFrameOutputs();
         mPreviewSurfaceTexture = null;
+        mEncoderSurface = null;
         mCameraIdStr = "";
         stopBackgroundThread();
     }
@@ -200,6 +641,40 @@ public class Camera2Proxy {
                 mPreviewSurface = new Surface(mPreviewSurfaceTexture);
             }
             mPreviewRequestBuilder.addTarget(mPreviewSurface);
+            setupRawFrameOutputs();
+            createCaptureSession();
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void createCaptureSession() {
+        createCaptureSession(null);
+    }
+
+    /**
+     * Recreates the session with the current outputs.  onReady, if not null, runs on the
+     * camera thread once the outputs of the previous session are no longer written to,
+     * also if the new session fails.
+     */
+    private void createCaptureSession(Runnable onReady) {
+        try {
+            List<Surface> outputSurfaces = new ArrayList<>();
+            outputSurfaces.add(mPreviewSurface);
+            if (mEncoderSurface != null) {
+                outputSurfaces.add(mEncoderSurface);
+            }
+            for (RawFrameWriter writer : mRawFrameWriters) {
+                outputSurfaces.add(writer.getSurface());
+            }
+            if (mStillFrameWriter != null) {
+                outputSurfaces.add(mStillFrameWriter.getSurface());
+            }
+            Map<Surface, String> physicalSurfaces = new HashMap<>();
+            for (Map.Entry<String, VideoEncoderCore> entry : mPhysicalEncoders.entrySet()) {
+                outputSurfaces.add(entry.getValue().getInputSurface());
+                physicalSurfaces.put(entry.getValue().getInputSurface(), entry.getKey());
+            }
             CameraCaptureSession.StateCallback cb =
                     new CameraCaptureSession.StateCallback() {
 
@@ -208,30 +683,55 @@ public class Camera2Proxy {
                             mCaptureSession = session;
                             mPreviewRequest = mPreviewRequestBuilder.build();
                             startPreview();
+                            if (onReady != null) {
+                                onReady.run();
+                            }
                         }
 
                         @Override
                         public void onConfigureFailed(@NonNull CameraCaptureSession session) {
                             Log.e(TAG, "ConfigureFailed. session: mCaptureSession");
+                            if (onReady != null) {
+                                onReady.run();
+                            }
                         }
                     };
+            boolean highSpeed = mHighSpeedFpsRange != null;
             if (Build.VERSION.SDK_INT >= 28) {
-                OutputConfiguration outputConfiguration = new OutputConfiguration(mPreviewSurface);
-                mCameraSettingsManager.updateOutputConfiguration(outputConfiguration);
+                List<OutputConfiguration> outputConfigurations = new ArrayList<>();
+                for (Surface surface : outputSurfaces) {
+                    OutputConfiguration outputConfiguration = new OutputConfiguration(surface);
+                    if (physicalSurfaces.containsKey(surface)) {
+                        outputConfiguration.setPhysicalCameraId(physicalSurfaces.get(surface));
+                    } else if (!highSpeed) {
+                        mCameraSettingsManager.updateOutputConfiguration(outputConfiguration);
+                    }
+                    outputConfigurations.add(outputConfiguration);
+                }
                 mCameraDevice.createCaptureSession(new SessionConfiguration(
-                        SessionConfiguration.SESSION_REGULAR,
-                        Collections.singletonList(outputConfiguration),
+                        highSpeed ? SessionConfiguration.SESSION_HIGH_SPEED :
+                                SessionConfiguration.SESSION_REGULAR,
+                        outputConfigurations,
                         r -> mBackgroundHandler.post(r),
                         cb));
+            } else if (highSpeed) {
+                mCameraDevice.createConstrainedHighSpeedCaptureSession(
+                        outputSurfaces,
+                        cb,
+                        mBackgroundHandler);
             } else {
                 mCameraDevice.createCaptureSession(
-                        Collections.singletonList(mPreviewSurface),
+                        outputSurfaces,
                         cb,
                         mBackgroundHandler);
             }
 
-        } catch (CameraAccessException e) {
+        } catch (CameraAccessException | IllegalStateException e) {
+            // IllegalStateException if the camera was closed meanwhile, no outputs are written.
             e.printStackTrace();
+            if (onReady != null) {
+                onReady.run();
+            }
         }
     }
 
@@ -242,8 +742,7 @@ public class Camera2Proxy {
             return;
         }
         try {
-            mCaptureSession.setRepeatingRequest(
-                    mPreviewRequest, mSessionCaptureCallback, mBackgroundHandler);
+            setRepeatingRequest(mPreviewRequest);
         } catch (CameraAccessException | IllegalStateException e) {
             // IllegalStateException may happen if shutting down the camera session prior to
             // full initialization.
@@ -271,21 +770,30 @@ public class Camera2Proxy {
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                TotalCaptureResult result) {
-
+                    long callbackStartNs = System.nanoTime();
+                    Trace.beginSection("onCaptureCompleted");
+                    if (!mFirstFrameLogged) {
+                        mFirstFrameLogged = true;
+                        logFirstFrame(callbackStartNs);
+                    }
+                    Integer afStateValue = result.get(CaptureResult.CONTROL_AF_STATE);
+                    Integer aeStateValue = result.get(CaptureResult.CONTROL_AE_STATE);
+                    int afState = afStateValue != null ? afStateValue : CaptureResult.CONTROL_AF_STATE_INACTIVE;
+                    int aeState = aeStateValue != null ? aeStateValue : CaptureResult.CONTROL_AE_STATE_INACTIVE;
 
                     if (mCameraSettingsManager.focusOnTouch()) {
-                        mFocusTriggered |= (result.get(CaptureResult.CONTROL_AF_STATE) == CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN);
+                        mFocusTriggered |= (afState == CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN);
                     }
                     if (mCameraSettingsManager.exposureOnTouch()) {
-                        mExposureTriggered |= (result.get(CaptureResult.CONTROL_AE_STATE) == CaptureResult.CONTROL_AE_STATE_SEARCHING);
+                        mExposureTriggered |= (aeState == CaptureResult.CONTROL_AE_STATE_SEARCHING);
                     }
 
                     if (mFocusTriggered) {
-                        //Log.d(TAG, "Focus state:" + result.get(CaptureResult.CONTROL_AF_STATE));
+                        //Log.d(TAG, "Focus state:" + afState);
                         // We are handling auto-focus, cancel if focused to go back inactive state.
                         // Seems necessary on some phones, even though the documentation says otherwise.
-                        if ((result.get(CaptureResult.CONTROL_AF_STATE) == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED) ||
-                                (result.get(CaptureResult.CONTROL_AF_STATE) == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED)) {
+                        if ((afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED) ||
+                                (afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED)) {
 
                             mFocusTriggered = false;
 
@@ -293,8 +801,7 @@ public class Camera2Proxy {
                             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
                                     CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
                             try {
-                                mCaptureSession.capture(
-                                        mPreviewRequestBuilder.build(), mSessionCaptureCallback, mBackgroundHandler);
+                                capture(mPreviewRequestBuilder.build());
                             } catch (CameraAccessException e) {
                                 e.printStackTrace();
                             }
@@ -309,14 +816,13 @@ public class Camera2Proxy {
                     if (mCameraSettingsManager.exposureOnTouch() && !mFocusTriggered && mExposureTriggered) {
                         // We are handling auto-exposure, lock if converged.
                         // Wait for auto-focus to finish first
-                        Log.d(TAG, "Exposure state:" + result.get(CaptureResult.CONTROL_AE_STATE));
-                        if (result.get(CaptureResult.CONTROL_AE_STATE) != CaptureResult.CONTROL_AE_STATE_SEARCHING) {
+                        Log.d(TAG, "Exposure state:" + aeState);
+                        if (aeState != CaptureResult.CONTROL_AE_STATE_SEARCHING) {
                             mExposureTriggered = false;
                             //Lock AE
                             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
                             try {
-                                mCaptureSession.setRepeatingRequest(
-                                        mPreviewRequestBuilder.build(), mSessionCaptureCallback, mBackgroundHandler);
+                                setRepeatingRequest(mPreviewRequestBuilder.build());
                             } catch (CameraAccessException e) {
                                 e.printStackTrace();
                             }
@@ -324,23 +830,49 @@ public class Camera2Proxy {
                         }
                     }
 
-                    Long exposureTimeNs = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
-
-                    Float fl = result.get(CaptureResult.LENS_FOCAL_LENGTH);
-
-                    Float fd = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+                    // Everything else is done by the result processor.
+                    if (mResultProcessor != null) {
+                        CaptureResultProcessor.Frame frame = mResultProcessor.obtain();
+                        frame.set(result, afState);
+                        frame.mRecord = mRecordingMetadata;
+                        frame.mPreRoll = mPreRollMetadata;
+                        frame.mPhysicalCameraId = null;
+                        if (mRecordingMetadata) {
+                            ((CameraCaptureActivity) mActivity).getsLatencyTracer()
+                                    .mark(LatencyTracer.Point.FRAME_CALLBACK, frame.mTimestampNs);
+                        }
+                        mResultProcessor.queue(frame);
+                        if (mRecordingMetadata && Build.VERSION.SDK_INT >= 28) {
+                            queuePhysicalResults(result, afState);
+                        }
+                        StillFrameWriter stillFrameWriter = mStillFrameWriter;
+                        if (mRecordingMetadata && stillFrameWriter != null) {
+                            requestStillIfDue(stillFrameWriter);
+                        }
+                        mResultProcessor.addCallbackTime(System.nanoTime() - callbackStartNs);
+                    }
+                    Trace.endSection();
+                }
 
-                    Rect rect = result.get(CaptureResult.SCALER_CROP_REGION);
-                    mFocalLengthHelper.setmFocalLength(fl);
-                    mFocalLengthHelper.setmFocusDistance(fd);
-                    mFocalLengthHelper.setmCropRegion(rect);
-                    Float focal_length_pix = mFocalLengthHelper.getFocalLengthPixel();
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    if (mRecordingMetadata) {
+                        mStatFailedCaptures++;
+                    }
+                    if (request.getTag() == STILL_REQUEST_TAG && mKeyframeScheduler != null) {
+                        mKeyframeScheduler.onCompleted();
+                    }
+                }
 
+                @Override
+                public void onCaptureBufferLost(@NonNull CameraCaptureSession session,
+                                                @NonNull CaptureRequest request,
+                                                @NonNull Surface target, long frameNumber) {
                     if (mRecordingMetadata) {
-                        writeCaptureData(result, focal_length_pix);
+                        mStatLostBuffers++;
                     }
-                    ((CameraCaptureActivity) mActivity).getmCameraCaptureFragment()
-                            .updateCaptureResultPanel(focal_length_pix, exposureTimeNs);
                 }
 
                 @Override
@@ -350,6 +882,216 @@ public class Camera2Proxy {
             };
 
 
+    private void logFirstFrame(long nowNs) {
+        long firstFrameMs = (nowNs - mStartupNs) / 1000000;
+        Log.i(TAG, "Time to first preview frame " + firstFrameMs + " ms, " +
+                (mUsedCachedConfig ? "cached" : "full") + " configuration");
+    }
+
+    private double getIntegratedRotation() {
+        IMUManager imuManager = ((CameraCaptureActivity) mActivity).getmImuManager();
+        return imuManager != null ? imuManager.getIntegratedRotation() : 0;
+    }
+
+    /**
+     * Issues a single still capture when the scheduler says so.  The request is the
+     * repeating request plus the JPEG output, with the video snapshot intent, so the video
+     * and preview get this frame as usual and the repeating request keeps running.
+     */
+    private void requestStillIfDue(StillFrameWriter stillFrameWriter) {
+        long nowNs = System.nanoTime();
+        double rotation = getIntegratedRotation();
+        if (!mKeyframeScheduler.isDue(nowNs, rotation)) {
+            return;
+        }
+        Surface stillSurface = stillFrameWriter.getSurface();
+        mPreviewRequestBuilder.addTarget(stillSurface);
+        mPreviewRequestBuilder.set(CaptureRequest.JPEG_QUALITY, STILL_JPEG_QUALITY);
+        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_CAPTURE_INTENT,
+                CaptureRequest.CONTROL_CAPTURE_INTENT_VIDEO_SNAPSHOT);
+        mPreviewRequestBuilder.setTag(STILL_REQUEST_TAG);
+        CaptureRequest request = mPreviewRequestBuilder.build();
+        mPreviewRequestBuilder.removeTarget(stillSurface);
+        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_CAPTURE_INTENT,
+                CaptureRequest.CONTROL_CAPTURE_INTENT_VIDEO_RECORD);
+        mPreviewRequestBuilder.setTag(null);
+        try {
+            capture(request);
+            mKeyframeScheduler.onRequested(nowNs, rotation);
+        } catch (CameraAccessException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Metadata of the recorded physical streams, in the same result.
+    private void queuePhysicalResults(TotalCaptureResult result, int afState) {
+        Map<String, FocalLengthHelper> helpers = mPhysicalFocalLengthHelpers;
+        if (helpers.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, CaptureResult> entry : result.getPhysicalCameraResults().entrySet()) {
+            if (!helpers.containsKey(entry.getKey())) {
+                continue;
+            }
+            CaptureResultProcessor.Frame frame = mResultProcessor.obtain();
+            frame.set(entry.getValue(), afState);
+            frame.mRecord = true;
+            frame.mPreRoll = false;
+            frame.mPhysicalCameraId = entry.getKey();
+            mResultProcessor.queue(frame);
+        }
+    }
+
+    // High speed sessions only accept request lists created by the session itself.
+    private void setRepeatingRequest(CaptureRequest request) throws CameraAccessException {
+        if (mCaptureSession instanceof CameraConstrainedHighSpeedCaptureSession) {
+            CameraConstrainedHighSpeedCaptureSession session =
+                    (CameraConstrainedHighSpeedCaptureSession) mCaptureSession;
+            session.setRepeatingBurst(session.createHighSpeedRequestList(request),
+                    mSessionCaptureCallback, mBackgroundHandler);
+        } else {
+            mCaptureSession.setRepeatingRequest(request, mSessionCaptureCallback, mBackgroundHandler);
+        }
+    }
+
+    private void capture(CaptureRequest request) throws CameraAccessException {
+        if (mCaptureSession instanceof CameraConstrainedHighSpeedCaptureSession) {
+            CameraConstrainedHighSpeedCaptureSession session =
+                    (CameraConstrainedHighSpeedCaptureSession) mCaptureSession;
+            session.captureBurst(session.createHighSpeedRequestList(request),
+                    mSessionCaptureCallback, mBackgroundHandler);
+        } else {
+            mCaptureSession.capture(request, mSessionCaptureCallback, mBackgroundHandler);
+        }
+    }
+
+    // Capture result processor thread.
+    private void processCaptureFrame(CaptureResultProcessor.Frame frame) {
+        if (frame.mPhysicalCameraId != null) {
+            FocalLengthHelper helper = mPhysicalFocalLengthHelpers.get(frame.mPhysicalCameraId);
+            if (helper != null) {
+                writeCaptureData(frame, updateFocalLength(helper, frame), helper);
+            }
+            return;
+        }
+        Float focal_length_pix = updateFocalLength(mFocalLengthHelper, frame);
+
+        long timestampNs = frame.mTimestampNs;
+        mFrameIntervalMonitor.add(timestampNs);
+        if (frame.mRecord) {
+            writeCaptureData(frame, focal_length_pix, mFocalLengthHelper);
+            updateCaptureStats(frame, timestampNs);
+        } else if (frame.mPreRoll) {
+            writeCaptureData(frame, focal_length_pix, mFocalLengthHelper);
+        }
+        // Plain stores, the panel renders them at its own rate.
+        CaptureHud hud = ((CameraCaptureActivity) mActivity).getsCaptureHud();
+        hud.setCaptureResult(focal_length_pix != null ? focal_length_pix : Float.NaN,
+                frame.mExposureTimeNs);
+        hud.setCaptureStats(frame.mRecord ? getCaptureFps() : Float.NaN, mFrameTiming.getDroppedFrames(),
+                mResultProcessor.getQueueDepth());
+        if (frame.mRecord) {
+            hud.setFrameTiming((float) mFrameTiming.getFocusUnlockedFraction(),
+                    (float) (mFrameTiming.getMaxIntervalNs() / 1e6));
+        }
+        hud.setFrameInterval((float) (mFrameIntervalMonitor.getMeanNs() / 1e6),
+                (float) (mFrameIntervalMonitor.getStdDevNs() / 1e6));
+    }
+
+    private static Float updateFocalLength(FocalLengthHelper helper, CaptureResultProcessor.Frame frame) {
+        helper.setmFocalLength(frame.mHasFocalLength ? frame.mFocalLengthMm : null);
+        helper.setmFocusDistance(frame.mHasFocusDistance ? frame.mFocusDistanceDiopters : null);
+        if (frame.mHasCropRegion) {
+            helper.setmCropRegion(frame.mCropRegion);
+        }
+        return helper.getFocalLengthPixel();
+    }
+
+    private void updateCaptureStats(CaptureResultProcessor.Frame frame, long timestampNs) {
+        if (mStatFrameCount == 0) {
+            mStatFirstTimestampNs = timestampNs;
+        }
+        mFrameTiming.add(timestampNs, frame.mFrameDurationNs, isFocusLocked(frame.mAfState));
+        mStatLastTimestampNs = timestampNs;
+        mStatFrameCount++;
+    }
+
+    private float getCaptureFps() {
+        if (mStatFrameCount < 2) {
+            return 0.f;
+        }
+        return (float) ((mStatFrameCount - 1) * 1e9 / (mStatLastTimestampNs - mStatFirstTimestampNs));
+    }
+
+    private static boolean isFocusLocked(int afState) {
+        return afState != CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN
+                && afState != CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN;
+    }
+
+    private RecordingProtos.FrameTimingSummary buildFrameTimingSummary() {
+        RecordingProtos.FrameTimingSummary.Builder builder = RecordingProtos.FrameTimingSummary.newBuilder()
+                .setNominalFrameDurationNs(mFrameTiming.getNominalFrameDurationNs())
+                .setIntervalCount(mFrameTiming.getIntervalCount())
+                .setIntervalMinNs(mFrameTiming.getMinIntervalNs())
+                .setIntervalMaxNs(mFrameTiming.getMaxIntervalNs())
+                .setGapCount(mFrameTiming.getGapCount())
+                .setDroppedFrames(mFrameTiming.getDroppedFrames())
+                .setFocusUnlockedFrames(mFrameTiming.getFocusUnlockedFrames())
+                .setHistogramBinWidthNs(FrameTimingAnalyzer.BIN_WIDTH_NS);
+        if (mFrameTiming.getIntervalCount() > 0) {
+            builder.setIntervalMeanNs(mFrameTiming.getMeanIntervalNs())
+                    .setIntervalStdNs(mFrameTiming.getStdDevIntervalNs());
+        }
+        if (mFrameTiming.getFrameCount() > 0) {
+            builder.setFocusUnlockedFraction((float) mFrameTiming.getFocusUnlockedFraction());
+        }
+        // Trailing empty bins are left out.
+        int bins = FrameTimingAnalyzer.BIN_COUNT;
+        while (bins > 0 && mFrameTiming.getHistogramBin(bins - 1) == 0) {
+            bins--;
+        }
+        for (int i = 0; i < bins; i++) {
+            builder.addIntervalHistogram(mFrameTiming.getHistogramBin(i));
+        }
+        return builder.build();
+    }
+
+    private void writeCaptureSummary() {
+        RecordingProtos.CaptureSummary summary = RecordingProtos.CaptureSummary.newBuilder()
+                .setTargetFps(mHighSpeedFpsRange != null ? mHighSpeedFpsRange.getUpper() : 0)
+                .setAchievedFps(getCaptureFps())
+                .setFrameCount(mStatFrameCount)
+                .setDroppedFrames(mFrameTiming.getDroppedFrames())
+                .setFailedCaptures(mStatFailedCaptures)
+                .setLostBuffers(mStatLostBuffers)
+                .setHighSpeed(mHighSpeedFpsRange != null)
+                .setRawFramesWritten(mRawFrameWriter != null ? mRawFrameWriter.getWrittenFrames() : 0)
+                .setRawFramesDropped(mRawFrameWriter != null ? mRawFrameWriter.getDroppedFrames() : 0)
+                .setGrayFramesWritten(mGrayFrameWriter != null ? mGrayFrameWriter.getWrittenFrames() : 0)
+                .setGrayFramesDropped(mGrayFrameWriter != null ? mGrayFrameWriter.getDroppedFrames() : 0)
+                .setDepthFramesWritten(mDepthFrameWriter != null ? mDepthFrameWriter.getWrittenFrames() : 0)
+                .setDepthFramesDropped(mDepthFrameWriter != null ? mDepthFrameWriter.getDroppedFrames() : 0)
+                .setStillsWritten(mStillFrameWriter != null ? mStillFrameWriter.getWrittenStills() : 0)
+                .setStillsDropped(mStillFrameWriter != null ? mStillFrameWriter.getDroppedStills() : 0)
+                .setCallbackMeanNs(mResultProcessor != null ? mResultProcessor.getMeanCallbackNs() : 0)
+                .setCallbackMaxNs(mResultProcessor != null ? mResultProcessor.getMaxCallbackNs() : 0)
+                .setResultProcessMaxNs(mResultProcessor != null ? mResultProcessor.getMaxProcessNs() : 0)
+                .setResultQueueMax(mResultProcessor != null ? mResultProcessor.getMaxQueueDepth() : 0)
+                .setDroppedResults(mResultProcessor != null ? mResultProcessor.getDroppedResults() : 0)
+                .setFrameTiming(buildFrameTimingSummary())
+                .build();
+        Log.i(TAG, "Capture summary: " + summary.getAchievedFps() + " fps, " +
+                summary.getFrameCount() + " frames, " + summary.getDroppedFrames() + " dropped, " +
+                summary.getFailedCaptures() + " failed, " + summary.getLostBuffers() + " lost buffers");
+        Log.i(TAG, "Frame timing: " + summary.getFrameTiming().getGapCount() + " gaps, max interval " +
+                summary.getFrameTiming().getIntervalMaxNs() + " ns, focus unlocked " +
+                summary.getFrameTiming().getFocusUnlockedFrames() + " frames");
+        if (mResultProcessor != null) {
+            mResultProcessor.logStats();
+        }
+        mRecordingWriter.queueData(summary);
+    }
+
     void changeManualFocusPoint(float eventX, float eventY, int viewWidth, int viewHeight) {
         if (!mCameraSettingsManager.focusOnTouch() && !mCameraSettingsManager.exposureOnTouch()) {
             return;
@@ -383,9 +1125,7 @@ public class Camera2Proxy {
         }
         // Update running requests with metering regions
         try {
-            mCaptureSession.setRepeatingRequest(
-                    mPreviewRequestBuilder.build(),
-                    mSessionCaptureCallback, mBackgroundHandler);
+            setRepeatingRequest(mPreviewRequestBuilder.build());
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -396,9 +1136,7 @@ public class Camera2Proxy {
                     CameraMetadata.CONTROL_AF_TRIGGER_START);
 
             try {
-                mCaptureSession.capture(
-                        mPreviewRequestBuilder.build(),
-                        mSessionCaptureCallback, mBackgroundHandler);
+                capture(mPreviewRequestBuilder.build());
             } catch (CameraAccessException e) {
                 e.printStackTrace();
             }
@@ -410,12 +1148,16 @@ public class Camera2Proxy {
     }
 
     public void writeCameraInfo() {
+        mRecordingWriter.queueData(buildCameraInfo(mCameraCharacteristics, mFocalLengthHelper).build());
+    }
 
+    private RecordingProtos.CameraInfo.Builder buildCameraInfo(CameraCharacteristics characteristics,
+                                                               FocalLengthHelper focalLengthHelper) {
         RecordingProtos.CameraInfo.Builder metaBuilder = RecordingProtos.CameraInfo.newBuilder()
                 .setOpticalImageStabilization(mCameraSettingsManager.OISEnabled())
                 .setVideoStabilization(mCameraSettingsManager.DVSEnabled())
                 .setDistortionCorrection(mCameraSettingsManager.DistortionCorrectionEnabled())
-                .setSensorOrientation(mCameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION));
+                .setSensorOrientation(characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION));
 
         Size resolution = mCameraSettingsManager.getVideoSize();
         metaBuilder.setResolution(
@@ -423,40 +1165,40 @@ public class Camera2Proxy {
                         .setHeight(mSwappedDimensions ? resolution.getWidth() : resolution.getHeight())
                         .setWidth(mSwappedDimensions ?  resolution.getHeight() : resolution.getWidth())
         );
-        Rect arraySize = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE);
+        Rect arraySize = characteristics.get(CameraCharacteristics.SENSOR_INFO_PRE_CORRECTION_ACTIVE_ARRAY_SIZE);
         metaBuilder.setPreCorrectionActiveArraySize(
                 RecordingProtos.CameraInfo.Size.newBuilder()
                         .setHeight(arraySize.height())
                         .setWidth(arraySize.width())
         );
 
-        Integer timestamp_source = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        Integer timestamp_source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
         if (timestamp_source != null) {
             metaBuilder.setTimestampSourceValue(timestamp_source);
         }
 
-        Integer focus_cal = mCameraCharacteristics.get(CameraCharacteristics.LENS_INFO_FOCUS_DISTANCE_CALIBRATION);
+        Integer focus_cal = characteristics.get(CameraCharacteristics.LENS_INFO_FOCUS_DISTANCE_CALIBRATION);
         if (focus_cal != null) {
             metaBuilder.setFocusCalibrationValue(focus_cal);
         }
 
-        float[] lensTranslation = mCameraCharacteristics.get(CameraCharacteristics.LENS_POSE_TRANSLATION);
+        float[] lensTranslation = characteristics.get(CameraCharacteristics.LENS_POSE_TRANSLATION);
         if (lensTranslation != null) {
             for (float lT : lensTranslation) {
                 metaBuilder.addLensPoseTranslation(lT);
             }
         }
 
-        float[] lensRotation = mCameraCharacteristics.get(CameraCharacteristics.LENS_POSE_ROTATION);
+        float[] lensRotation = characteristics.get(CameraCharacteristics.LENS_POSE_ROTATION);
         if (lensRotation != null) {
             for (float lR : lensRotation) {
                 metaBuilder.addLensPoseRotation(lR);
             }
         }
 
-        float[] intrinsics = mCameraCharacteristics.get(CameraCharacteristics.LENS_INTRINSIC_CALIBRATION);
+        float[] intrinsics = characteristics.get(CameraCharacteristics.LENS_INTRINSIC_CALIBRATION);
         if ((intrinsics != null) && (abs(intrinsics[0]) > 0)) {
-            for (float e : mFocalLengthHelper.getTransformedIntrinsic()) {
+            for (float e : focalLengthHelper.getTransformedIntrinsic()) {
                 metaBuilder.addIntrinsicParams(e);
             }
             for (float e : intrinsics) {
@@ -465,69 +1207,77 @@ public class Camera2Proxy {
         }
 
         if (Build.VERSION.SDK_INT >= 28) {
-            float[] distortion = mCameraCharacteristics.get(CameraCharacteristics.LENS_DISTORTION);
+            float[] distortion = characteristics.get(CameraCharacteristics.LENS_DISTORTION);
             if ((distortion != null) && (abs(distortion[0]) > 0)) {
                 for (float e : distortion) {
                     metaBuilder.addDistortionParams(e);
                 }
             }
-            Integer lensPoseReference = mCameraCharacteristics.get(CameraCharacteristics.LENS_POSE_REFERENCE);
+            Integer lensPoseReference = characteristics.get(CameraCharacteristics.LENS_POSE_REFERENCE);
             if (lensPoseReference != null) {
                 metaBuilder.setLensPoseReferenceValue(lensPoseReference);
             }
         }
-        mRecordingWriter.queueData(metaBuilder.build());
-
+        return metaBuilder;
     }
 
-    private void writeCaptureData(CaptureResult result, Float focal_length_pix) {
+    private void writeCaptureData(CaptureResultProcessor.Frame frame, Float focal_length_pix,
+                                  FocalLengthHelper focalLengthHelper) {
         RecordingProtos.VideoFrameMetaData.Builder frameBuilder = RecordingProtos.VideoFrameMetaData.newBuilder()
-                .setTimeNs(result.get(CaptureResult.SENSOR_TIMESTAMP))
-                .setFocalLengthMm(result.get(CaptureResult.LENS_FOCAL_LENGTH))
-                .setEstFocalLengthPix(focal_length_pix);
+                .setTimeNs(frame.mTimestampNs);
+        if (frame.mPhysicalCameraId != null) {
+            frameBuilder.setPhysicalCameraId(frame.mPhysicalCameraId);
+        }
 
-        int focus_state = result.get(CaptureResult.CONTROL_AF_STATE);
-        frameBuilder.setFocusLocked(focus_state != CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN
-                                 && focus_state != CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN);
+        frameBuilder.setFocusLocked(isFocusLocked(frame.mAfState));
 
-        // The following values are allowed to be null
-        Long sExp = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
-        if (sExp != null) {
-            frameBuilder.setExposureTimeNs(sExp);
+        // The following values are allowed to be missing
+        if (frame.mHasFocalLength) {
+            frameBuilder.setFocalLengthMm(frame.mFocalLengthMm);
         }
 
-        Long sDur = result.get(CaptureResult.SENSOR_FRAME_DURATION);
-        if (sDur != null) {
-            frameBuilder.setFrameDurationNs(sDur);
+        if (focal_length_pix != null) {
+            frameBuilder.setEstFocalLengthPix(focal_length_pix);
         }
 
-        Long sRoll = result.get(CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW);
-        if (sRoll != null) {
-            frameBuilder.setFrameReadoutNs(sRoll);
+        if (frame.mExposureTimeNs >= 0) {
+            frameBuilder.setExposureTimeNs(frame.mExposureTimeNs);
         }
 
-        Integer sSens = result.get(CaptureResult.SENSOR_SENSITIVITY);
-        if (sSens != null) {
-            frameBuilder.setIso(sSens);
+        if (frame.mFrameDurationNs >= 0) {
+            frameBuilder.setFrameDurationNs(frame.mFrameDurationNs);
         }
 
-        Float fDist = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
-        if (fDist != null) {
-            frameBuilder.setFocusDistanceDiopters(fDist);
+        if (frame.mRollingShutterSkewNs >= 0) {
+            frameBuilder.setFrameReadoutNs(frame.mRollingShutterSkewNs);
         }
 
-        if (Build.VERSION.SDK_INT >= 28) {
-            OisSample[] oisSamples = result.get(CaptureResult.STATISTICS_OIS_SAMPLES);
-            if (oisSamples != null) {
-                for (OisSample sample : oisSamples) {
-                    float[] scaledSample = mFocalLengthHelper.transformOISSample(sample);
-                    RecordingProtos.VideoFrameMetaData.OISSample.Builder oisBuilder =
-                            RecordingProtos.VideoFrameMetaData.OISSample.newBuilder()
-                                    .setTimeNs(sample.getTimestamp())
-                                    .setXShift(scaledSample[0])
-                                    .setYShift(scaledSample[1]);
-                    frameBuilder.addOISSamples(oisBuilder);
-                }
+        if (frame.mIso >= 0) {
+            frameBuilder.setIso(frame.mIso);
+        }
+
+        if (frame.mHasFocusDistance) {
+            frameBuilder.setFocusDistanceDiopters(frame.mFocusDistanceDiopters);
+        }
+
+        if (mOisShifts.length < 2 * frame.mOisCount) {
+            mOisShifts = new float[2 * frame.mOisCount];
+        }
+        focalLengthHelper.transformOISShifts(frame.mOisXShift, frame.mOisYShift, frame.mOisCount,
+                mOisShifts);
+        for (int i = 0; i < frame.mOisCount; i++) {
+            RecordingProtos.VideoFrameMetaData.OISSample.Builder oisBuilder =
+                    RecordingProtos.VideoFrameMetaData.OISSample.newBuilder()
+                            .setTimeNs(frame.mOisTimeNs[i])
+                            .setXShift(mOisShifts[2 * i])
+                            .setYShift(mOisShifts[2 * i + 1]);
+            frameBuilder.addOISSamples(oisBuilder);
+        }
+
+        if (focalLengthHelper.getEffectiveIntrinsic(focal_length_pix, frame.mOisXShift,
+                frame.mOisYShift, frame.mOisCount, mEffectiveIntrinsic)) {
+            for (float e : mEffectiveIntrinsic) {
+                frameBuilder.addEffectiveIntrinsicParams(e);
             }
         }
 
@@ -601,6 +1351,7 @@ public class Camera2Proxy {
             mBackgroundThread = new HandlerThread("CameraBackground");
             mBackgroundThread.start();
             mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+            mResultProcessor = new CaptureResultProcessor(this::processCaptureFrame);
         }
     }
 
@@ -613,6 +1364,11 @@ public class Camera2Proxy {
             }
             mBackgroundThread = null;
             mBackgroundHandler = null;
+            if (mResultProcessor != null) {
+                // No more callbacks once the camera thread is gone.
+                mResultProcessor.stop();
+                mResultProcessor = null;
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -130,6 +130,8 @@ public class CameraCaptureActivity extends AppCompatActivity {
     private static TextureMovieEncoder sVideoEncoder = new TextureMovieEncoder();
     private static IMUManager mImuManager;
     private static RecordingWriter sRecordingWriter = new RecordingWriter();
+    private static CaptureHud sCaptureHud = new CaptureHud();
+    private static LatencyTracer sLatencyTracer = new LatencyTracer();
 
     public CameraSettingsManager getmCameraSettingsManager() {
         return mCameraSettingsManager;
@@ -143,6 +145,12 @@ public class CameraCaptureActivity extends AppCompatActivity {
     public RecordingWriter getsRecordingWriter() {
         return sRecordingWriter;
     }
+    public CaptureHud getsCaptureHud() {
+        return sCaptureHud;
+    }
+    public LatencyTracer getsLatencyTracer() {
+        return sLatencyTracer;
+    }
     public CameraHandler getmCameraHandler() {
         return mCameraHandler;
     }
@@ -166,6 +174,7 @@ public class CameraCaptureActivity extends AppCompatActivity {
         mCameraSettingsManager = new CameraSettingsManager(this);
 
         mImuManager = new IMUManager(this);
+        mImuManager.setLatencyTracer(sLatencyTracer);
 
         // Obtain the FirebaseAnalytics instance.
         mFirebaseAnalytics = FirebaseAnalytics.getInstance(this);
@@ -274,6 +283,13 @@ public class CameraCaptureActivity extends AppCompatActivity {
         }
     }
 
+    // The camera configuration finished on the camera thread, see Camera2Proxy.
+    public void onCameraConfigured(Size previewSize, boolean previewSizeChanged) {
+        if (mCameraCaptureFragment != null) {
+            mCameraCaptureFragment.onCameraConfigured(previewSize, previewSizeChanged);
+        }
+    }
+
     public void releaseCamera() {
         Log.d(TAG, "releasing camera");
         if (mCamera2Proxy != null) {
@@ -6,6 +6,8 @@ import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.util.Size;
 import android.view.Display;
@@ -29,9 +31,10 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Locale;
+import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -46,12 +49,26 @@ public class CameraCaptureFragment extends Fragment
 
     public static final String TAG = "VIMUC-CaptureFragment";
     private static final boolean VERBOSE = false;
+    private static final long HUD_INTERVAL_MS = 250;
     private SampleGLView mGLView;
     private CameraSurfaceRenderer mRenderer;
+    private TextView mCameraParamsText;
     private TextView mCaptureResultText;
+    private TextView mPipelineStatsText;
+
+    // Info panel, rendered on the UI thread every HUD_INTERVAL_MS into reused builders.
+    private final Handler mHudHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mHudUpdater = this::updateHud;
+    private final StringBuilder[] mHudLines = {
+            new StringBuilder(), new StringBuilder(), new StringBuilder()};
+    private final StringBuilder[] mShownHudLines = {
+            new StringBuilder(), new StringBuilder(), new StringBuilder()};
     private AspectFrameLayout mAspectFrameLayout;
 
     private boolean mRecordingEnabled;      // controls button state
+    // Set from stopRecording() until the capture summary has been queued and the writer stopped.
+    private volatile boolean mCaptureStopPending = false;
+    private boolean mPreRollArmed = false;  // keeping the last seconds while previewing
     private FloatingActionButton mRecordingButton;
     private FloatingActionButton mWarningButton;
 
@@ -76,6 +93,12 @@ public class CameraCaptureFragment extends Fragment
     private CameraSettingsManager getmCameraSettingsManager() {
         return ((CameraCaptureActivity) getActivity()).getmCameraSettingsManager();
     };
+    private CaptureHud getsCaptureHud() {
+        return ((CameraCaptureActivity) getActivity()).getsCaptureHud();
+    };
+    private LatencyTracer getsLatencyTracer() {
+        return ((CameraCaptureActivity) getActivity()).getsLatencyTracer();
+    };
 
     private String renewOutputDir() {
         SimpleDateFormat dateFormat =
@@ -96,6 +119,8 @@ public class CameraCaptureFragment extends Fragment
 
         mRecordingEnabled = getsVideoEncoder().isRecording();
         getsVideoEncoder().setEncoderListener(this);
+        getsRecordingWriter().setCaptureHud(getsCaptureHud());
+        getsRecordingWriter().setLatencyTracer(getsLatencyTracer());
 
         Log.d(TAG, "onCreate complete: " + this);
     }
@@ -140,7 +165,9 @@ public class CameraCaptureFragment extends Fragment
             }
         });
 
+        mCameraParamsText = view.findViewById(R.id.cameraParams_text);
         mCaptureResultText = view.findViewById(R.id.captureResult_text);
+        mPipelineStatsText = view.findViewById(R.id.pipelineStats_text);
 
     }
 
@@ -178,16 +205,20 @@ public class CameraCaptureFragment extends Fragment
                 mRenderer.setCameraPreviewSize(mCameraPreviewWidth, mCameraPreviewHeight, getmCamera2Proxy().getSwappedDimensions());
             }
         });
+        armPreRoll();
+        mHudHandler.post(mHudUpdater);
         Log.d(TAG, "onResume complete: " + this);
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        mHudHandler.removeCallbacks(mHudUpdater);
 
         if (mRecordingEnabled) {
             stopRecording();
         }
+        disarmPreRoll();
 
         ((CameraCaptureActivity) getActivity()).releaseCamera();
         Log.d(TAG, "onPause -- Pause Camera preview");
@@ -208,17 +239,63 @@ public class CameraCaptureFragment extends Fragment
 
     }
 
-    //Callback from encoder when it is finished and thread is shutting down.
+    // Settings are ready once the camera has been configured, which may be after onResume().
+    public void onCameraConfigured(Size previewSize, boolean previewSizeChanged) {
+        Camera2Proxy camera2Proxy = getmCamera2Proxy();
+        if (!isResumed() || camera2Proxy == null) {
+            return;
+        }
+        if (previewSizeChanged) {
+            setLayoutAspectRatio(previewSize);
+            boolean swapped = camera2Proxy.getSwappedDimensions();
+            mGLView.queueEvent(() -> mRenderer.setCameraPreviewSize(
+                    previewSize.getWidth(), previewSize.getHeight(), swapped));
+        }
+        updateControls();
+        armPreRoll();
+    }
+
+    //Callback from encoder thread in direct mode, hand the input surface to the camera.
+    public void onDirectInputReady(Surface inputSurface) {
+        Camera2Proxy camera2Proxy = getmCamera2Proxy();
+        if (camera2Proxy != null) {
+            camera2Proxy.attachEncoderSurface(inputSurface);
+        }
+    }
+
+    //Callback from encoder thread in direct mode, blocks until the camera has let go of the surface.
+    public void onDirectInputStopping(Surface inputSurface) {
+        Camera2Proxy camera2Proxy = getmCamera2Proxy();
+        if (camera2Proxy != null) {
+            camera2Proxy.detachEncoderSurface();
+        }
+    }
+
+    //Callback from encoder thread when a recording, pre-record or warm session has finished.
     public void onEncodingFinished() {
         Log.d(TAG, "Got Encoder listener call");
         mRecordingEnabled = false;
-        getActivity().runOnUiThread(() -> updateControls());
+        getActivity().runOnUiThread(() -> {
+            updateControls();
+            if (isResumed()) {
+                armPreRoll();
+            }
+        });
     }
 
     /**
      * onClick handler for "record" button.
      */
     public void clickToggleRecording(@SuppressWarnings("unused") View unused) {
+        CameraSettingsManager cameraSettingsManager = getmCameraSettingsManager();
+        if (!mRecordingEnabled && (cameraSettingsManager == null || !cameraSettingsManager.isInitialized())) {
+            // Camera still being configured, see onCameraConfigured().
+            return;
+        }
+        if (!mRecordingEnabled && mCaptureStopPending) {
+            // The previous recording is still writing its capture data.
+            return;
+        }
         mRecordingEnabled = !mRecordingEnabled;
         if (mRecordingEnabled) {
             startRecording();
@@ -286,26 +363,119 @@ public class CameraCaptureFragment extends Fragment
         }
     }
 
+    // Codec settings and camera dependent fields, outputFile is null for pre-record.
+    private TextureMovieEncoder.EncoderConfig.Builder createEncoderConfig(
+            String outputFile, RecordingWriter recordingWriter) {
+        Camera2Proxy camera2Proxy = getmCamera2Proxy();
+        TextureMovieEncoder.EncoderConfig.Builder encoderConfig =
+                new TextureMovieEncoder.EncoderConfig.Builder()
+                        .setOutput(outputFile, recordingWriter)
+                        .setCaptureHud(getsCaptureHud())
+                        .setLatencyTracer(getsLatencyTracer());
+        if (outputFile != null) {
+            encoderConfig.setStartRequestTime(System.nanoTime());
+        }
+        getmCameraSettingsManager().updateEncoderConfig(encoderConfig);
+        if (getmCameraSettingsManager().adaptiveBitRateEnabled()) {
+            encoderConfig.setBitRateController(new MotionBitRateController(getmImuManager()));
+        }
+        if (camera2Proxy != null) {
+            encoderConfig.setRealtimeTimestamps(camera2Proxy.hasRealtimeTimestamps());
+        }
+        if (encoderConfig.isDirectInput() && camera2Proxy != null) {
+            // Camera frames are written in sensor orientation, let the player rotate them.
+            encoderConfig.setOrientationHint(camera2Proxy.getSensorOrientation());
+        }
+        return encoderConfig;
+    }
+
+    /**
+     * Starts keeping the last seconds of video, IMU and capture data if pre-record is enabled.
+     * Otherwise, with the warm encoder setting, only creates the encoder ahead of recording.
+     */
+    private void armPreRoll() {
+        CameraSettingsManager cameraSettingsManager = getmCameraSettingsManager();
+        Camera2Proxy camera2Proxy = getmCamera2Proxy();
+        if (mPreRollArmed || mRecordingEnabled || camera2Proxy == null
+                || cameraSettingsManager == null || !cameraSettingsManager.isInitialized()) {
+            return;
+        }
+        int seconds = cameraSettingsManager.getPreRecordSeconds();
+        if (seconds <= 0 && !cameraSettingsManager.warmEncoderEnabled()) {
+            return;
+        }
+        TextureMovieEncoder.EncoderConfig.Builder encoderConfig =
+                createEncoderConfig(null, null).setPreRoll(seconds);
+        if (seconds > 0) {
+            RecordingWriter recordingWriter = getsRecordingWriter();
+            recordingWriter.startPreRoll(encoderConfig.getPreRollRetentionSeconds(),
+                    cameraSettingsManager.getCameraFrameRate());
+            getmImuManager().startPreRoll(recordingWriter);
+            camera2Proxy.startPreRollCaptureResult(recordingWriter);
+        }
+        mPreRollArmed = true;
+        mGLView.queueEvent(() -> mRenderer.startPreRoll(encoderConfig));
+    }
+
+    private void disarmPreRoll() {
+        if (!mPreRollArmed) {
+            return;
+        }
+        mPreRollArmed = false;
+        Camera2Proxy camera2Proxy = getmCamera2Proxy();
+        if (camera2Proxy != null) {
+            camera2Proxy.stopPreRollCaptureResult();
+        }
+        getmImuManager().stopRecording();
+        getsRecordingWriter().stopPreRoll();
+        mGLView.queueEvent(() -> mRenderer.stopPreRoll());
+    }
+
     private void startRecording() {
         Camera2Proxy camera2Proxy = getmCamera2Proxy();
         String outputDir = renewOutputDir();
         String outputFile = outputDir + File.separator + "video_recording.mp4";
         String metaFile = outputDir + File.separator + "video_meta.pb3";
         RecordingWriter recordingWriter = getsRecordingWriter();
+        if (mPreRollArmed) {
+            // The running encoder and the buffered data carry over into the recording.
+            mPreRollArmed = false;
+            if (camera2Proxy != null) {
+                camera2Proxy.stopPreRollCaptureResult();
+            }
+        }
+        SensorTrackBuffer sensorTrack = getmCameraSettingsManager().sensorTrackEnabled() ?
+                new SensorTrackBuffer() : null;
+        recordingWriter.setSensorTrack(sensorTrack);
+        getsLatencyTracer().start(camera2Proxy != null && camera2Proxy.hasRealtimeTimestamps());
         try {
             recordingWriter.startRecording(metaFile);
         } catch (IOException e) {
             throw new RuntimeException("Could not start meta data recording:" + e);
         }
 
-        mRenderer.resetOutputFiles(outputFile, recordingWriter); // this will not cause sync issues
+        TextureMovieEncoder.EncoderConfig.Builder encoderConfig =
+                createEncoderConfig(outputFile, recordingWriter);
+        encoderConfig.setSensorTrack(sensorTrack);
+        mRenderer.resetOutputFiles(encoderConfig); // this will not cause sync issues
         getmImuManager().startRecording(recordingWriter);
 
         if (camera2Proxy != null) {
-            camera2Proxy.startRecordingCaptureResult(recordingWriter);
+            camera2Proxy.startRecordingCaptureResult(recordingWriter, outputDir);
         } else {
             throw new RuntimeException("mCamera2Proxy should not be null upon toggling record button");
         }
+        List<TextureMovieEncoder.EncoderConfig> physicalConfigs = new ArrayList<>();
+        for (String id : getmCameraSettingsManager().getPhysicalStreamIds()) {
+            physicalConfigs.add(createEncoderConfig(
+                    outputDir + File.separator + "video_recording_" + id + ".mp4", recordingWriter)
+                    .setDirectInput(true)
+                    .setPhysicalCameraId(id)
+                    .setCaptureHud(null)
+                    .setLatencyTracer(null)
+                    .build());
+        }
+        camera2Proxy.startPhysicalStreams(physicalConfigs);
         mGLView.queueEvent(new Runnable() {
             @Override
             public void run() {
@@ -318,8 +488,15 @@ public class CameraCaptureFragment extends Fragment
     private void stopRecording() {
         Log.d(TAG, "Stop recording");
         Camera2Proxy camera2Proxy = getmCamera2Proxy();
+        RecordingWriter recordingWriter = getsRecordingWriter();
+        mCaptureStopPending = true;
+        // The writer is stopped once the physical streams and the capture summary are done.
+        Runnable onCaptureStopped = () -> {
+            recordingWriter.stopRecording();
+            mCaptureStopPending = false;
+        };
         if (camera2Proxy != null) {
-            camera2Proxy.stopRecordingCaptureResult();
+            camera2Proxy.stopRecordingCaptureResult(onCaptureStopped);
         }
         getmImuManager().stopRecording();
 
@@ -330,27 +507,49 @@ public class CameraCaptureFragment extends Fragment
                 mRenderer.changeRecordingState(false);
             }
         });
-        getsRecordingWriter().stopRecording();
+        if (camera2Proxy == null) {
+            onCaptureStopped.run();
+        }
     }
 
 
-    public void updateCaptureResultPanel(
-            final Float fl,
-            final Long exposureTimeNs) {
-        final String sfl = String.format(Locale.getDefault(), "FL: %.3f", fl);
-        final String sexpotime =
-                exposureTimeNs == null ?
-                        "null ms" :
-                        String.format(Locale.getDefault(), "Exp: %.2f ms",
-                                exposureTimeNs / 1000000.0);
-        final String imuHz = String.format(Locale.getDefault(),  "IMU: %.0fHz",
-                getmImuManager().getSensorFrequency());
+    // Pulls the values owned by the UI side components and renders the panel.
+    private void updateHud() {
+        CaptureHud hud = getsCaptureHud();
+        TextureMovieEncoder encoder = getsVideoEncoder();
+        hud.setPreview(mCameraPreviewWidth, mCameraPreviewHeight, encoder.mFrameRate);
+        hud.setEncoderState(encoder.getQueueDepth(), encoder.getDroppedFrames());
+        hud.setImuRate(getmImuManager().getSensorFrequency());
+        hud.render(System.nanoTime(), mRecordingEnabled, mHudLines[0], mHudLines[1], mHudLines[2]);
 
-        getActivity().runOnUiThread(() -> {
-            if (mCaptureResultText != null) {
-                mCaptureResultText.setText("|" + sfl + "|" + sexpotime + "|" + imuHz + "|");
+        setHudLine(mCameraParamsText, 0);
+        setHudLine(mCaptureResultText, 1);
+        setHudLine(mPipelineStatsText, 2);
+        mHudHandler.postDelayed(mHudUpdater, HUD_INTERVAL_MS);
+    }
+
+    // Only touches the view when the text changed.
+    private void setHudLine(TextView view, int line) {
+        StringBuilder text = mHudLines[line];
+        StringBuilder shown = mShownHudLines[line];
+        if (view == null || sameText(shown, text)) {
+            return;
+        }
+        shown.setLength(0);
+        shown.append(text);
+        view.setText(text);
+    }
+
+    private static boolean sameText(CharSequence a, CharSequence b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < a.length(); i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
             }
-        });
+        }
+        return true;
     }
 
     /**
@@ -398,18 +597,7 @@ public class CameraCaptureFragment extends Fragment
         // so it doesn't really matter.
         if (VERBOSE) Log.d(TAG, "ST onFrameAvailable");
         mGLView.requestRender();
-
-        final String sfps = String.format(Locale.getDefault(), "%.1f FPS",
-                getsVideoEncoder().mFrameRate);
-        String previewFacts = mCameraPreviewWidth + "x" + mCameraPreviewHeight + "@" + sfps;
-
-        View fragmentView = getView();
-
-        if (fragmentView != null) {
-            TextView text = (TextView) fragmentView.findViewById(R.id.cameraParams_text);
-            text.setText(previewFacts);
-        }
-
+        // The info panel picks up the preview rate in updateHud().
     }
 
     /**
@@ -447,11 +635,12 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private static final int RECORDING_OFF = 0;
     private static final int RECORDING_ON = 1;
     private static final int RECORDING_RESUMED = 2;
+    private static final int RECORDING_PRE_ROLL = 3;
 
     private CameraCaptureActivity.CameraHandler mCameraHandler;
     private TextureMovieEncoder mVideoEncoder;
-    private String mOutputFile;
-    private RecordingWriter mMetadataRecorder;
+    private TextureMovieEncoder.EncoderConfig.Builder mEncoderConfig;
+    private TextureMovieEncoder.EncoderConfig.Builder mPreRollConfig;
 
     private FullFrameRect mFullScreen;
 
@@ -491,9 +680,29 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         mIncomingWidth = mIncomingHeight = -1;
     }
 
-    public void resetOutputFiles(String outputFile, RecordingWriter metaRecorder) {
-        mOutputFile = outputFile;
-        mMetadataRecorder = metaRecorder;
+    /**
+     * Sets output files and codec settings for the next recording, the frame size and EGL
+     * context are filled in when recording starts.
+     */
+    public void resetOutputFiles(TextureMovieEncoder.EncoderConfig.Builder encoderConfig) {
+        mEncoderConfig = encoderConfig;
+    }
+
+    /**
+     * Starts the encoder without output while not recording, see TextureMovieEncoder.
+     */
+    public void startPreRoll(TextureMovieEncoder.EncoderConfig.Builder encoderConfig) {
+        mPreRollConfig = encoderConfig;
+        updateState();
+    }
+
+    public void stopPreRoll() {
+        mPreRollConfig = null;
+        if (mRecordingStatus == RECORDING_PRE_ROLL) {
+            Log.d(TAG, "STOP pre-record");
+            mVideoEncoder.stopRecording();
+            mRecordingStatus = RECORDING_OFF;
+        }
     }
 
     /**
@@ -511,6 +720,8 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mFullScreen.release(false);     // assume the GLSurfaceView EGL context is about
             mFullScreen = null;             //  to be destroyed
         }
+        // The encoder thread shares that context, end it after any pending stop.
+        mVideoEncoder.quit();
         mIncomingWidth = mIncomingHeight = -1;
     }
 
@@ -633,22 +844,30 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         }
     }
 
+    // Fills in frame size and EGL context, false if the encoder is still busy.
+    private boolean startEncoder(TextureMovieEncoder.EncoderConfig.Builder encoderConfig) {
+        // The GL path rotates frames upright, direct input keeps sensor orientation.
+        boolean swap = mSwappedVideoDimensions && !encoderConfig.isDirectInput();
+        return mVideoEncoder.startRecording(
+                encoderConfig
+                        .setSize(
+                                swap ? mIncomingHeight : mIncomingWidth,
+                                swap ? mIncomingWidth : mIncomingHeight)
+                        .setEglContext(EGL14.eglGetCurrentContext())
+                        .build());
+    }
+
     void updateState() {
         if (mRecordingEnabled) {
             switch (mRecordingStatus) {
                 case RECORDING_OFF:
+                case RECORDING_PRE_ROLL:
                     Log.d(TAG, "START recording");
-                    mVideoEncoder.startRecording(
-                            new TextureMovieEncoder.EncoderConfig(
-                                    mOutputFile,
-                                    mSwappedVideoDimensions ? mIncomingHeight : mIncomingWidth,
-                                    mSwappedVideoDimensions ? mIncomingWidth : mIncomingHeight,
-                                    CameraUtils.calcBitRate(mIncomingWidth,
-                                            mIncomingHeight,
-                                            VideoEncoderCore.FRAME_RATE),
-                                    EGL14.eglGetCurrentContext(),
-                                    mMetadataRecorder));
-                    mRecordingStatus = RECORDING_ON;
+                    // Retried on the next frame if the previous recording is still finishing.
+                    if (startEncoder(mEncoderConfig)) {
+                        mRecordingStatus = RECORDING_ON;
+                        mPreRollConfig = null;
+                    }
                     break;
                 case RECORDING_RESUMED:
                     Log.d(TAG, "RESUME recording");
@@ -671,6 +890,12 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                     mRecordingStatus = RECORDING_OFF;
                     break;
                 case RECORDING_OFF:
+                    if (mPreRollConfig != null && mIncomingWidth > 0 && startEncoder(mPreRollConfig)) {
+                        Log.d(TAG, "START pre-record");
+                        mRecordingStatus = RECORDING_PRE_ROLL;
+                    }
+                    break;
+                case RECORDING_PRE_ROLL:
                     // yay
                     break;
                 default:
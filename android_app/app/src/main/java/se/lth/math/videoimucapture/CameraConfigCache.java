@@ -0,0 +1,92 @@
+package se.lth.math.videoimucapture;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+import androidx.preference.PreferenceManager;
+
+/**
+ * Remembers the camera chosen by Camera2Proxy#configureCamera() between launches.
+ * <p>
+ * Finding the rear camera queries the characteristics of every camera, and the settings and
+ * preview size need the characteristics of the chosen one.  With a snapshot the camera can
+ * be opened right away on launch while the full configuration runs on the camera thread.
+ * The snapshot is only used on the same build of the same device and with the same
+ * settings that decide the preview size, anything else falls back to the full path.
+ */
+public class CameraConfigCache {
+    private static final String TAG = "CameraConfigCache";
+    private static final String PREFS_NAME = "camera_config_cache";
+    private static final String KEY = "key";
+    private static final String CAMERA_ID = "camera_id";
+    private static final String PREVIEW_WIDTH = "preview_width";
+    private static final String PREVIEW_HEIGHT = "preview_height";
+    private static final String SENSOR_ORIENTATION = "sensor_orientation";
+    // Preferences that change the camera or the preview size.
+    private static final String[] SETTING_KEYS = {"video_size", "use_full_sensor", "high_speed_fps"};
+
+    public static class Snapshot {
+        public final String mCameraId;
+        public final Size mPreviewSize;
+        public final int mSensorOrientation;
+
+        public Snapshot(String cameraId, Size previewSize, int sensorOrientation) {
+            mCameraId = cameraId;
+            mPreviewSize = previewSize;
+            mSensorOrientation = sensorOrientation;
+        }
+
+        @Override
+        public String toString() {
+            return "camera " + mCameraId + " preview " + mPreviewSize +
+                    " orientation " + mSensorOrientation;
+        }
+    }
+
+    private final SharedPreferences mCache;
+    private final SharedPreferences mSettings;
+
+    public CameraConfigCache(Context context) {
+        mCache = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mSettings = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    private String getKey() {
+        StringBuilder key = new StringBuilder(Build.FINGERPRINT);
+        for (String setting : SETTING_KEYS) {
+            key.append('|').append(mSettings.getAll().get(setting));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Null if there is no snapshot for this device, build and settings.
+     */
+    public Snapshot load() {
+        if (!getKey().equals(mCache.getString(KEY, null))) {
+            return null;
+        }
+        String cameraId = mCache.getString(CAMERA_ID, null);
+        int width = mCache.getInt(PREVIEW_WIDTH, 0);
+        int height = mCache.getInt(PREVIEW_HEIGHT, 0);
+        if (cameraId == null || width <= 0 || height <= 0) {
+            return null;
+        }
+        return new Snapshot(cameraId, new Size(width, height),
+                mCache.getInt(SENSOR_ORIENTATION, 0));
+    }
+
+    public void save(Snapshot snapshot) {
+        Log.d(TAG, "Saving " + snapshot);
+        mCache.edit()
+                .putString(KEY, getKey())
+                .putString(CAMERA_ID, snapshot.mCameraId)
+                .putInt(PREVIEW_WIDTH, snapshot.mPreviewSize.getWidth())
+                .putInt(PREVIEW_HEIGHT, snapshot.mPreviewSize.getHeight())
+                .putInt(SENSOR_ORIENTATION, snapshot.mSensorOrientation)
+                .apply();
+    }
+}
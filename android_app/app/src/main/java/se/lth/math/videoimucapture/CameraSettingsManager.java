@@ -1,13 +1,21 @@
 package se.lth.math.videoimucapture;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
 import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.util.Log;
@@ -26,7 +34,9 @@ import androidx.preference.SwitchPreferenceCompat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -34,9 +44,13 @@ import java.util.stream.Collectors;
 
 
 public class CameraSettingsManager {
-    private enum Setting {OIS, OIS_DATA, DVS, DISTORTION_CORRECTION, VIDEO_SIZE, FOCUS_MODE, EXPOSURE_MODE, ZOOM_RATIO, PHYSICAL_CAMERA};
+    private enum Setting {OIS, OIS_DATA, DVS, DISTORTION_CORRECTION, VIDEO_SIZE, FOCUS_MODE, EXPOSURE_MODE, ZOOM_RATIO, PHYSICAL_CAMERA,
+        ENCODER_ASYNC, VIDEO_ENCODER, ENCODER_DIRECT, HIGH_SPEED, RAW_FRAMES, GRAY_STREAM,
+        SENSOR_TRACK, PRE_RECORD, FRAGMENTED_MP4, ADAPTIVE_BITRATE,
+        WARM_ENCODER, PHYSICAL_STREAMS, DEPTH_STREAM, STILL_INTERVAL, STILL_ROTATION, FIXED_FPS};
     private Map<Setting, CameraSetting> mCameraSettings;
-    private boolean mInitialized = false;
+    // Set on the camera thread when configured from the cache.
+    private volatile boolean mInitialized = false;
 
     public CameraSettingsManager(Activity activity) {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(activity);
@@ -128,6 +142,35 @@ public class CameraSettingsManager {
         mCameraSettings.put(Setting.ZOOM_RATIO, new CameraSettingZoomRatio(cameraCharacteristics));
         mCameraSettings.put(Setting.PHYSICAL_CAMERA, new CameraSettingPhysicalCamera(cameraCharacteristics));
 
+        mCameraSettings.put(Setting.PHYSICAL_STREAMS,
+                CameraSettingPhysicalStreams.create(cameraCharacteristics, getVideoSize()));
+
+        mCameraSettings.put(Setting.ENCODER_ASYNC, new CameraSettingSwitch("encoder_async", false));
+        mCameraSettings.put(Setting.VIDEO_ENCODER, new CameraSettingVideoEncoder());
+        mCameraSettings.put(Setting.ENCODER_DIRECT, new CameraSettingSwitch("encoder_direct", false));
+        mCameraSettings.put(Setting.HIGH_SPEED, new CameraSettingHighSpeed(cameraCharacteristics, getVideoSize()));
+        mCameraSettings.put(Setting.FIXED_FPS, new CameraSettingFixedFps(cameraCharacteristics, getVideoSize(),
+                (CameraSettingHighSpeed) mCameraSettings.get(Setting.HIGH_SPEED)));
+        ((CameraSettingExposureMode) mCameraSettings.get(Setting.EXPOSURE_MODE))
+                .setFixedFps((CameraSettingFixedFps) mCameraSettings.get(Setting.FIXED_FPS));
+        mCameraSettings.put(Setting.RAW_FRAMES, new CameraSettingRawFrames(cameraCharacteristics));
+        mCameraSettings.put(Setting.GRAY_STREAM, new CameraSettingGrayStream(cameraCharacteristics, getVideoSize()));
+        mCameraSettings.put(Setting.DEPTH_STREAM, new CameraSettingDepthStream(cameraCharacteristics));
+        StreamConfigurationMap streamMap = cameraCharacteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        boolean jpegSupported = streamMap != null && streamMap.isOutputSupportedFor(ImageFormat.JPEG);
+        mCameraSettings.put(Setting.STILL_INTERVAL,
+                new CameraSettingIntegerList("still_interval_seconds", 0, jpegSupported));
+        mCameraSettings.put(Setting.STILL_ROTATION,
+                new CameraSettingIntegerList("still_rotation_degrees", 0, jpegSupported));
+        // MediaMuxer metadata tracks
+        mCameraSettings.put(Setting.SENSOR_TRACK, new CameraSettingSwitch("sensor_track", false,
+                Build.VERSION.SDK_INT >= 26));
+        mCameraSettings.put(Setting.PRE_RECORD, new CameraSettingPreRecord());
+        mCameraSettings.put(Setting.FRAGMENTED_MP4, new CameraSettingSwitch("fragmented_mp4", false));
+        mCameraSettings.put(Setting.ADAPTIVE_BITRATE, new CameraSettingSwitch("adaptive_bitrate", false));
+        mCameraSettings.put(Setting.WARM_ENCODER, new CameraSettingSwitch("warm_encoder", false));
+
         mInitialized = true;
 
     }
@@ -165,6 +208,124 @@ public class CameraSettingsManager {
         return ((CameraSettingExposureMode) mCameraSettings.get(Setting.EXPOSURE_MODE)).getMode()
                 == CameraSettingExposureMode.Mode.TOUCH_AUTO;
     }
+
+    public Boolean asyncEncoderEnabled() {
+        return ((CameraSettingSwitch) mCameraSettings.get(Setting.ENCODER_ASYNC)).isOn();
+    }
+
+    public Boolean directEncoderEnabled() {
+        return ((CameraSettingSwitch) mCameraSettings.get(Setting.ENCODER_DIRECT)).isOn();
+    }
+
+    // Null if high speed recording is off or not supported for the video size.
+    public Range<Integer> getHighSpeedFpsRange() {
+        return ((CameraSettingHighSpeed) mCameraSettings.get(Setting.HIGH_SPEED)).getFpsRange();
+    }
+
+    // Zero if the frame rate is left to auto exposure.
+    public int getFixedFps() {
+        return ((CameraSettingFixedFps) mCameraSettings.get(Setting.FIXED_FPS)).getFps();
+    }
+
+    // Null if no uncompressed frames should be stored.
+    public RawFrameWriter.Format getRawFrameFormat() {
+        return ((CameraSettingRawFrames) mCameraSettings.get(Setting.RAW_FRAMES)).getFormat();
+    }
+
+    // Null if the low resolution luma stream is off.
+    public Size getLowResGraySize() {
+        return ((CameraSettingGrayStream) mCameraSettings.get(Setting.GRAY_STREAM)).getSize();
+    }
+
+    // Null if depth frames should not be stored.
+    public RawFrameWriter.Format getDepthFrameFormat() {
+        return ((CameraSettingDepthStream) mCameraSettings.get(Setting.DEPTH_STREAM)).getFormat();
+    }
+
+    public Size getDepthSize() {
+        return ((CameraSettingDepthStream) mCameraSettings.get(Setting.DEPTH_STREAM)).getSize();
+    }
+
+    // Zero if stills are not taken at an interval.  High speed sessions cannot take stills.
+    public int getStillIntervalSeconds() {
+        if (getHighSpeedFpsRange() != null) {
+            return 0;
+        }
+        return ((CameraSettingIntegerList) mCameraSettings.get(Setting.STILL_INTERVAL)).getValue();
+    }
+
+    // Zero if stills are not taken on rotation.
+    public int getStillRotationDegrees() {
+        if (getHighSpeedFpsRange() != null) {
+            return 0;
+        }
+        return ((CameraSettingIntegerList) mCameraSettings.get(Setting.STILL_ROTATION)).getValue();
+    }
+
+    public Boolean sensorTrackEnabled() {
+        return ((CameraSettingSwitch) mCameraSettings.get(Setting.SENSOR_TRACK)).isOn();
+    }
+
+    public Boolean fragmentedMp4Enabled() {
+        return ((CameraSettingSwitch) mCameraSettings.get(Setting.FRAGMENTED_MP4)).isOn();
+    }
+
+    public Boolean adaptiveBitRateEnabled() {
+        return ((CameraSettingSwitch) mCameraSettings.get(Setting.ADAPTIVE_BITRATE)).isOn();
+    }
+
+    public Boolean warmEncoderEnabled() {
+        return ((CameraSettingSwitch) mCameraSettings.get(Setting.WARM_ENCODER)).isOn();
+    }
+
+    // Physical cameras to record next to the main stream, empty if off.  Not in high speed.
+    public List<String> getPhysicalStreamIds() {
+        CameraSettingPhysicalStreams streams =
+                (CameraSettingPhysicalStreams) mCameraSettings.get(Setting.PHYSICAL_STREAMS);
+        if (getHighSpeedFpsRange() != null || !streams.isOn()) {
+            return Collections.emptyList();
+        }
+        // The lens chosen for the main stream is not recorded twice.
+        String mainId = ((CameraSettingPhysicalCamera) mCameraSettings.get(Setting.PHYSICAL_CAMERA)).getId();
+        List<String> ids = new ArrayList<>(streams.getIds());
+        ids.remove(mainId);
+        return ids;
+    }
+
+    /**
+     * The rate frames arrive at: the high speed or fixed rate if set, otherwise the upper
+     * end of the record template's auto exposure range, 30 fps.
+     */
+    public int getCameraFrameRate() {
+        Range<Integer> highSpeedRange = getHighSpeedFpsRange();
+        if (highSpeedRange != null) {
+            return highSpeedRange.getUpper();
+        }
+        int fixedFps = getFixedFps();
+        return fixedFps > 0 ? fixedFps : TextureMovieEncoder.EncoderConfig.DEFAULT_FRAME_RATE;
+    }
+
+    // Zero if pre-record is off, and in high speed.  The rings are sized from getCameraFrameRate().
+    public int getPreRecordSeconds() {
+        if (getHighSpeedFpsRange() != null) {
+            return 0;
+        }
+        return ((CameraSettingPreRecord) mCameraSettings.get(Setting.PRE_RECORD)).getSeconds();
+    }
+
+    public void updateEncoderConfig(TextureMovieEncoder.EncoderConfig.Builder builder) {
+        builder.setAsyncEncoder(asyncEncoderEnabled());
+        builder.setDirectInput(directEncoderEnabled());
+        builder.setFragmentedMp4(fragmentedMp4Enabled());
+        builder.setFrameRate(getCameraFrameRate());
+        ((CameraSettingVideoEncoder) mCameraSettings.get(Setting.VIDEO_ENCODER))
+                .updateEncoderConfig(builder, getVideoSize(), getCameraFrameRate());
+
+        if (getHighSpeedFpsRange() != null) {
+            // The GL path cannot keep up, high speed frames must go straight to the encoder.
+            builder.setDirectInput(true);
+        }
+    }
     
 }
 
@@ -282,6 +443,37 @@ class CameraSettingBoolean extends CameraSetting {
     }
 }
 
+// Recording pipeline option without a capture request key.
+class CameraSettingSwitch extends CameraSetting {
+    private Boolean mDefaultOn;
+
+    public CameraSettingSwitch(String prefKey, Boolean defaultOn) {
+        this(prefKey, defaultOn, true);
+    }
+
+    // Unavailable switches are forced off.
+    public CameraSettingSwitch(String prefKey, Boolean defaultOn, boolean available) {
+        mPrefKey = prefKey;
+        mDefaultOn = defaultOn && available;
+        mConfigurable = available;
+
+        //Set default if not present
+        if (mRestoreDefault || !available || !mSharedPreferences.contains(prefKey)) {
+            mSharedPreferences.edit().putBoolean(prefKey, mDefaultOn).apply();
+        }
+    }
+
+    public Boolean isOn() {
+        return mSharedPreferences.getBoolean(mPrefKey, mDefaultOn);
+    }
+
+    @Override
+    protected void updatePreference(Preference preference) {
+        ((SwitchPreferenceCompat) preference).setChecked(isOn());
+        super.updatePreference(preference);
+    }
+}
+
 class CameraSettingVideoSize extends CameraSetting {
 
     private List<Size> mValidSizes;
@@ -452,6 +644,45 @@ class CameraSettingPhysicalCamera extends CameraSetting {
     }
 }
 
+// Records the physical cameras of a logical multi-camera in one session, each with its own
+// encoder.  Only physical cameras that can output the video size are used.
+class CameraSettingPhysicalStreams extends CameraSettingSwitch {
+
+    private final List<String> mIds;
+
+    static CameraSettingPhysicalStreams create(CameraCharacteristics cameraCharacteristics,
+                                               Size videoSize) {
+        List<String> ids = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= 28) {
+            CameraManager manager = (CameraManager) mActivity.getSystemService(Context.CAMERA_SERVICE);
+            List<String> physicalCameraIds = new ArrayList<>(cameraCharacteristics.getPhysicalCameraIds());
+            Collections.sort(physicalCameraIds);
+            for (String id : physicalCameraIds) {
+                try {
+                    StreamConfigurationMap map = manager.getCameraCharacteristics(id)
+                            .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                    if (map != null && Arrays.asList(map.getOutputSizes(MediaCodec.class)).contains(videoSize)) {
+                        ids.add(id);
+                    }
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        Log.d("CameraSettingPhysicalStreams", "Physical cameras supporting " + videoSize + ": " + ids);
+        return new CameraSettingPhysicalStreams(ids);
+    }
+
+    private CameraSettingPhysicalStreams(List<String> ids) {
+        super("physical_streams", false, ids.size() >= 2);
+        mIds = ids;
+    }
+
+    public List<String> getIds() {
+        return mIds;
+    }
+}
+
 class CameraSettingFocusMode extends CameraSetting {
 
     enum FocusMode {CONTINUOUS_AUTO, TOUCH_AUTO, MANUAL}
@@ -580,6 +811,8 @@ class CameraSettingExposureMode extends CameraSetting {
     private final String mModePrefKey = "exposure_mode";
     private final String mISOPrefKey = "iso";
     private final String mExposurePrefKey = "exposure";
+    // Caps the exposure so the frame duration can be held, null until set.
+    private CameraSettingFixedFps mFixedFps = null;
 
     public CameraSettingExposureMode(CameraCharacteristics cameraCharacteristics) {
         //Check available modes
@@ -667,7 +900,22 @@ class CameraSettingExposureMode extends CameraSetting {
     }
 
     private float getExposureMs() {
-        return mSharedPreferences.getFloat(mExposurePrefKey, DEFAULT_EXPOSURE_MS);
+        return Math.min(mSharedPreferences.getFloat(mExposurePrefKey, DEFAULT_EXPOSURE_MS),
+                getMaxExposureMs());
+    }
+
+    public void setFixedFps(CameraSettingFixedFps fixedFps) {
+        mFixedFps = fixedFps;
+    }
+
+    // A longer exposure would make the camera stretch the locked frame duration.
+    private float getMaxExposureMs() {
+        if (mExposureTimeRange == null) {
+            return Float.MAX_VALUE;
+        }
+        int fps = mFixedFps != null ? mFixedFps.getFps() : 0;
+        float maxMs = mExposureTimeRange.getUpper();
+        return fps > 0 ? Math.max(Math.min(maxMs, 1e3f / fps), mExposureTimeRange.getLower()) : maxMs;
     }
 
     public void updatePreferenceScreen(PreferenceScreen prefScreen) {
@@ -694,9 +942,12 @@ class CameraSettingExposureMode extends CameraSetting {
         FloatSeekBarPreference expPref = prefScreen.findPreference(mExposurePrefKey);
         SeekBarPreference isoPref = prefScreen.findPreference(mISOPrefKey);
         if (mValidModes.contains(Mode.MANUAL)) {
-            expPref.setMax(mExposureTimeRange.getUpper());
+            expPref.setMax(getMaxExposureMs());
             expPref.setMin(mExposureTimeRange.getLower());
             expPref.setResolution(EXPOSURE_RESOLUTION);
+            if (getExposureMs() < mSharedPreferences.getFloat(mExposurePrefKey, DEFAULT_EXPOSURE_MS)) {
+                mSharedPreferences.edit().putFloat(mExposurePrefKey, getExposureMs()).apply();
+            }
             expPref.setValue(getExposureMs());
             expPref.setPersistent(true);
             expPref.setEnabled(getMode() == Mode.MANUAL);
@@ -785,3 +1036,662 @@ class CameraSettingZoomRatio extends CameraSetting {
         }
     }
 }
+
+// Video codec, rate control and GOP, validated against the encoder capabilities.
+class CameraSettingVideoEncoder extends CameraSetting {
+
+    enum Codec {AVC, HEVC}
+    // Same order as MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*
+    enum BitrateMode {CQ, VBR, CBR}
+
+    private static final Codec DEFAULT_CODEC = Codec.AVC;
+    private static final BitrateMode DEFAULT_BITRATE_MODE = BitrateMode.VBR;
+    private static final int DEFAULT_GOP_SECONDS = TextureMovieEncoder.EncoderConfig.DEFAULT_IFRAME_INTERVAL;
+    private static final int MAX_GOP_SECONDS = 10;
+    private static final String DEFAULT_PROFILE = "Default"; // Let the codec decide
+    // HEVC reaches the same quality at roughly half the bit rate.
+    private static final float AVC_BITS_PER_PIXEL = TextureMovieEncoder.EncoderConfig.DEFAULT_BITS_PER_PIXEL;
+    private static final float HEVC_BITS_PER_PIXEL = AVC_BITS_PER_PIXEL / 2;
+
+    private final String mCodecPrefKey = "video_codec";
+    private final String mBitrateModePrefKey = "bitrate_mode";
+    private final String mGopPrefKey = "gop_length";
+    private final String mProfilePrefKey = "encoder_profile";
+
+    private Map<Codec, MediaCodecInfo> mEncoders = new EnumMap<>(Codec.class);
+    public CameraSettingVideoEncoder() {
+        for (Codec codec : Codec.values()) {
+            MediaCodecInfo info = CameraUtils.findEncoder(getMimeType(codec));
+            if (info != null) {
+                mEncoders.put(codec, info);
+            }
+        }
+        mConfigurable = !mEncoders.isEmpty();
+
+        //Set default
+        if (mRestoreDefault || !mSharedPreferences.contains(mCodecPrefKey)) {
+            mSharedPreferences.edit().putString(mCodecPrefKey, DEFAULT_CODEC.toString()).apply();
+        }
+        if (mRestoreDefault || !mSharedPreferences.contains(mBitrateModePrefKey)) {
+            mSharedPreferences.edit().putString(mBitrateModePrefKey, DEFAULT_BITRATE_MODE.toString()).apply();
+        }
+        if (mRestoreDefault || !mSharedPreferences.contains(mGopPrefKey)) {
+            mSharedPreferences.edit().putInt(mGopPrefKey, DEFAULT_GOP_SECONDS).apply();
+        }
+        if (mRestoreDefault || !mSharedPreferences.contains(mProfilePrefKey)) {
+            mSharedPreferences.edit().putString(mProfilePrefKey, DEFAULT_PROFILE).apply();
+        }
+    }
+
+    private static String getMimeType(Codec codec) {
+        return codec == Codec.HEVC ? MediaFormat.MIMETYPE_VIDEO_HEVC : MediaFormat.MIMETYPE_VIDEO_AVC;
+    }
+
+    public Codec getCodec() {
+        try {
+            Codec codec = Codec.valueOf(mSharedPreferences.getString(mCodecPrefKey, DEFAULT_CODEC.toString()));
+            if (mEncoders.containsKey(codec)) {
+                return codec;
+            }
+        } catch (IllegalArgumentException e) {
+            // Stored codec is no longer valid, go to default.
+        }
+        return DEFAULT_CODEC;
+    }
+
+    private BitrateMode getBitrateMode() {
+        try {
+            return BitrateMode.valueOf(mSharedPreferences.getString(mBitrateModePrefKey, DEFAULT_BITRATE_MODE.toString()));
+        } catch (IllegalArgumentException e) {
+            return DEFAULT_BITRATE_MODE;
+        }
+    }
+
+    private int getGopSeconds() {
+        return mSharedPreferences.getInt(mGopPrefKey, DEFAULT_GOP_SECONDS);
+    }
+
+    private String getProfileString() {
+        return mSharedPreferences.getString(mProfilePrefKey, DEFAULT_PROFILE);
+    }
+
+    private MediaCodecInfo.CodecCapabilities getCapabilities(Codec codec) {
+        return mEncoders.get(codec).getCapabilitiesForType(getMimeType(codec));
+    }
+
+    // Encoder input may be rotated to device orientation, accept the size either way.
+    private static boolean isSizeSupported(MediaCodecInfo.VideoCapabilities videoCaps, Size size) {
+        return videoCaps.isSizeSupported(size.getWidth(), size.getHeight())
+                || videoCaps.isSizeSupported(size.getHeight(), size.getWidth());
+    }
+
+    private List<BitrateMode> getValidBitrateModes(Codec codec) {
+        MediaCodecInfo.EncoderCapabilities encoderCaps = getCapabilities(codec).getEncoderCapabilities();
+        List<BitrateMode> modes = new ArrayList<>();
+        for (BitrateMode mode : BitrateMode.values()) {
+            if (encoderCaps.isBitrateModeSupported(mode.ordinal())) {
+                modes.add(mode);
+            }
+        }
+        return modes;
+    }
+
+    // Null if the codec does not support the size.
+    private Range<Double> getSupportedFrameRates(Codec codec, Size size) {
+        MediaCodecInfo.VideoCapabilities videoCaps = getCapabilities(codec).getVideoCapabilities();
+        if (!isSizeSupported(videoCaps, size)) {
+            return null;
+        }
+        return videoCaps.isSizeSupported(size.getWidth(), size.getHeight()) ?
+                videoCaps.getSupportedFrameRatesFor(size.getWidth(), size.getHeight()) :
+                videoCaps.getSupportedFrameRatesFor(size.getHeight(), size.getWidth());
+    }
+
+    // Highest supported level for each profile, in the order the codec reports them.
+    private Map<Integer, Integer> getValidProfiles(Codec codec) {
+        Map<Integer, Integer> profiles = new LinkedHashMap<>();
+        for (MediaCodecInfo.CodecProfileLevel pl : getCapabilities(codec).profileLevels) {
+            Integer level = profiles.get(pl.profile);
+            if (level == null || pl.level > level) {
+                profiles.put(pl.profile, pl.level);
+            }
+        }
+        return profiles;
+    }
+
+    private static String profileName(Codec codec, int profile) {
+        if (codec == Codec.AVC) {
+            switch (profile) {
+                case MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline: return "Baseline";
+                case MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline: return "Constrained Baseline";
+                case MediaCodecInfo.CodecProfileLevel.AVCProfileMain: return "Main";
+                case MediaCodecInfo.CodecProfileLevel.AVCProfileExtended: return "Extended";
+                case MediaCodecInfo.CodecProfileLevel.AVCProfileHigh: return "High";
+                case MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedHigh: return "Constrained High";
+                case MediaCodecInfo.CodecProfileLevel.AVCProfileHigh10: return "High 10";
+            }
+        } else {
+            switch (profile) {
+                case MediaCodecInfo.CodecProfileLevel.HEVCProfileMain: return "Main";
+                case MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10: return "Main 10";
+                case MediaCodecInfo.CodecProfileLevel.HEVCProfileMainStill: return "Main Still";
+            }
+        }
+        return "Profile 0x" + Integer.toHexString(profile);
+    }
+
+    public void updatePreferenceScreen(PreferenceScreen screen) {
+        ListPreference codecPref = screen.findPreference(mCodecPrefKey);
+        ListPreference bitratePref = screen.findPreference(mBitrateModePrefKey);
+        SeekBarPreference gopPref = screen.findPreference(mGopPrefKey);
+        ListPreference profilePref = screen.findPreference(mProfilePrefKey);
+
+        codecPref.setEnabled(mConfigurable);
+        bitratePref.setEnabled(mConfigurable);
+        profilePref.setEnabled(mConfigurable);
+        if (!mConfigurable) {
+            gopPref.setEnabled(false);
+            return;
+        }
+
+        List<Codec> codecs = new ArrayList<>(mEncoders.keySet());
+        String[] allCodecDesc = mActivity.getResources().getStringArray(R.array.video_codec_desc);
+        String[] codecEnum = new String[codecs.size()];
+        String[] codecDesc = new String[codecs.size()];
+        for (int i = 0; i < codecs.size(); i++) {
+            codecEnum[i] = codecs.get(i).toString();
+            codecDesc[i] = allCodecDesc[codecs.get(i).ordinal()];
+        }
+        codecPref.setEntries(codecDesc);
+        codecPref.setEntryValues(codecEnum);
+        codecPref.setValue(getCodec().toString());
+        codecPref.setPersistent(true);
+        codecPref.setOnPreferenceChangeListener((preference, newValue) -> {
+            updateCodecPreferences(bitratePref, profilePref, Codec.valueOf((String) newValue));
+            return true;
+        });
+        updateCodecPreferences(bitratePref, profilePref, getCodec());
+
+        gopPref.setMin(1);
+        gopPref.setMax(MAX_GOP_SECONDS);
+        gopPref.setValue(getGopSeconds());
+        gopPref.setPersistent(true);
+        gopPref.setEnabled(true);
+    }
+
+    // Bitrate mode and profile choices depend on the codec.
+    private void updateCodecPreferences(ListPreference bitratePref, ListPreference profilePref,
+                                        Codec codec) {
+        List<BitrateMode> modes = getValidBitrateModes(codec);
+        String[] allModeDesc = mActivity.getResources().getStringArray(R.array.bitrate_mode_desc);
+        String[] modeEnum = new String[modes.size()];
+        String[] modeDesc = new String[modes.size()];
+        for (int i = 0; i < modes.size(); i++) {
+            modeEnum[i] = modes.get(i).toString();
+            modeDesc[i] = allModeDesc[modes.get(i).ordinal()];
+        }
+        bitratePref.setEntries(modeDesc);
+        bitratePref.setEntryValues(modeEnum);
+        bitratePref.setEnabled(!modes.isEmpty());
+        if (!modes.isEmpty()) {
+            bitratePref.setValue(modes.contains(getBitrateMode()) ?
+                    getBitrateMode().toString() : modes.get(0).toString());
+            bitratePref.setPersistent(true);
+        }
+
+        Map<Integer, Integer> profiles = getValidProfiles(codec);
+        List<String> profileEnum = new ArrayList<>();
+        List<String> profileDesc = new ArrayList<>();
+        profileEnum.add(DEFAULT_PROFILE);
+        profileDesc.add(DEFAULT_PROFILE);
+        for (Integer profile : profiles.keySet()) {
+            profileEnum.add(String.valueOf(profile));
+            profileDesc.add(profileName(codec, profile));
+        }
+        profilePref.setEntries(profileDesc.toArray(new String[0]));
+        profilePref.setEntryValues(profileEnum.toArray(new String[0]));
+        profilePref.setValue(profileEnum.contains(getProfileString()) ?
+                getProfileString() : DEFAULT_PROFILE);
+        profilePref.setPersistent(true);
+    }
+
+    /**
+     * Sets codec parameters, falling back to supported values if the stored choice is
+     * not valid for this codec and video size.  The frame rate is the rate the camera
+     * delivers, which the bit rate is derived from.
+     */
+    public void updateEncoderConfig(TextureMovieEncoder.EncoderConfig.Builder builder, Size videoSize,
+                                    int cameraFps) {
+        if (!mConfigurable) {
+            return;
+        }
+        Codec codec = getCodec();
+        if (!isSizeSupported(getCapabilities(codec).getVideoCapabilities(), videoSize)
+                && codec != DEFAULT_CODEC && mEncoders.containsKey(DEFAULT_CODEC)) {
+            Log.w("Settingsmanager", codec + " does not support " + videoSize + ", using " + DEFAULT_CODEC);
+            codec = DEFAULT_CODEC;
+        }
+        MediaCodecInfo.CodecCapabilities caps = getCapabilities(codec);
+        builder.setCodec(getMimeType(codec), mEncoders.get(codec).getName());
+
+        Range<Double> frameRates = getSupportedFrameRates(codec, videoSize);
+        int fps = cameraFps;
+        if (frameRates != null && !frameRates.contains((double) fps)) {
+            fps = (int) Math.floor(frameRates.clamp((double) fps));
+            Log.w("Settingsmanager", "Frame rate " + cameraFps + " not supported, using " + fps);
+        }
+        builder.setFrameRate(fps);
+        builder.setIFrameInterval(getGopSeconds());
+
+        List<BitrateMode> modes = getValidBitrateModes(codec);
+        if (modes.contains(getBitrateMode())) {
+            int quality = TextureMovieEncoder.EncoderConfig.UNSET;
+            if (getBitrateMode() == BitrateMode.CQ && Build.VERSION.SDK_INT >= 28) {
+                Range<Integer> qualityRange = caps.getEncoderCapabilities().getQualityRange();
+                quality = (qualityRange.getLower() + qualityRange.getUpper()) / 2;
+            }
+            builder.setBitRateMode(getBitrateMode().ordinal(), quality);
+        }
+
+        builder.setBitRatePolicy(codec == Codec.HEVC ? HEVC_BITS_PER_PIXEL : AVC_BITS_PER_PIXEL,
+                caps.getVideoCapabilities().getBitrateRange());
+
+        if (!getProfileString().equals(DEFAULT_PROFILE)) {
+            int profile = Integer.parseInt(getProfileString());
+            Integer level = getValidProfiles(codec).get(profile);
+            if (level != null) {
+                builder.setProfileLevel(profile, level);
+            }
+        }
+    }
+}
+
+// Constrained high speed recording, only the fixed fps ranges reported for the video size.
+class CameraSettingHighSpeed extends CameraSetting {
+    private static final String OFF = "Off";
+    private final String mPrefKey = "high_speed_fps";
+    private List<Integer> mValidFps = new ArrayList<>();
+
+    public CameraSettingHighSpeed(CameraCharacteristics cameraCharacteristics, Size videoSize) {
+        StreamConfigurationMap map = cameraCharacteristics.get(CameraCharacteristics
+                .SCALER_STREAM_CONFIGURATION_MAP);
+        int[] capabilities = cameraCharacteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        boolean supported = map != null && capabilities != null && Arrays.stream(capabilities).anyMatch(
+                c -> c == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO);
+
+        if (supported && Arrays.asList(map.getHighSpeedVideoSizes()).contains(videoSize)) {
+            for (Range<Integer> range : map.getHighSpeedVideoFpsRangesFor(videoSize)) {
+                // Fixed ranges are the ones meant for recording.
+                if (range.getLower().equals(range.getUpper()) && !mValidFps.contains(range.getUpper())) {
+                    mValidFps.add(range.getUpper());
+                }
+            }
+            Collections.sort(mValidFps);
+        }
+        mConfigurable = !mValidFps.isEmpty();
+
+        //Set default
+        if (mRestoreDefault || !mSharedPreferences.contains(mPrefKey)) {
+            mSharedPreferences.edit().putString(mPrefKey, OFF).apply();
+        }
+    }
+
+    public Range<Integer> getFpsRange() {
+        String value = mSharedPreferences.getString(mPrefKey, OFF);
+        if (!mConfigurable || value.equals(OFF)) {
+            return null;
+        }
+        int fps = Integer.parseInt(value);
+        if (!mValidFps.contains(fps)) {
+            return null;
+        }
+        return new Range<>(fps, fps);
+    }
+
+    @Override
+    public void updatePreferenceScreen(PreferenceScreen screen) {
+        ListPreference listPreference = screen.findPreference(mPrefKey);
+        listPreference.setEnabled(mConfigurable);
+        if (!mConfigurable) {
+            return;
+        }
+        List<String> values = new ArrayList<>();
+        values.add(OFF);
+        for (Integer fps : mValidFps) {
+            values.add(String.valueOf(fps));
+        }
+        String[] entries = values.toArray(new String[0]);
+        listPreference.setEntries(entries);
+        listPreference.setEntryValues(entries);
+        Range<Integer> range = getFpsRange();
+        listPreference.setValue(range == null ? OFF : String.valueOf(range.getUpper()));
+        listPreference.setPersistent(true);
+    }
+
+    @Override
+    public void updateCaptureRequest(CaptureRequest.Builder builder) {
+        Range<Integer> range = getFpsRange();
+        if (range != null) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+        }
+    }
+}
+
+// Locks the frame rate, so it does not drop in low light.  Auto exposure gets a fixed target
+// range and manual exposure a fixed frame duration, with the exposure capped to fit in it.
+// High speed sets its own range.
+class CameraSettingFixedFps extends CameraSetting {
+    private static final String OFF = "Off";
+    private final String mPrefKey = "fixed_fps";
+    private final CameraSettingHighSpeed mHighSpeed;
+    private List<Integer> mValidFps = new ArrayList<>();
+
+    public CameraSettingFixedFps(CameraCharacteristics cameraCharacteristics, Size videoSize,
+                                 CameraSettingHighSpeed highSpeed) {
+        mHighSpeed = highSpeed;
+        Range<Integer>[] ranges = cameraCharacteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        StreamConfigurationMap map = cameraCharacteristics.get(CameraCharacteristics
+                .SCALER_STREAM_CONFIGURATION_MAP);
+        long minFrameDurationNs = map != null ?
+                map.getOutputMinFrameDuration(SurfaceTexture.class, videoSize) : 0;
+        if (ranges != null) {
+            for (Range<Integer> range : ranges) {
+                int fps = range.getUpper();
+                if (range.getLower() == fps && !mValidFps.contains(fps)
+                        && 1000000000L / fps >= minFrameDurationNs) {
+                    mValidFps.add(fps);
+                }
+            }
+            Collections.sort(mValidFps);
+        }
+        mConfigurable = !mValidFps.isEmpty();
+
+        //Set default
+        if (mRestoreDefault || !mSharedPreferences.contains(mPrefKey)) {
+            mSharedPreferences.edit().putString(mPrefKey, OFF).apply();
+        }
+    }
+
+    // Zero if the frame rate is not locked.
+    public int getFps() {
+        String value = mSharedPreferences.getString(mPrefKey, OFF);
+        if (!mConfigurable || value.equals(OFF) || mHighSpeed.getFpsRange() != null) {
+            return 0;
+        }
+        int fps = Integer.parseInt(value);
+        return mValidFps.contains(fps) ? fps : 0;
+    }
+
+    @Override
+    public void updatePreferenceScreen(PreferenceScreen screen) {
+        ListPreference listPreference = screen.findPreference(mPrefKey);
+        listPreference.setEnabled(mConfigurable);
+        if (!mConfigurable) {
+            return;
+        }
+        List<String> values = new ArrayList<>();
+        values.add(OFF);
+        for (Integer fps : mValidFps) {
+            values.add(String.valueOf(fps));
+        }
+        String[] entries = values.toArray(new String[0]);
+        listPreference.setEntries(entries);
+        listPreference.setEntryValues(entries);
+        String value = mSharedPreferences.getString(mPrefKey, OFF);
+        listPreference.setValue(values.contains(value) ? value : OFF);
+        listPreference.setPersistent(true);
+    }
+
+    @Override
+    public void updateCaptureRequest(CaptureRequest.Builder builder) {
+        int fps = getFps();
+        if (fps > 0) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, new Range<>(fps, fps));
+            // Only used with auto exposure off.
+            builder.set(CaptureRequest.SENSOR_FRAME_DURATION, 1000000000L / fps);
+        }
+    }
+}
+
+// Uncompressed frames through an ImageReader, stored next to the video.
+class CameraSettingRawFrames extends CameraSetting {
+    enum Mode {OFF, LUMA, YUV}
+    private static final Mode DEFAULT_MODE = Mode.OFF;
+    private final String mPrefKey = "raw_frames";
+
+    public CameraSettingRawFrames(CameraCharacteristics cameraCharacteristics) {
+        StreamConfigurationMap map = cameraCharacteristics.get(CameraCharacteristics
+                .SCALER_STREAM_CONFIGURATION_MAP);
+        mConfigurable = map != null && map.isOutputSupportedFor(ImageFormat.YUV_420_888);
+
+        //Set default
+        if (mRestoreDefault || !mSharedPreferences.contains(mPrefKey)) {
+            mSharedPreferences.edit().putString(mPrefKey, DEFAULT_MODE.toString()).apply();
+        }
+    }
+
+    public Mode getMode() {
+        if (!mConfigurable) {
+            return Mode.OFF;
+        }
+        try {
+            return Mode.valueOf(mSharedPreferences.getString(mPrefKey, DEFAULT_MODE.toString()));
+        } catch (IllegalArgumentException e) {
+            return DEFAULT_MODE;
+        }
+    }
+
+    public RawFrameWriter.Format getFormat() {
+        switch (getMode()) {
+            case LUMA:
+                return RawFrameWriter.Format.LUMA;
+            case YUV:
+                return RawFrameWriter.Format.YUV_I420;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void updatePreferenceScreen(PreferenceScreen screen) {
+        ListPreference listPreference = screen.findPreference(mPrefKey);
+        listPreference.setEnabled(mConfigurable);
+        if (!mConfigurable) {
+            return;
+        }
+        String[] modeEnum = Arrays.stream(Mode.values()).map(Enum::toString).toArray(String[]::new);
+        listPreference.setEntries(mActivity.getResources().getStringArray(R.array.raw_frames_desc));
+        listPreference.setEntryValues(modeEnum);
+        listPreference.setValue(getMode().toString());
+        listPreference.setPersistent(true);
+    }
+}
+
+// Low resolution luma stream recorded next to the video, for SLAM front-ends.
+class CameraSettingGrayStream extends CameraSetting {
+    private static final String OFF = "Off";
+    private static final int MAX_WIDTH = 1280;
+    private final String mPrefKey = "gray_stream_size";
+    private List<Size> mValidSizes = new ArrayList<>();
+
+    public CameraSettingGrayStream(CameraCharacteristics cameraCharacteristics, Size videoSize) {
+        StreamConfigurationMap map = cameraCharacteristics.get(CameraCharacteristics
+                .SCALER_STREAM_CONFIGURATION_MAP);
+        if (map != null) {
+            // Same aspect ratio as the video, so both streams have the same field of view.
+            for (Size size : map.getOutputSizes(ImageFormat.YUV_420_888)) {
+                if (size.getWidth() <= MAX_WIDTH && size.getWidth() < videoSize.getWidth() &&
+                        size.getWidth() * videoSize.getHeight() == size.getHeight() * videoSize.getWidth()) {
+                    mValidSizes.add(size);
+                }
+            }
+            mValidSizes.sort(new CameraUtils.CompareSizesByArea());
+        }
+        mConfigurable = !mValidSizes.isEmpty();
+
+        //Set default
+        if (mRestoreDefault || !mSharedPreferences.contains(mPrefKey)) {
+            mSharedPreferences.edit().putString(mPrefKey, OFF).apply();
+        }
+    }
+
+    public Size getSize() {
+        String value = mSharedPreferences.getString(mPrefKey, OFF);
+        if (!mConfigurable || value.equals(OFF)) {
+            return null;
+        }
+        Size size = Size.parseSize(value);
+        // Video size may have changed since the stream size was picked.
+        return mValidSizes.contains(size) ? size : null;
+    }
+
+    @Override
+    public void updatePreferenceScreen(PreferenceScreen screen) {
+        ListPreference listPreference = screen.findPreference(mPrefKey);
+        listPreference.setEnabled(mConfigurable);
+        if (!mConfigurable) {
+            return;
+        }
+        List<String> values = new ArrayList<>();
+        values.add(OFF);
+        for (Size size : mValidSizes) {
+            values.add(size.toString());
+        }
+        String[] entries = values.toArray(new String[0]);
+        listPreference.setEntries(entries);
+        listPreference.setEntryValues(entries);
+        Size size = getSize();
+        listPreference.setValue(size == null ? OFF : size.toString());
+        listPreference.setPersistent(true);
+    }
+}
+
+// DEPTH16 frames from a camera with depth output, e.g. a time of flight sensor.
+class CameraSettingDepthStream extends CameraSetting {
+    enum Mode {OFF, RAW, DELTA}
+    private static final Mode DEFAULT_MODE = Mode.OFF;
+    private final String mPrefKey = "depth_stream";
+    private Size mSize = null;
+
+    public CameraSettingDepthStream(CameraCharacteristics cameraCharacteristics) {
+        int[] capabilities = cameraCharacteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        boolean depthOutput = capabilities != null && Arrays.stream(capabilities).anyMatch(
+                c -> c == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_DEPTH_OUTPUT);
+        StreamConfigurationMap map = cameraCharacteristics.get(CameraCharacteristics
+                .SCALER_STREAM_CONFIGURATION_MAP);
+        if (depthOutput && map != null && map.isOutputSupportedFor(ImageFormat.DEPTH16)) {
+            mSize = Collections.max(Arrays.asList(map.getOutputSizes(ImageFormat.DEPTH16)),
+                    new CameraUtils.CompareSizesByArea());
+        }
+        mConfigurable = mSize != null;
+
+        //Set default
+        if (mRestoreDefault || !mSharedPreferences.contains(mPrefKey)) {
+            mSharedPreferences.edit().putString(mPrefKey, DEFAULT_MODE.toString()).apply();
+        }
+    }
+
+    public Mode getMode() {
+        if (!mConfigurable) {
+            return Mode.OFF;
+        }
+        try {
+            return Mode.valueOf(mSharedPreferences.getString(mPrefKey, DEFAULT_MODE.toString()));
+        } catch (IllegalArgumentException e) {
+            return DEFAULT_MODE;
+        }
+    }
+
+    public RawFrameWriter.Format getFormat() {
+        switch (getMode()) {
+            case RAW:
+                return RawFrameWriter.Format.DEPTH16;
+            case DELTA:
+                return RawFrameWriter.Format.DEPTH16_DELTA;
+            default:
+                return null;
+        }
+    }
+
+    // Largest depth output size.
+    public Size getSize() {
+        return mSize;
+    }
+
+    @Override
+    public void updatePreferenceScreen(PreferenceScreen screen) {
+        ListPreference listPreference = screen.findPreference(mPrefKey);
+        listPreference.setEnabled(mConfigurable);
+        if (!mConfigurable) {
+            return;
+        }
+        String[] modeEnum = Arrays.stream(Mode.values()).map(Enum::toString).toArray(String[]::new);
+        listPreference.setEntries(mActivity.getResources().getStringArray(R.array.depth_stream_desc));
+        listPreference.setEntryValues(modeEnum);
+        listPreference.setValue(getMode().toString());
+        listPreference.setPersistent(true);
+    }
+}
+
+// Integer choice, entries and values come from the preference XML.
+class CameraSettingIntegerList extends CameraSetting {
+    private final int mDefaultValue;
+
+    public CameraSettingIntegerList(String prefKey, int defaultValue, boolean available) {
+        mPrefKey = prefKey;
+        mDefaultValue = defaultValue;
+        mConfigurable = available;
+
+        //Set default if not present
+        if (mRestoreDefault || !mSharedPreferences.contains(mPrefKey)) {
+            mSharedPreferences.edit().putString(mPrefKey, Integer.toString(defaultValue)).apply();
+        }
+    }
+
+    public int getValue() {
+        if (!mConfigurable) {
+            return mDefaultValue;
+        }
+        try {
+            return Integer.parseInt(mSharedPreferences.getString(mPrefKey, Integer.toString(mDefaultValue)));
+        } catch (NumberFormatException e) {
+            return mDefaultValue;
+        }
+    }
+
+    @Override
+    protected void updatePreference(Preference preference) {
+        ((ListPreference) preference).setValue(Integer.toString(getValue()));
+        super.updatePreference(preference);
+    }
+}
+
+// Seconds of video, IMU and capture metadata kept while previewing and saved when recording starts.
+class CameraSettingPreRecord extends CameraSetting {
+    private static final String DEFAULT_SECONDS = "0";
+
+    public CameraSettingPreRecord() {
+        mPrefKey = "pre_record_seconds";
+        mConfigurable = true;
+
+        //Set default if not present
+        if (mRestoreDefault || !mSharedPreferences.contains(mPrefKey)) {
+            mSharedPreferences.edit().putString(mPrefKey, DEFAULT_SECONDS).apply();
+        }
+    }
+
+    public int getSeconds() {
+        try {
+            return Integer.parseInt(mSharedPreferences.getString(mPrefKey, DEFAULT_SECONDS));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    protected void updatePreference(Preference preference) {
+        ((ListPreference) preference).setValue(Integer.toString(getSeconds()));
+        super.updatePreference(preference);
+    }
+}
@@ -20,6 +20,9 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
 import android.util.Log;
 import android.util.Size;
 
@@ -27,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Camera-related utility functions.
@@ -106,8 +110,45 @@ public class CameraUtils {
     }
 
     public static int calcBitRate(int width, int height, int frame_rate) {
-        final int bitrate = (int) (BPP * frame_rate * width * height);
+        return calcBitRate(width, height, frame_rate, BPP);
+    }
+
+    public static int calcBitRate(int width, int height, int frame_rate, float bpp) {
+        final int bitrate = (int) (bpp * frame_rate * width * height);
         Log.i(TAG, "bitrate=" + bitrate);
         return bitrate;
     }
+
+    /**
+     * Finds an encoder for the given mime type, preferring hardware codecs.
+     *
+     * @return The encoder info, or null if the device has no encoder for this type.
+     */
+    public static MediaCodecInfo findEncoder(String mimeType) {
+        MediaCodecInfo fallback = null;
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(mimeType)) {
+                    continue;
+                }
+                if (isHardwareCodec(info)) {
+                    return info;
+                } else if (fallback == null) {
+                    fallback = info;
+                }
+            }
+        }
+        return fallback;
+    }
+
+    private static boolean isHardwareCodec(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= 29) {
+            return info.isHardwareAccelerated();
+        }
+        String name = info.getName().toLowerCase(Locale.US);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.");
+    }
 }
@@ -0,0 +1,201 @@
+package se.lth.math.videoimucapture;
+
+/**
+ * Live values for the on-screen info panel.
+ * <p>
+ * Each value has a single writer, the thread that produces it, and is stored with a plain
+ * volatile write: no locks or allocation on the camera, encoder and writer threads.  The
+ * UI thread calls render() at a fixed low rate, which formats all values into reused
+ * StringBuilders without String.format().
+ */
+public class CaptureHud {
+    private static final long[] POW10 = {1, 10, 100, 1000};
+
+    // Capture result processor thread.
+    private volatile float mFocalLengthPix = Float.NaN;
+    private volatile long mExposureTimeNs = -1;
+    private volatile float mCaptureFps = Float.NaN;     // NaN while not recording
+    private volatile long mCaptureDropped = 0;
+    private volatile int mResultQueueDepth = 0;
+    private volatile float mFrameIntervalMs = Float.NaN;
+    private volatile float mFrameIntervalSdMs = Float.NaN;
+    private volatile float mFocusUnlockedFraction = Float.NaN;  // recording only
+    private volatile float mMaxIntervalMs = Float.NaN;
+
+    // Encoder muxer thread.  Totals only grow, single writer so += is safe.
+    private volatile long mVideoBytes = 0;
+    private volatile int mMuxerQueueDepth = 0;
+    private volatile long mEncoderLatencyNs = 0;
+
+    // Recording writer thread.
+    private volatile long mMetaBytes = 0;
+    private volatile int mWriterQueueDepth = 0;
+    private volatile long mMetaDropped = 0;
+
+    // UI thread, read from the components before render().
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+    private float mPreviewFps;
+    private int mEncoderQueueDepth;
+    private long mEncoderDropped;
+    private float mImuRate;
+
+    // Disk rate between renders.
+    private long mLastRenderNs = 0;
+    private long mLastBytes = 0;
+    private float mDiskMBps = 0;
+
+    public void setCaptureResult(float focalLengthPix, long exposureTimeNs) {
+        mFocalLengthPix = focalLengthPix;
+        mExposureTimeNs = exposureTimeNs;
+    }
+
+    /**
+     * @param fps Achieved capture rate, NaN while not recording.
+     */
+    public void setCaptureStats(float fps, long dropped, int resultQueueDepth) {
+        mCaptureFps = fps;
+        mCaptureDropped = dropped;
+        mResultQueueDepth = resultQueueDepth;
+    }
+
+    /**
+     * Recent frame interval and its standard deviation, NaN if unknown.
+     */
+    public void setFrameInterval(float meanMs, float stdDevMs) {
+        mFrameIntervalMs = meanMs;
+        mFrameIntervalSdMs = stdDevMs;
+    }
+
+    /**
+     * Recording totals: fraction of frames with focus unlocked and the longest interval.
+     */
+    public void setFrameTiming(float focusUnlockedFraction, float maxIntervalMs) {
+        mFocusUnlockedFraction = focusUnlockedFraction;
+        mMaxIntervalMs = maxIntervalMs;
+    }
+
+    public void addVideoBytes(int bytes, int muxerQueueDepth, long encoderLatencyNs) {
+        mVideoBytes += bytes;
+        mMuxerQueueDepth = muxerQueueDepth;
+        mEncoderLatencyNs = encoderLatencyNs;
+    }
+
+    public void addMetaBytes(int bytes, int writerQueueDepth) {
+        mMetaBytes += bytes;
+        mWriterQueueDepth = writerQueueDepth;
+    }
+
+    public void addMetaDropped() {
+        mMetaDropped++;
+    }
+
+    public void setPreview(int width, int height, float fps) {
+        mPreviewWidth = width;
+        mPreviewHeight = height;
+        mPreviewFps = fps;
+    }
+
+    public void setEncoderState(int queueDepth, long dropped) {
+        mEncoderQueueDepth = queueDepth;
+        mEncoderDropped = dropped;
+    }
+
+    public void setImuRate(float rate) {
+        mImuRate = rate;
+    }
+
+    /**
+     * Formats the panel, call from the UI thread.  The builders are cleared first.  The
+     * pipeline line is only filled while recording.
+     */
+    public void render(long nowNs, boolean recording, StringBuilder preview,
+                       StringBuilder capture, StringBuilder pipeline) {
+        long bytes = mVideoBytes + mMetaBytes;
+        if (mLastRenderNs > 0 && nowNs > mLastRenderNs) {
+            mDiskMBps = (float) ((bytes - mLastBytes) * 1e3 / (nowNs - mLastRenderNs));
+        }
+        mLastRenderNs = nowNs;
+        mLastBytes = bytes;
+
+        preview.setLength(0);
+        preview.append(mPreviewWidth).append('x').append(mPreviewHeight).append('@');
+        appendFixed(preview, mPreviewFps, 1);
+        preview.append(" FPS");
+        if (recording && mEncoderDropped > 0) {
+            preview.append(" Enc drop: ").append(mEncoderDropped);
+        }
+
+        capture.setLength(0);
+        capture.append("|FL: ");
+        appendFixed(capture, mFocalLengthPix, 3);
+        capture.append("|Exp: ");
+        if (mExposureTimeNs < 0) {
+            capture.append("null");
+        } else {
+            appendFixed(capture, mExposureTimeNs / 1e6, 2);
+        }
+        capture.append(" ms|IMU: ");
+        appendFixed(capture, mImuRate, 0);
+        capture.append("Hz|");
+        float frameIntervalMs = mFrameIntervalMs;
+        if (!Float.isNaN(frameIntervalMs)) {
+            capture.append("Dt: ");
+            appendFixed(capture, frameIntervalMs, 2);
+            capture.append(" ms (sd ");
+            appendFixed(capture, mFrameIntervalSdMs, 2);
+            capture.append(")|");
+        }
+        float captureFps = mCaptureFps;
+        if (recording && !Float.isNaN(captureFps)) {
+            capture.append("Cap: ");
+            appendFixed(capture, captureFps, 0);
+            capture.append("Hz|Drop: ").append(mCaptureDropped).append('|');
+            float focusUnlocked = mFocusUnlockedFraction;
+            if (!Float.isNaN(focusUnlocked)) {
+                capture.append("Max dt: ");
+                appendFixed(capture, mMaxIntervalMs, 1);
+                capture.append(" ms|AF scan: ");
+                appendFixed(capture, focusUnlocked * 100, 0);
+                capture.append("%|");
+            }
+        }
+
+        pipeline.setLength(0);
+        if (recording) {
+            pipeline.append("|Queue enc/res/mux/wr: ").append(mEncoderQueueDepth)
+                    .append('/').append(mResultQueueDepth)
+                    .append('/').append(mMuxerQueueDepth)
+                    .append('/').append(mWriterQueueDepth)
+                    .append("|Lat: ");
+            appendFixed(pipeline, mEncoderLatencyNs / 1e6, 1);
+            pipeline.append(" ms|Disk: ");
+            appendFixed(pipeline, mDiskMBps, 1);
+            pipeline.append(" MB/s|Meta drop: ").append(mMetaDropped).append('|');
+        }
+    }
+
+    /**
+     * Appends value with a fixed number of decimals, at most 3.  NaN is shown as "-".
+     */
+    static void appendFixed(StringBuilder sb, double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append('-');
+            return;
+        }
+        long scale = POW10[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            sb.append('-');
+        }
+        sb.append(scaled / scale);
+        if (decimals > 0) {
+            long frac = scaled % scale;
+            sb.append('.');
+            for (long p = scale / 10; p > frac && p > 1; p /= 10) {
+                sb.append('0');
+            }
+            sb.append(frac);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package se.lth.math.videoimucapture;
+
+import android.graphics.Rect;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.OisSample;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Handles capture results on a worker thread instead of the camera callback thread.
+ * <p>
+ * The camera callback takes a pooled Frame with obtain(), copies the fields we use into it
+ * with Frame#set() and hands it over with queue().  Focal length estimation, metadata
+ * protobufs, capture statistics and the info panel are then handled by the consumer on
+ * this thread, so the camera thread is free for the next result.  Callback durations are
+ * kept here to check that it stays that way.
+ */
+public class CaptureResultProcessor implements Runnable {
+    private static final String TAG = "CaptureResultProcessor";
+
+    // About half a second at the highest high speed rate.
+    private static final int POOL_SIZE = 128;
+
+    public interface FrameConsumer {
+        /**
+         * Called on the worker thread, the frame is reused after returning.
+         */
+        void onCaptureFrame(Frame frame);
+    }
+
+    /**
+     * The values of one CaptureResult, as primitives.
+     */
+    public static class Frame {
+        public long mTimestampNs;
+        public int mAfState;
+        public boolean mHasFocalLength;
+        public float mFocalLengthMm;
+        public boolean mHasFocusDistance;
+        public float mFocusDistanceDiopters;
+        public final Rect mCropRegion = new Rect();
+        public boolean mHasCropRegion;
+        public long mExposureTimeNs = -1;
+        public long mFrameDurationNs = -1;
+        public long mRollingShutterSkewNs = -1;
+        public int mIso = -1;
+        public int mOisCount;
+        public long[] mOisTimeNs = new long[0];
+        public float[] mOisXShift = new float[0];
+        public float[] mOisYShift = new float[0];
+        // Where the data goes, as decided on the camera thread.
+        public boolean mRecord;
+        public boolean mPreRoll;
+        // Null for the logical camera, else the physical camera the result is from.
+        public String mPhysicalCameraId;
+
+        // Runs on the worker thread in place of the consumer, see post().
+        private Runnable mTask;
+
+        /**
+         * Copies the result, call on the camera thread.  Values the device does not report
+         * are left negative or flagged as missing.
+         */
+        public void set(CaptureResult result, int afState) {
+            mAfState = afState;
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            mTimestampNs = timestamp != null ? timestamp : 0;
+
+            Float focalLength = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+            mHasFocalLength = focalLength != null;
+            mFocalLengthMm = mHasFocalLength ? focalLength : 0;
+            Float focusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+            mHasFocusDistance = focusDistance != null;
+            mFocusDistanceDiopters = mHasFocusDistance ? focusDistance : 0;
+            Rect crop = result.get(CaptureResult.SCALER_CROP_REGION);
+            mHasCropRegion = crop != null;
+            if (mHasCropRegion) {
+                mCropRegion.set(crop);
+            }
+
+            Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            mExposureTimeNs = exposure != null ? exposure : -1;
+            Long duration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+            mFrameDurationNs = duration != null ? duration : -1;
+            Long skew = result.get(CaptureResult.SENSOR_ROLLING_SHUTTER_SKEW);
+            mRollingShutterSkewNs = skew != null ? skew : -1;
+            Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            mIso = iso != null ? iso : -1;
+
+            mOisCount = 0;
+            if (Build.VERSION.SDK_INT >= 28) {
+                OisSample[] samples = result.get(CaptureResult.STATISTICS_OIS_SAMPLES);
+                if (samples != null) {
+                    if (mOisTimeNs.length < samples.length) {
+                        mOisTimeNs = new long[samples.length];
+                        mOisXShift = new float[samples.length];
+                        mOisYShift = new float[samples.length];
+                    }
+                    for (OisSample sample : samples) {
+                        mOisTimeNs[mOisCount] = sample.getTimestamp();
+                        mOisXShift[mOisCount] = sample.getXshift();
+                        mOisYShift[mOisCount] = sample.getYshift();
+                        mOisCount++;
+                    }
+                }
+            }
+        }
+    }
+
+    private final FrameConsumer mConsumer;
+    private final BlockingQueue<Frame> mFree = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Frame> mPending = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final Frame mPoisonPill = new Frame();
+    private final Thread mThread;
+
+    // Camera thread.
+    private long mPoolMisses = 0;
+    private long mDropped = 0;
+    private long mCallbacks = 0;
+    private long mSumCallbackNs = 0;
+    private long mMaxCallbackNs = 0;
+    private int mMaxDepth = 0;
+
+    // Worker thread.
+    private long mProcessed = 0;
+    private long mSumProcessNs = 0;
+    private long mMaxProcessNs = 0;
+
+    public CaptureResultProcessor(FrameConsumer consumer) {
+        mConsumer = consumer;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mFree.add(new Frame());
+        }
+        mThread = new Thread(this, "CaptureResultProcessor");
+        mThread.start();
+    }
+
+    /**
+     * A frame to fill, call on the camera thread.
+     */
+    public Frame obtain() {
+        Frame frame = mFree.poll();
+        if (frame == null) {
+            // Worker behind, the pending queue will tell if it is stuck.
+            mPoolMisses++;
+            frame = new Frame();
+        }
+        return frame;
+    }
+
+    /**
+     * Hands the frame to the worker thread.  Never blocks, if the worker is a full pool
+     * behind the frame is dropped.
+     */
+    public void queue(Frame frame) {
+        if (!mPending.offer(frame)) {
+            if (mDropped++ == 0) {
+                Log.w(TAG, "Capture result queue full, dropping results");
+            }
+            // Back to the pool, or it shrinks for good.
+            mFree.offer(frame);
+            return;
+        }
+        mMaxDepth = Math.max(mMaxDepth, mPending.size());
+    }
+
+    /**
+     * Time spent in the camera callback for one result, call on the camera thread.
+     */
+    public void addCallbackTime(long durationNs) {
+        mCallbacks++;
+        mSumCallbackNs += durationNs;
+        mMaxCallbackNs = Math.max(mMaxCallbackNs, durationNs);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Frame frame = mPending.take();
+                if (frame == mPoisonPill) {
+                    return;
+                }
+                if (frame.mTask != null) {
+                    frame.mTask.run();
+                    continue;
+                }
+                long startNs = System.nanoTime();
+                mConsumer.onCaptureFrame(frame);
+                long processNs = System.nanoTime() - startNs;
+                mProcessed++;
+                mSumProcessNs += processNs;
+                mMaxProcessNs = Math.max(mMaxProcessNs, processNs);
+                mFree.offer(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the task on the worker thread after the frames queued so far.  Unlike frames it
+     * is never dropped, so the caller waits for room if the queue is full.
+     */
+    public void post(Runnable task) {
+        Frame fence = new Frame();
+        fence.mTask = task;
+        try {
+            mPending.put(fence);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted queueing capture result task");
+        }
+    }
+
+    /**
+     * Handles the frames still queued and stops the thread.  The camera must not queue
+     * more frames.
+     */
+    public void stop() {
+        try {
+            mPending.put(mPoisonPill);
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting for capture result thread");
+        }
+        logStats();
+    }
+
+    public void resetStats() {
+        mPoolMisses = mDropped = mCallbacks = mSumCallbackNs = mMaxCallbackNs = 0;
+        mMaxDepth = 0;
+        mProcessed = mSumProcessNs = mMaxProcessNs = 0;
+    }
+
+    public void logStats() {
+        if (mCallbacks == 0) {
+            return;
+        }
+        Log.i(TAG, String.format("%d capture callbacks: mean %.3f ms, max %.3f ms. " +
+                        "%d processed: mean %.3f ms, max %.3f ms. " +
+                        "Queue max %d, %d pool misses, %d dropped",
+                mCallbacks, getMeanCallbackNs() / 1e6, mMaxCallbackNs / 1e6,
+                mProcessed, getMeanProcessNs() / 1e6, mMaxProcessNs / 1e6,
+                mMaxDepth, mPoolMisses, mDropped));
+    }
+
+    public long getMeanCallbackNs() {
+        return mCallbacks > 0 ? mSumCallbackNs / mCallbacks : 0;
+    }
+
+    public long getMaxCallbackNs() {
+        return mMaxCallbackNs;
+    }
+
+    public long getMeanProcessNs() {
+        return mProcessed > 0 ? mSumProcessNs / mProcessed : 0;
+    }
+
+    public long getMaxProcessNs() {
+        return mMaxProcessNs;
+    }
+
+    public int getQueueDepth() {
+        return mPending.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    public long getDroppedResults() {
+        return mDropped;
+    }
+}
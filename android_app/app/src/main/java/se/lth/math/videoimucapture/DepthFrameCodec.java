@@ -0,0 +1,69 @@
+package se.lth.math.videoimucapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lossless delta coding of DEPTH16 frames.
+ * <p>
+ * Each pixel is stored as the difference to its left neighbour, the first pixel of a row
+ * as the difference to zero.  Differences are zigzag mapped to unsigned and written as
+ * LEB128 varints, so the smooth surfaces that make up most of a depth map take one byte
+ * per pixel instead of two.  The confidence bits of DEPTH16 are kept as they are.
+ * <p>
+ * Nothing is allocated per frame, the caller owns all buffers.
+ */
+public class DepthFrameCodec {
+
+    // A zigzag mapped 17 bit difference needs at most three varint bytes.
+    private static final int MAX_BYTES_PER_PIXEL = 3;
+
+    private DepthFrameCodec() {
+    }
+
+    /**
+     * Worst case encoded size of a frame, in bytes.
+     */
+    public static int maxEncodedSize(int width, int height) {
+        return MAX_BYTES_PER_PIXEL * width * height;
+    }
+
+    /**
+     * Appends one row of width pixels to dst.
+     */
+    public static void encodeRow(short[] row, int width, ByteBuffer dst) {
+        int previous = 0;
+        for (int i = 0; i < width; i++) {
+            int value = row[i] & 0xffff;
+            int delta = value - previous;
+            previous = value;
+            int zigzag = (delta << 1) ^ (delta >> 31);
+            while ((zigzag & ~0x7f) != 0) {
+                dst.put((byte) ((zigzag & 0x7f) | 0x80));
+                zigzag >>>= 7;
+            }
+            dst.put((byte) zigzag);
+        }
+    }
+
+    /**
+     * Decodes width * height pixels from src into dst, row by row.
+     */
+    public static void decode(ByteBuffer src, int width, int height, short[] dst) {
+        int index = 0;
+        for (int row = 0; row < height; row++) {
+            int previous = 0;
+            for (int col = 0; col < width; col++) {
+                int zigzag = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = src.get();
+                    zigzag |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                dst[index++] = (short) previous;
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package se.lth.math.videoimucapture;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the most recent encoded frames in preallocated memory, for pre-record.
+ * <p>
+ * Frame data is copied into one direct buffer used as a byte ring, and the per frame
+ * fields are kept in parallel arrays, so nothing is allocated per frame.  The oldest frames
+ * are evicted when the ring holds more than the retention time, or when a new frame does
+ * not fit.  Retention should cover the pre-record time plus one I-frame interval, so that
+ * a flush starting at the oldest key frame still covers the requested time.
+ * <p>
+ * Not thread-safe, VideoEncoderCore serializes access.
+ */
+public class EncodedFrameRing {
+    private static final String TAG = "EncodedFrameRing";
+
+    public interface FrameConsumer {
+        void onFrame(ByteBuffer data, MediaCodec.BufferInfo info, long captureToOutputNs);
+    }
+
+    private final ByteBuffer mData;
+    private final long mRetentionUs;
+
+    // One entry per frame, from mTail (oldest) to mHead.
+    private final int[] mOffset;
+    private final int[] mSize;
+    private final int[] mFlags;
+    private final long[] mPtsUs;
+    private final long[] mCaptureToOutputNs;
+    private int mHead = 0;
+    private int mTail = 0;
+    private int mCount = 0;
+    private int mWritePos = 0;
+    private long mEvictedFrames = 0;
+
+    private final MediaCodec.BufferInfo mFlushInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param byteCapacity Bytes of encoded data to hold, e.g. bit rate times retention.
+     * @param maxFrames    Frames to hold, e.g. frame rate times retention.
+     * @param retentionUs  Frames older than this, relative to the newest, are evicted.
+     */
+    public EncodedFrameRing(int byteCapacity, int maxFrames, long retentionUs) {
+        mData = ByteBuffer.allocateDirect(byteCapacity);
+        mRetentionUs = retentionUs;
+        mOffset = new int[maxFrames];
+        mSize = new int[maxFrames];
+        mFlags = new int[maxFrames];
+        mPtsUs = new long[maxFrames];
+        mCaptureToOutputNs = new long[maxFrames];
+    }
+
+    /**
+     * Copies an encoded frame into the ring, evicting old frames as needed.
+     */
+    public void add(ByteBuffer encodedData, MediaCodec.BufferInfo info, long captureToOutputNs) {
+        int size = info.size;
+        if (size > mData.capacity()) {
+            Log.w(TAG, "Frame of " + size + " bytes larger than ring, clearing");
+            clear();
+            return;
+        }
+
+        // Frames are stored contiguously, wrap to the start if the end is too small.
+        int start = mWritePos;
+        if (start + size > mData.capacity()) {
+            // Frames between the write position and the end are the oldest ones.
+            while (mCount > 0 && mOffset[mTail] >= mWritePos) {
+                evictOldest();
+            }
+            start = 0;
+        }
+        while (mCount > 0 && (overlapsOldest(start, size) || mCount == mOffset.length
+                || info.presentationTimeUs - mPtsUs[mTail] > mRetentionUs)) {
+            evictOldest();
+        }
+
+        encodedData.position(info.offset);
+        encodedData.limit(info.offset + size);
+        mData.limit(start + size);
+        mData.position(start);
+        mData.put(encodedData);
+
+        mOffset[mHead] = start;
+        mSize[mHead] = size;
+        mFlags[mHead] = info.flags;
+        mPtsUs[mHead] = info.presentationTimeUs;
+        mCaptureToOutputNs[mHead] = captureToOutputNs;
+        mHead = (mHead + 1) % mOffset.length;
+        mCount++;
+        mWritePos = start + size;
+    }
+
+    // True if [start, start + size) overwrites bytes of the oldest frame still held.
+    private boolean overlapsOldest(int start, int size) {
+        int oldStart = mOffset[mTail];
+        int oldEnd = oldStart + mSize[mTail];
+        return start < oldEnd && oldStart < start + size;
+    }
+
+    private void evictOldest() {
+        mTail = (mTail + 1) % mOffset.length;
+        mCount--;
+        mEvictedFrames++;
+    }
+
+    /**
+     * Hands all frames from the oldest key frame onwards to the consumer, in order, and
+     * empties the ring.  Frames before the first key frame cannot be decoded and are skipped.
+     *
+     * @return The number of frames passed to the consumer.
+     */
+    public int flush(FrameConsumer consumer) {
+        while (mCount > 0 && (mFlags[mTail] & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+            evictOldest();
+        }
+        int flushed = 0;
+        while (mCount > 0) {
+            int idx = mTail;
+            mData.limit(mOffset[idx] + mSize[idx]);
+            mData.position(mOffset[idx]);
+            mFlushInfo.set(mOffset[idx], mSize[idx], mPtsUs[idx], mFlags[idx]);
+            consumer.onFrame(mData, mFlushInfo, mCaptureToOutputNs[idx]);
+            mTail = (idx + 1) % mOffset.length;
+            mCount--;
+            flushed++;
+        }
+        clear();
+        return flushed;
+    }
+
+    public void clear() {
+        mHead = mTail = mCount = 0;
+        mWritePos = 0;
+    }
+
+    public int getFrameCount() {
+        return mCount;
+    }
+
+    public long getEvictedFrames() {
+        return mEvictedFrames;
+    }
+}
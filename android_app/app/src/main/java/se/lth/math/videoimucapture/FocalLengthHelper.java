@@ -20,7 +20,9 @@ public class FocalLengthHelper {
     private static final String TAG = "FocalLengthHelper";
 
     private float[] mIntrinsic;
-    private float[] mTransformedIntrinsic;
+    private float[] mTransformedIntrinsic; // cached by getTransformedIntrinsic()
+    // Scale and sensor orientation rotation of OIS shifts, row major 2x2.
+    private final float[] mOisMatrix = new float[4];
     private float[] mDistortion;
     private Float mFocalLength;
     private Float mFocusDistance;
@@ -66,6 +68,35 @@ public class FocalLengthHelper {
         } else {
             mScale = (float) mImageSize.getHeight() / mPreCorrectionSize.height();
         }
+        updateTransform();
+    }
+
+    // Everything that only depends on the camera and image size, once per configuration.
+    private void updateTransform() {
+        mTransformedIntrinsic = null;
+        float s = mScale;
+        switch (mSensorOrientation) {
+            default:
+            case 0:
+                setOisMatrix(s, 0, 0, s);
+                break;
+            case 90:
+                setOisMatrix(0, -s, s, 0);
+                break;
+            case 180:
+                setOisMatrix(-s, 0, 0, -s);
+                break;
+            case 270:
+                setOisMatrix(0, s, -s, 0);
+                break;
+        }
+    }
+
+    private void setOisMatrix(float m00, float m01, float m10, float m11) {
+        mOisMatrix[0] = m00;
+        mOisMatrix[1] = m01;
+        mOisMatrix[2] = m10;
+        mOisMatrix[3] = m11;
     }
 
     // compute the distance between the lens and the imaging sensor, i
@@ -145,7 +176,15 @@ public class FocalLengthHelper {
     // Scale intrinsic parameters to image coordinates instead of sensor array coordinates.
     // Apply rotation in sensor coordinate system to get to device coordinate system,
     // since we store the image in device coordinate system orientation.
+    // Computed once per configuration, the returned array must not be modified.
     public float[] getTransformedIntrinsic() {
+        if (mTransformedIntrinsic == null) {
+            mTransformedIntrinsic = computeTransformedIntrinsic();
+        }
+        return mTransformedIntrinsic;
+    }
+
+    private float[] computeTransformedIntrinsic() {
         float scale = getScale();
         float[] transformedIntrinsic;
         float skew;
@@ -194,32 +233,92 @@ public class FocalLengthHelper {
 
     @RequiresApi(api = Build.VERSION_CODES.P)
     public float[] transformOISSample(OisSample sample) {
-        float[] xy_shift;
-        float scale = getScale();
+        return transformOISShift(sample.getXshift(), sample.getYshift());
+    }
+
+    // Same as transformOISSample(), for shifts already copied out of the sample.
+    public float[] transformOISShift(float xShift, float yShift) {
+        return new float[]{
+                mOisMatrix[0] * xShift + mOisMatrix[1] * yShift,
+                mOisMatrix[2] * xShift + mOisMatrix[3] * yShift};
+    }
+
+    // Transforms the first count shifts into out as x0, y0, x1, y1, ..., out must hold
+    // 2 * count values.  No allocation, for all OIS samples of a frame.
+    public void transformOISShifts(float[] xShift, float[] yShift, int count, float[] out) {
+        float m00 = mOisMatrix[0], m01 = mOisMatrix[1], m10 = mOisMatrix[2], m11 = mOisMatrix[3];
+        for (int i = 0; i < count; i++) {
+            float x = xShift[i];
+            float y = yShift[i];
+            out[2 * i] = m00 * x + m01 * y;
+            out[2 * i + 1] = m10 * x + m11 * y;
+        }
+    }
+
+    // Intrinsics of this frame in the stored image, written to out as fx, fy, cx, cy.
+    // Combines getFocalLengthPixel() of the frame, the crop region and the mean of the count
+    // OIS shifts (active array pixels, moving the principal point).  The principal point
+    // comes from the lens calibration if there is one, otherwise the crop center.
+    // Returns false if the focal length or crop region is unknown.
+    public boolean getEffectiveIntrinsic(Float focalLengthPixel, float[] oisXShift,
+                                         float[] oisYShift, int count, float[] out) {
+        if (focalLengthPixel == null || mCropRegion == null || mImageSize == null) {
+            return false;
+        }
+        float width = mImageSize.getWidth();
+        float height = mImageSize.getHeight();
+        float cropAspect = (float) mCropRegion.width() / mCropRegion.height();
+        float cropScale = width / height >= cropAspect ?
+                width / mCropRegion.width() : height / mCropRegion.height();
+
+        // Principal point in active array coordinates.
+        float px = mCropRegion.exactCenterX();
+        float py = mCropRegion.exactCenterY();
+        float aspect = 1.f;
+        if (mIntrinsic != null && abs(mIntrinsic[0]) > 0 && mPreCorrectionSize != null &&
+                mActiveSize != null) {
+            px = mIntrinsic[2] + mPreCorrectionSize.left - mActiveSize.left;
+            py = mIntrinsic[3] + mPreCorrectionSize.top - mActiveSize.top;
+            aspect = mIntrinsic[1] / mIntrinsic[0];
+        }
+        if (count > 0) {
+            float sumX = 0, sumY = 0;
+            for (int i = 0; i < count; i++) {
+                sumX += oisXShift[i];
+                sumY += oisYShift[i];
+            }
+            px += sumX / count;
+            py += sumY / count;
+        }
+
+        // Sensor oriented image, then rotated as in getTransformedIntrinsic().
+        float fx = focalLengthPixel;
+        float fy = aspect * focalLengthPixel;
+        float cx = (px - mCropRegion.exactCenterX()) * cropScale + width / 2;
+        float cy = (py - mCropRegion.exactCenterY()) * cropScale + height / 2;
         switch (mSensorOrientation) {
             default:
             case 0:
-                xy_shift =  new float[]{
-                        scale*sample.getXshift(),
-                        scale*sample.getYshift()};
+                setIntrinsic(out, fx, fy, cx, cy);
                 break;
             case 90:
-                xy_shift =  new float[]{
-                        -scale*sample.getYshift(),
-                        scale*sample.getXshift()};
+                setIntrinsic(out, fy, fx, height - cy - 1, cx);
                 break;
             case 180:
-                xy_shift =  new float[]{
-                        -scale*sample.getXshift(),
-                        -scale*sample.getYshift()};
+                setIntrinsic(out, fx, fy, width - cx - 1, height - cy - 1);
                 break;
             case 270:
-                xy_shift =  new float[]{
-                        scale*sample.getYshift(),
-                        -scale*sample.getXshift()};
+                setIntrinsic(out, fy, fx, cy, width - cx - 1);
                 break;
         }
-        return xy_shift;
+        return true;
+    }
+
+    private static void setIntrinsic(float[] out, float fx, float fy, float cx, float cy) {
+        out[0] = fx;
+        out[1] = fy;
+        out[2] = cx;
+        out[3] = cy;
     }
 
 }
@@ -0,0 +1,511 @@
+package se.lth.math.videoimucapture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes an H.264 stream to a fragmented MP4 file.
+ * <p>
+ * MediaMuxer writes the sample tables in the moov box on stop(), so the file is unplayable
+ * if the app dies while recording.  Here the moov box only holds the codec configuration,
+ * and the samples follow as one moof/mdat fragment per GOP.  Each fragment goes to the file
+ * as soon as the next key frame arrives, so everything up to the last complete GOP survives
+ * a crash and the file can be read while recording continues.
+ * <p>
+ * Input is what MediaCodec produces: Annex-B NAL units with start codes, parameter sets in
+ * the codec config buffer.  Samples are stored with 4 byte length prefixes, parameter sets
+ * in the sample data are moved to the avcC box.  Timestamps are in microseconds and must
+ * increase, as they do for encoders without B-frames.
+ * <p>
+ * Plain Java without Android dependencies, so it can be tested on the host.  Not thread-safe.
+ */
+public class FragmentedMp4Muxer implements Closeable {
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int TRACK_TIMESCALE = 1000000;  // pts in microseconds
+    private static final int TRACK_ID = 1;
+    private static final long DEFAULT_DURATION_US = 33333;
+
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+
+    // ISO/IEC 14496-12 sample flags
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;      // depends on no other
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;  // depends on others, non sync
+
+    private static final int TRUN_FLAGS = 0x000701;  // data offset, duration, size, flags
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+
+    private final FileChannel mChannel;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+
+    private byte[] mSps;
+    private byte[] mPps;
+    private boolean mInitWritten = false;
+    private long mFirstPtsUs = -1;
+    private long mLastDurationUs = DEFAULT_DURATION_US;
+    private int mSequenceNumber = 0;
+    private long mBytesWritten = 0;
+
+    // Current fragment, grown when needed and reused.
+    private ByteBuffer mSampleData = ByteBuffer.allocate(1 << 20);
+    private int[] mSampleSize = new int[64];
+    private long[] mSamplePtsUs = new long[64];
+    private boolean[] mSampleSync = new boolean[64];
+    private int mSampleCount = 0;
+
+    // Box assembly, big endian as all of MP4.
+    private ByteBuffer mBox = ByteBuffer.allocate(4096);
+    private final int[] mBoxStarts = new int[16];
+    private int mBoxDepth = 0;
+
+    /**
+     * @param channel         Output, closed by close().
+     * @param rotationDegrees Rotation for players to apply, 0, 90, 180 or 270.
+     */
+    public FragmentedMp4Muxer(FileChannel channel, int width, int height, int rotationDegrees) {
+        mChannel = channel;
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotationDegrees;
+    }
+
+    /**
+     * Takes the SPS and PPS from a codec config buffer, such as csd-0 and csd-1 of the
+     * encoder output format.  Must be called before the first sample unless the key frames
+     * carry the parameter sets.
+     */
+    public void setCodecConfig(ByteBuffer annexB) {
+        int pos = annexB.position();
+        int limit = annexB.limit();
+        int nalStart = findNalStart(annexB, pos, limit);
+        while (nalStart < limit) {
+            int nalEnd = findNalEnd(annexB, nalStart, limit);
+            takeParameterSet(annexB, nalStart, nalEnd);
+            nalStart = findNalStart(annexB, nalEnd, limit);
+        }
+    }
+
+    /**
+     * Adds one encoded frame, writing the previous fragment to the file on key frames.
+     * Frames before the first key frame are dropped, they cannot be decoded.
+     */
+    public void writeSampleData(ByteBuffer annexB, long ptsUs, boolean keyFrame) throws IOException {
+        if (mFirstPtsUs < 0) {
+            if (!keyFrame) {
+                return;
+            }
+            mFirstPtsUs = ptsUs;
+        }
+        if (keyFrame && mSampleCount > 0) {
+            writeFragment(ptsUs);
+        }
+
+        int pos = annexB.position();
+        int limit = annexB.limit();
+        int sampleStart = mSampleData.position();
+        int nalStart = findNalStart(annexB, pos, limit);
+        if (nalStart == limit && limit > pos) {
+            // No start code, take the buffer as a single NAL unit.
+            nalStart = pos;
+        }
+        while (nalStart < limit) {
+            int nalEnd = findNalEnd(annexB, nalStart, limit);
+            int type = annexB.get(nalStart) & 0x1f;
+            if (type == NAL_SPS || type == NAL_PPS) {
+                takeParameterSet(annexB, nalStart, nalEnd);
+            } else if (type != NAL_AUD) {
+                ensureSampleData(4 + nalEnd - nalStart);
+                mSampleData.putInt(nalEnd - nalStart);
+                annexB.limit(nalEnd);
+                annexB.position(nalStart);
+                mSampleData.put(annexB);
+                annexB.limit(limit);
+            }
+            nalStart = findNalStart(annexB, nalEnd, limit);
+        }
+        annexB.position(pos);
+
+        if (!mInitWritten) {
+            writeInitSegment();
+        }
+        ensureSampleSlots();
+        mSampleSize[mSampleCount] = mSampleData.position() - sampleStart;
+        mSamplePtsUs[mSampleCount] = ptsUs;
+        mSampleSync[mSampleCount] = keyFrame;
+        mSampleCount++;
+    }
+
+    /**
+     * Writes the last fragment and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mSampleCount > 0) {
+                writeFragment(mSamplePtsUs[mSampleCount - 1] + mLastDurationUs);
+            }
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public int getFragmentCount() {
+        return mSequenceNumber;
+    }
+
+    // ----- Annex-B parsing -----
+
+    // Returns the first byte after the next 00 00 01 start code at or after from, or limit.
+    private static int findNalStart(ByteBuffer buf, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                return i + 3;
+            }
+        }
+        return limit;
+    }
+
+    // Returns the end of the NAL unit starting at nalStart, without trailing zeros.
+    private static int findNalEnd(ByteBuffer buf, int nalStart, int limit) {
+        int end = limit;
+        for (int i = nalStart; i + 2 < limit; i++) {
+            if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                end = i;
+                break;
+            }
+        }
+        while (end > nalStart && buf.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private void takeParameterSet(ByteBuffer buf, int start, int end) {
+        if (end <= start) {
+            return;
+        }
+        int type = buf.get(start) & 0x1f;
+        if (type != NAL_SPS && type != NAL_PPS) {
+            return;
+        }
+        byte[] nal = new byte[end - start];
+        for (int i = 0; i < nal.length; i++) {
+            nal[i] = buf.get(start + i);
+        }
+        if (type == NAL_SPS) {
+            if (mSps == null) mSps = nal;
+        } else {
+            if (mPps == null) mPps = nal;
+        }
+    }
+
+    private void ensureSampleData(int extra) {
+        if (mSampleData.remaining() >= extra) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(mSampleData.capacity() * 2,
+                mSampleData.position() + extra));
+        mSampleData.flip();
+        grown.put(mSampleData);
+        mSampleData = grown;
+    }
+
+    private void ensureSampleSlots() {
+        if (mSampleCount < mSampleSize.length) {
+            return;
+        }
+        int n = mSampleSize.length * 2;
+        mSampleSize = Arrays.copyOf(mSampleSize, n);
+        mSamplePtsUs = Arrays.copyOf(mSamplePtsUs, n);
+        mSampleSync = Arrays.copyOf(mSampleSync, n);
+    }
+
+    // ----- Box writing -----
+
+    private void ensureBox(int extra) {
+        if (mBox.remaining() >= extra) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(mBox.capacity() * 2, mBox.position() + extra));
+        mBox.flip();
+        grown.put(mBox);
+        mBox = grown;
+    }
+
+    private void startBox(String type) {
+        ensureBox(8);
+        mBoxStarts[mBoxDepth++] = mBox.position();
+        mBox.putInt(0);
+        mBox.put(type.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void startFullBox(String type, int version, int flags) {
+        startBox(type);
+        putInt((version << 24) | (flags & 0xffffff));
+    }
+
+    private void endBox() {
+        int start = mBoxStarts[--mBoxDepth];
+        mBox.putInt(start, mBox.position() - start);
+    }
+
+    private void putInt(int value) {
+        ensureBox(4);
+        mBox.putInt(value);
+    }
+
+    private void putLong(long value) {
+        ensureBox(8);
+        mBox.putLong(value);
+    }
+
+    private void putShort(int value) {
+        ensureBox(2);
+        mBox.putShort((short) value);
+    }
+
+    private void putByte(int value) {
+        ensureBox(1);
+        mBox.put((byte) value);
+    }
+
+    private void putBytes(byte[] bytes) {
+        ensureBox(bytes.length);
+        mBox.put(bytes);
+    }
+
+    private void putZeros(int count) {
+        ensureBox(count);
+        for (int i = 0; i < count; i++) {
+            mBox.put((byte) 0);
+        }
+    }
+
+    // Transformation matrix for the rotation, as MediaMuxer#setOrientationHint() writes it.
+    private void putMatrix() {
+        int one = 0x00010000;
+        int a = one, b = 0, c = 0, d = one;
+        switch (mRotation) {
+            case 90:
+                a = 0; b = one; c = -one; d = 0;
+                break;
+            case 180:
+                a = -one; d = -one;
+                break;
+            case 270:
+                a = 0; b = -one; c = one; d = 0;
+                break;
+        }
+        putInt(a); putInt(b); putInt(0);
+        putInt(c); putInt(d); putInt(0);
+        putInt(0); putInt(0); putInt(0x40000000);
+    }
+
+    private void flushBox() throws IOException {
+        mBox.flip();
+        writeFully(mBox);
+        mBox.clear();
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mBytesWritten += mChannel.write(buf);
+        }
+    }
+
+    private void writeInitSegment() throws IOException {
+        if (mSps == null || mPps == null) {
+            throw new IllegalStateException("No SPS/PPS before the first key frame");
+        }
+        startBox("ftyp");
+        putBytes("isom".getBytes(StandardCharsets.US_ASCII));
+        putInt(0x200);
+        for (String brand : new String[]{"isom", "iso6", "avc1", "mp41"}) {
+            putBytes(brand.getBytes(StandardCharsets.US_ASCII));
+        }
+        endBox();
+
+        startBox("moov");
+        startFullBox("mvhd", 0, 0);
+        putInt(0);                  // creation time
+        putInt(0);                  // modification time
+        putInt(MOVIE_TIMESCALE);
+        putInt(0);                  // duration, given by the fragments
+        putInt(0x00010000);         // rate 1.0
+        putShort(0x0100);           // volume 1.0
+        putZeros(10);
+        putMatrix();
+        putZeros(24);
+        putInt(TRACK_ID + 1);       // next track id
+        endBox();
+
+        startBox("trak");
+        startFullBox("tkhd", 0, 0x3);  // enabled, in movie
+        putInt(0);
+        putInt(0);
+        putInt(TRACK_ID);
+        putInt(0);
+        putInt(0);                  // duration
+        putZeros(8);
+        putShort(0);                // layer
+        putShort(0);                // alternate group
+        putShort(0);                // volume, video track
+        putShort(0);
+        putMatrix();
+        putInt(mWidth << 16);
+        putInt(mHeight << 16);
+        endBox();
+
+        startBox("mdia");
+        startFullBox("mdhd", 0, 0);
+        putInt(0);
+        putInt(0);
+        putInt(TRACK_TIMESCALE);
+        putInt(0);
+        putShort(0x55c4);           // language "und"
+        putShort(0);
+        endBox();
+
+        startFullBox("hdlr", 0, 0);
+        putInt(0);
+        putBytes("vide".getBytes(StandardCharsets.US_ASCII));
+        putZeros(12);
+        putBytes("VideoHandle\0".getBytes(StandardCharsets.US_ASCII));
+        endBox();
+
+        startBox("minf");
+        startFullBox("vmhd", 0, 1);
+        putZeros(8);
+        endBox();
+        startBox("dinf");
+        startFullBox("dref", 0, 0);
+        putInt(1);
+        startFullBox("url ", 0, 1);  // media in same file
+        endBox();
+        endBox();
+        endBox();
+
+        startBox("stbl");
+        startFullBox("stsd", 0, 0);
+        putInt(1);
+        writeAvc1();
+        endBox();
+        // Sample tables are empty, samples are described by the fragments.
+        startFullBox("stts", 0, 0);
+        putInt(0);
+        endBox();
+        startFullBox("stsc", 0, 0);
+        putInt(0);
+        endBox();
+        startFullBox("stsz", 0, 0);
+        putInt(0);
+        putInt(0);
+        endBox();
+        startFullBox("stco", 0, 0);
+        putInt(0);
+        endBox();
+        endBox(); // stbl
+        endBox(); // minf
+        endBox(); // mdia
+        endBox(); // trak
+
+        startBox("mvex");
+        startFullBox("trex", 0, 0);
+        putInt(TRACK_ID);
+        putInt(1);                  // sample description index
+        putInt(0);                  // default duration
+        putInt(0);                  // default size
+        putInt(0);                  // default flags
+        endBox();
+        endBox();
+        endBox(); // moov
+
+        flushBox();
+        mInitWritten = true;
+    }
+
+    private void writeAvc1() {
+        startBox("avc1");
+        putZeros(6);
+        putShort(1);                // data reference index
+        putZeros(16);
+        putShort(mWidth);
+        putShort(mHeight);
+        putInt(0x00480000);         // 72 dpi
+        putInt(0x00480000);
+        putInt(0);
+        putShort(1);                // frame count
+        putZeros(32);               // compressor name
+        putShort(0x0018);           // depth
+        putShort(0xffff);
+
+        startBox("avcC");
+        putByte(1);                 // configuration version
+        putByte(mSps[1]);           // profile
+        putByte(mSps[2]);           // profile compatibility
+        putByte(mSps[3]);           // level
+        putByte(0xfc | 3);          // 4 byte NAL lengths
+        putByte(0xe0 | 1);          // one SPS
+        putShort(mSps.length);
+        putBytes(mSps);
+        putByte(1);                 // one PPS
+        putShort(mPps.length);
+        putBytes(mPps);
+        endBox();
+        endBox();
+    }
+
+    // Writes the buffered samples as moof and mdat, nextPtsUs ends the last sample.
+    private void writeFragment(long nextPtsUs) throws IOException {
+        mSequenceNumber++;
+        startBox("moof");
+        startFullBox("mfhd", 0, 0);
+        putInt(mSequenceNumber);
+        endBox();
+
+        startBox("traf");
+        startFullBox("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+        putInt(TRACK_ID);
+        endBox();
+        startFullBox("tfdt", 1, 0);
+        putLong(mSamplePtsUs[0] - mFirstPtsUs);
+        endBox();
+        startFullBox("trun", 0, TRUN_FLAGS);
+        putInt(mSampleCount);
+        int dataOffsetPos = mBox.position();
+        putInt(0);                  // data offset, patched below
+        for (int i = 0; i < mSampleCount; i++) {
+            long endUs = i + 1 < mSampleCount ? mSamplePtsUs[i + 1] : nextPtsUs;
+            long durationUs = Math.max(endUs - mSamplePtsUs[i], 1);
+            putInt((int) durationUs);
+            putInt(mSampleSize[i]);
+            putInt(mSampleSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            mLastDurationUs = durationUs;
+        }
+        endBox(); // trun
+        endBox(); // traf
+        endBox(); // moof
+
+        // Sample data starts after the moof and the mdat header.
+        mBox.putInt(dataOffsetPos, mBox.position() + 8);
+        putInt(8 + mSampleData.position());
+        putBytes("mdat".getBytes(StandardCharsets.US_ASCII));
+        flushBox();
+
+        mSampleData.flip();
+        writeFully(mSampleData);
+        mSampleData.clear();
+        mSampleCount = 0;
+    }
+}
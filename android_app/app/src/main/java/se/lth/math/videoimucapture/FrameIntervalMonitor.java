@@ -0,0 +1,73 @@
+package se.lth.math.videoimucapture;
+
+/**
+ * Mean and standard deviation of the interval between sensor timestamps, over the last
+ * WINDOW_SIZE frames.
+ * <p>
+ * VIO expects frames at a constant rate, the standard deviation shows how far from that
+ * the camera is.  Sums are kept as integers so the window never drifts, intervals are
+ * clamped to MAX_INTERVAL_NS, about 380 ms, so a full window of squares fits in a long.  add() is O(1) and
+ * allocation free, call it from one thread.
+ */
+public class FrameIntervalMonitor {
+    public static final int WINDOW_SIZE = 64;
+    static final long MAX_INTERVAL_NS = (long) Math.sqrt(Long.MAX_VALUE / WINDOW_SIZE);
+
+    private final long[] mIntervals = new long[WINDOW_SIZE];
+    private int mHead = 0;
+    private int mCount = 0;
+    private long mSum = 0;
+    private long mSumSquares = 0;
+    private long mLastTimestampNs = -1;
+
+    public void reset() {
+        mHead = mCount = 0;
+        mSum = mSumSquares = 0;
+        mLastTimestampNs = -1;
+    }
+
+    /**
+     * Adds a frame, timestamps must increase.  Repeated or older timestamps are ignored.
+     */
+    public void add(long timestampNs) {
+        if (mLastTimestampNs >= 0 && timestampNs > mLastTimestampNs) {
+            long interval = Math.min(timestampNs - mLastTimestampNs, MAX_INTERVAL_NS);
+            if (mCount == WINDOW_SIZE) {
+                long old = mIntervals[mHead];
+                mSum -= old;
+                mSumSquares -= old * old;
+            } else {
+                mCount++;
+            }
+            mIntervals[mHead] = interval;
+            mHead = (mHead + 1) % WINDOW_SIZE;
+            mSum += interval;
+            mSumSquares += interval * interval;
+        }
+        if (timestampNs > mLastTimestampNs) {
+            mLastTimestampNs = timestampNs;
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * NaN before the first interval.
+     */
+    public double getMeanNs() {
+        return mCount > 0 ? (double) mSum / mCount : Double.NaN;
+    }
+
+    /**
+     * Population standard deviation, NaN before the first interval.
+     */
+    public double getStdDevNs() {
+        if (mCount == 0) {
+            return Double.NaN;
+        }
+        double mean = (double) mSum / mCount;
+        return Math.sqrt(Math.max(0, (double) mSumSquares / mCount - mean * mean));
+    }
+}
@@ -0,0 +1,154 @@
+package se.lth.math.videoimucapture;
+
+import java.util.Arrays;
+
+/**
+ * Frame timing over a whole recording, written as FrameTimingSummary in the capture summary.
+ * <p>
+ * Keeps a histogram of the interval between sensor timestamps, counts frames lost in gaps of
+ * more than one and a half nominal frame duration and counts frames captured while auto
+ * focus was scanning.  Unlike FrameIntervalMonitor nothing is forgotten, the mean and
+ * variance use Welford's update so long sessions stay accurate.  add() is O(1) and
+ * allocation free, call it from one thread.
+ */
+public class FrameTimingAnalyzer {
+    public static final long BIN_WIDTH_NS = 500000L;
+    // Last bin also holds all longer intervals, 100 ms.
+    public static final int BIN_COUNT = 200;
+
+    private final long[] mHistogram = new long[BIN_COUNT];
+    private long mFrameCount = 0;
+    private long mIntervalCount = 0;
+    private double mMeanNs = 0;
+    private double mM2 = 0;
+    private long mMinIntervalNs = Long.MAX_VALUE;
+    private long mMaxIntervalNs = 0;
+    private long mDroppedFrames = 0;
+    private long mGapCount = 0;
+    private long mFocusUnlockedFrames = 0;
+    private long mNominalFrameDurationNs = 0;
+    private long mLastTimestampNs = -1;
+
+    public void reset() {
+        Arrays.fill(mHistogram, 0);
+        mFrameCount = mIntervalCount = 0;
+        mMeanNs = mM2 = 0;
+        mMinIntervalNs = Long.MAX_VALUE;
+        mMaxIntervalNs = 0;
+        mDroppedFrames = mGapCount = mFocusUnlockedFrames = 0;
+        mNominalFrameDurationNs = 0;
+        mLastTimestampNs = -1;
+    }
+
+    /**
+     * Adds a frame, timestamps must increase.  Repeated or older timestamps are ignored.
+     *
+     * @param frameDurationNs SENSOR_FRAME_DURATION, non positive if unknown.  The last known
+     *                        duration is used for drop detection.
+     */
+    public void add(long timestampNs, long frameDurationNs, boolean focusLocked) {
+        if (mLastTimestampNs >= 0 && timestampNs <= mLastTimestampNs) {
+            return;
+        }
+        if (frameDurationNs > 0) {
+            mNominalFrameDurationNs = frameDurationNs;
+        }
+        mFrameCount++;
+        if (!focusLocked) {
+            mFocusUnlockedFrames++;
+        }
+        if (mLastTimestampNs >= 0) {
+            addInterval(timestampNs - mLastTimestampNs);
+        }
+        mLastTimestampNs = timestampNs;
+    }
+
+    private void addInterval(long intervalNs) {
+        mIntervalCount++;
+        double delta = intervalNs - mMeanNs;
+        mMeanNs += delta / mIntervalCount;
+        mM2 += delta * (intervalNs - mMeanNs);
+        mMinIntervalNs = Math.min(mMinIntervalNs, intervalNs);
+        mMaxIntervalNs = Math.max(mMaxIntervalNs, intervalNs);
+        mHistogram[(int) Math.min(intervalNs / BIN_WIDTH_NS, BIN_COUNT - 1)]++;
+
+        long nominalNs = mNominalFrameDurationNs;
+        if (nominalNs > 0 && 2 * intervalNs > 3 * nominalNs) {
+            mGapCount++;
+            mDroppedFrames += Math.round((double) intervalNs / nominalNs) - 1;
+        }
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getIntervalCount() {
+        return mIntervalCount;
+    }
+
+    /**
+     * Frames estimated lost in the gaps.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Intervals longer than one and a half nominal frame duration.
+     */
+    public long getGapCount() {
+        return mGapCount;
+    }
+
+    public long getFocusUnlockedFrames() {
+        return mFocusUnlockedFrames;
+    }
+
+    /**
+     * NaN before the first frame.
+     */
+    public double getFocusUnlockedFraction() {
+        return mFrameCount > 0 ? (double) mFocusUnlockedFrames / mFrameCount : Double.NaN;
+    }
+
+    /**
+     * Last known frame duration, 0 if unknown.
+     */
+    public long getNominalFrameDurationNs() {
+        return mNominalFrameDurationNs;
+    }
+
+    /**
+     * NaN before the first interval.
+     */
+    public double getMeanIntervalNs() {
+        return mIntervalCount > 0 ? mMeanNs : Double.NaN;
+    }
+
+    /**
+     * Population standard deviation, NaN before the first interval.
+     */
+    public double getStdDevIntervalNs() {
+        return mIntervalCount > 0 ? Math.sqrt(mM2 / mIntervalCount) : Double.NaN;
+    }
+
+    /**
+     * 0 before the first interval.
+     */
+    public long getMinIntervalNs() {
+        return mIntervalCount > 0 ? mMinIntervalNs : 0;
+    }
+
+    public long getMaxIntervalNs() {
+        return mMaxIntervalNs;
+    }
+
+    /**
+     * Count per BIN_WIDTH_NS wide bin starting at zero, the last bin includes all longer
+     * intervals.
+     */
+    public long getHistogramBin(int bin) {
+        return mHistogram[bin];
+    }
+}
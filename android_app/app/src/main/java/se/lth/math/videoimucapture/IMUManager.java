@@ -11,6 +11,7 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Process;
+import android.os.Trace;
 import android.util.Log;
 
 import java.util.ArrayDeque;
@@ -31,6 +32,12 @@ public class IMUManager extends SensorEventCallback {
     private final int mSensorRate = 10000; //Us, 100Hz
     private long mEstimatedSensorRate = 0; // ns
     private long mPrevTimestamp = 0; // ns
+    // Smoothed gyro magnitude, rad/s
+    private static final float ANGULAR_RATE_SMOOTHING = 0.05f;
+    private volatile float mAngularRate = 0;
+    // Integral of the gyro magnitude, rad
+    private volatile double mIntegratedRotation = 0;
+    private long mPrevGyroTimestamp = 0; // ns
     private float[] mSensorPlacement = null;
 
     private static class SensorPacket {
@@ -69,6 +76,7 @@ public class IMUManager extends SensorEventCallback {
 
     private volatile boolean mRecordingInertialData = false;
     private RecordingWriter mRecordingWriter = null;
+    private LatencyTracer mLatencyTracer = null;
     private HandlerThread mSensorThread;
 
     private Deque<SensorPacket> mGyroData = new ArrayDeque<>();
@@ -145,12 +153,25 @@ public class IMUManager extends SensorEventCallback {
         return (mAccel != null) && (mGyro != null) && (mMag != null);
     }
 
+    /**
+     * Tracer for the sensor callback, may be null.
+     */
+    public void setLatencyTracer(LatencyTracer tracer) {
+        mLatencyTracer = tracer;
+    }
+
     public void startRecording(RecordingWriter recordingWriter) {
         mRecordingWriter = recordingWriter;
         writeMetaData();
         mRecordingInertialData = true;
     }
 
+    // Sends samples to the writer's pre-record ring, startRecording() adds the IMU info.
+    public void startPreRoll(RecordingWriter recordingWriter) {
+        mRecordingWriter = recordingWriter;
+        mRecordingInertialData = true;
+    }
+
     public void stopRecording() {
         mRecordingInertialData = false;
     }
@@ -265,30 +286,72 @@ public class IMUManager extends SensorEventCallback {
         mPrevTimestamp = event.timestamp;
     }
 
+    private void updateAngularRate(float[] values, long timestamp) {
+        float x = values[0];
+        float y = values[1];
+        float z = values[2];
+        if (GYRO_TYPE == Sensor.TYPE_GYROSCOPE_UNCALIBRATED) {
+            x -= values[3];
+            y -= values[4];
+            z -= values[5];
+        }
+        float rate = (float) Math.sqrt(x * x + y * y + z * z);
+        mAngularRate += (rate - mAngularRate) * ANGULAR_RATE_SMOOTHING;
+        long dt = timestamp - mPrevGyroTimestamp;
+        if (mPrevGyroTimestamp > 0 && dt > 0 && dt < 100000000L) {
+            mIntegratedRotation += rate * dt * 1e-9;
+        }
+        mPrevGyroTimestamp = timestamp;
+    }
+
+    /**
+     * Low pass filtered magnitude of the angular velocity, rad/s.
+     */
+    public float getAngularRate() {
+        return mAngularRate;
+    }
+
+    /**
+     * Angle turned since the sensors were registered, rad, as the integral of the angular
+     * speed.  An upper bound of the rotation between two calls, only differences are useful.
+     */
+    public double getIntegratedRotation() {
+        return mIntegratedRotation;
+    }
+
     public float getSensorFrequency() {
         return 1e9f/((float) mEstimatedSensorRate);
     }
 
     @Override
     public final void onSensorChanged(SensorEvent event) {
-        if (event.sensor.getType() == ACC_TYPE) {
-            SensorPacket sp = new SensorPacket(event.timestamp, event.values);
-            mAccelData.add(sp);
-
-            updateSensorRate(event);
-        } else if (event.sensor.getType() == GYRO_TYPE) {
-            SensorPacket sp = new SensorPacket(event.timestamp, event.values);
-            mGyroData.add(sp);
-
-            // sync data
-            if (mRecordingInertialData) {
-                SyncedSensorPacket syncedData = syncInertialData();
-                if (syncedData != null)
-                    writeData(syncedData);
+        Trace.beginSection("onSensorChanged");
+        try {
+            if (event.sensor.getType() == ACC_TYPE) {
+                SensorPacket sp = new SensorPacket(event.timestamp, event.values);
+                mAccelData.add(sp);
+
+                updateSensorRate(event);
+            } else if (event.sensor.getType() == GYRO_TYPE) {
+                SensorPacket sp = new SensorPacket(event.timestamp, event.values);
+                mGyroData.add(sp);
+                updateAngularRate(event.values, event.timestamp);
+
+                // sync data
+                if (mRecordingInertialData) {
+                    if (mLatencyTracer != null) {
+                        mLatencyTracer.mark(LatencyTracer.Point.IMU_CALLBACK, event.timestamp);
+                    }
+                    SyncedSensorPacket syncedData = syncInertialData();
+                    if (syncedData != null)
+                        writeData(syncedData);
+                }
+            } else if (event.sensor.getType() == MAG_TYPE) {
+                SensorPacket sp = new SensorPacket(event.timestamp, event.values);
+                mMagData.add(sp);
             }
-        } else if (event.sensor.getType() == MAG_TYPE) {
-            SensorPacket sp = new SensorPacket(event.timestamp, event.values);
-            mMagData.add(sp);
+        } finally {
+            Trace.endSection();
         }
     }
 
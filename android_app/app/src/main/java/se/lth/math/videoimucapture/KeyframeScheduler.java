@@ -0,0 +1,80 @@
+package se.lth.math.videoimucapture;
+
+/**
+ * Decides when to take a full resolution still while recording.
+ * <p>
+ * A still is due when the interval has passed since the last one, or when the camera has
+ * turned more than the rotation threshold, measured on the integrated gyro magnitude from
+ * IMUManager.  Turning gives new views for structure from motion faster than time does,
+ * so both are useful.  Stills are never closer than MIN_SPACING_NS, and only one is in
+ * flight at a time.
+ * <p>
+ * Called from the camera thread only.
+ */
+public class KeyframeScheduler {
+    public static final long MIN_SPACING_NS = 300000000L;
+    // A still request that got neither image nor failure is given up after this.
+    public static final long TIMEOUT_NS = 2000000000L;
+
+    private final long mIntervalNs;
+    private final double mRotationThresholdRad;
+    private long mLastNs;
+    private double mLastRotationRad;
+    private long mPendingSinceNs = -1;
+
+    /**
+     * @param intervalNs          Time between stills, zero for rotation only.
+     * @param rotationThresholdRad Rotation between stills, zero for time only.
+     */
+    public KeyframeScheduler(long intervalNs, double rotationThresholdRad) {
+        mIntervalNs = intervalNs;
+        mRotationThresholdRad = rotationThresholdRad;
+    }
+
+    public boolean isEnabled() {
+        return mIntervalNs > 0 || mRotationThresholdRad > 0;
+    }
+
+    /**
+     * The first still is taken right away.
+     */
+    public void start(double rotationRad) {
+        mLastNs = Long.MIN_VALUE;
+        mLastRotationRad = rotationRad;
+        mPendingSinceNs = -1;
+    }
+
+    /**
+     * @return True if a still should be requested now, call onRequested() when it is.
+     */
+    public boolean isDue(long nowNs, double rotationRad) {
+        if (mPendingSinceNs >= 0) {
+            if (nowNs - mPendingSinceNs < TIMEOUT_NS) {
+                return false;
+            }
+            mPendingSinceNs = -1;
+        }
+        if (mLastNs == Long.MIN_VALUE) {
+            return true;
+        }
+        long sinceNs = nowNs - mLastNs;
+        if (sinceNs < MIN_SPACING_NS) {
+            return false;
+        }
+        return (mIntervalNs > 0 && sinceNs >= mIntervalNs) ||
+                (mRotationThresholdRad > 0 && rotationRad - mLastRotationRad >= mRotationThresholdRad);
+    }
+
+    public void onRequested(long nowNs, double rotationRad) {
+        mLastNs = nowNs;
+        mLastRotationRad = rotationRad;
+        mPendingSinceNs = nowNs;
+    }
+
+    /**
+     * The still arrived or failed, the next one may be requested.
+     */
+    public void onCompleted() {
+        mPendingSinceNs = -1;
+    }
+}
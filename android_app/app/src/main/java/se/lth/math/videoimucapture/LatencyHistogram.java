@@ -0,0 +1,85 @@
+package se.lth.math.videoimucapture;
+
+/**
+ * Histogram of latencies in power of two microsecond buckets, with exact count, mean and max.
+ * <p>
+ * Bucket k holds [2^k, 2^(k+1)) us, bucket 0 also everything below 1 us and the last bucket
+ * everything longer.  Percentiles are the upper edge of their bucket, so at most a factor two
+ * too high, which is enough to tell a stage that takes 1 ms from one that takes 30 ms.
+ * Negative latencies mean the clocks did not match and are only counted.  add() is a short
+ * synchronized update without allocation, uncontended as each histogram has one writer.
+ */
+public class LatencyHistogram {
+    public static final int BUCKET_COUNT = 24;  // up to ~8 s
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount = 0;
+    private long mNegativeCount = 0;
+    private long mSumNs = 0;
+    private long mMaxNs = 0;
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = mNegativeCount = mSumNs = mMaxNs = 0;
+    }
+
+    public synchronized void add(long latencyNs) {
+        if (latencyNs < 0) {
+            mNegativeCount++;
+            return;
+        }
+        long us = latencyNs / 1000;
+        int bucket = us > 0 ? 63 - Long.numberOfLeadingZeros(us) : 0;
+        mBuckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+        mCount++;
+        mSumNs += latencyNs;
+        mMaxNs = Math.max(mMaxNs, latencyNs);
+    }
+
+    /**
+     * Latencies added, not counting negative ones.
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getNegativeCount() {
+        return mNegativeCount;
+    }
+
+    public synchronized long getBucket(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    /**
+     * NaN if empty.
+     */
+    public synchronized double getMeanNs() {
+        return mCount > 0 ? (double) mSumNs / mCount : Double.NaN;
+    }
+
+    public synchronized long getMaxNs() {
+        return mMaxNs;
+    }
+
+    /**
+     * Upper edge of the bucket holding the given fraction of latencies, at most the max.
+     * 0 if empty.
+     */
+    public synchronized long getPercentileNs(double fraction) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * mCount);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return Math.min((2000L << i), mMaxNs);
+            }
+        }
+        return mMaxNs;
+    }
+}
@@ -0,0 +1,140 @@
+package se.lth.math.videoimucapture;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Time from sensor timestamp to each point of the capture pipeline, while recording.
+ * <p>
+ * Every point records how old the sample is when it gets there, measured from its sensor
+ * timestamp, so the step between two points of the same stream is the time spent in
+ * between.  Nothing is stored per sample, each point has its own LatencyHistogram written by
+ * a single thread.  The latest value of each point is also a systrace counter, next to the
+ * Trace sections around the callbacks and writes, and stop() writes the histograms to a CSV
+ * file next to the recording.
+ * <p>
+ * Camera timestamps follow elapsedRealtimeNanos() or System.nanoTime() depending on the
+ * timestamp source, IMU timestamps follow elapsedRealtimeNanos().
+ */
+public class LatencyTracer {
+    private static final String TAG = "LatencyTracer";
+
+    public enum Point {
+        FRAME_CALLBACK(true),   // onCaptureCompleted
+        FRAME_QUEUED(true),     // RecordingWriter queue entry
+        FRAME_DEQUEUED(true),   // RecordingWriter queue exit
+        FRAME_WRITTEN(true),    // merged with the encoder frame time and written
+        VIDEO_ENCODED(true),    // encoder output buffer
+        VIDEO_WRITTEN(true),    // sample written by the muxer
+        IMU_CALLBACK(false),    // onSensorChanged
+        IMU_QUEUED(false),
+        IMU_DEQUEUED(false),
+        IMU_WRITTEN(false);
+
+        final boolean mCameraClock;
+        final String mCounterName;
+
+        Point(boolean cameraClock) {
+            mCameraClock = cameraClock;
+            mCounterName = "latency_us_" + name().toLowerCase(Locale.US);
+        }
+    }
+
+    private static final Point[] POINTS = Point.values();
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[POINTS.length];
+    private volatile boolean mEnabled = false;
+    private volatile boolean mCameraRealtime = false;
+
+    public LatencyTracer() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Clears the histograms and starts tracing.
+     *
+     * @param cameraRealtime Camera timestamps follow elapsedRealtimeNanos(), see
+     *                       Camera2Proxy#hasRealtimeTimestamps().
+     */
+    public void start(boolean cameraRealtime) {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mCameraRealtime = cameraRealtime;
+        mEnabled = true;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Records that the sample with the given sensor timestamp reached the point now.
+     */
+    public void mark(Point point, long sensorTimestampNs) {
+        if (!mEnabled) {
+            return;
+        }
+        long nowNs = (point.mCameraClock && !mCameraRealtime) ?
+                System.nanoTime() : SystemClock.elapsedRealtimeNanos();
+        record(point, nowNs - sensorTimestampNs);
+    }
+
+    /**
+     * Records a latency measured by the caller, on the right clock.
+     */
+    public void record(Point point, long latencyNs) {
+        if (!mEnabled) {
+            return;
+        }
+        mHistograms[point.ordinal()].add(latencyNs);
+        if (Build.VERSION.SDK_INT >= 29 && Trace.isEnabled()) {
+            Trace.setCounter(point.mCounterName, latencyNs / 1000);
+        }
+    }
+
+    public LatencyHistogram getHistogram(Point point) {
+        return mHistograms[point.ordinal()];
+    }
+
+    /**
+     * Stops tracing and writes one line per point to summaryFile, null to only log.
+     */
+    public void stop(String summaryFile) {
+        if (!mEnabled) {
+            return;
+        }
+        mEnabled = false;
+        StringBuilder summary = new StringBuilder(
+                "point,count,negative,mean_us,p50_us,p90_us,p99_us,max_us\n");
+        for (Point point : POINTS) {
+            LatencyHistogram histogram = getHistogram(point);
+            if (histogram.getCount() == 0 && histogram.getNegativeCount() == 0) {
+                continue;
+            }
+            summary.append(String.format(Locale.US, "%s,%d,%d,%.1f,%d,%d,%d,%d\n",
+                    point.name().toLowerCase(Locale.US), histogram.getCount(),
+                    histogram.getNegativeCount(), histogram.getMeanNs() / 1e3,
+                    histogram.getPercentileNs(0.5) / 1000, histogram.getPercentileNs(0.9) / 1000,
+                    histogram.getPercentileNs(0.99) / 1000, histogram.getMaxNs() / 1000));
+        }
+        Log.i(TAG, "Latency from sensor timestamp:\n" + summary);
+        if (summaryFile == null) {
+            return;
+        }
+        try (PrintWriter writer = new PrintWriter(new FileWriter(summaryFile))) {
+            writer.print(summary);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + summaryFile + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package se.lth.math.videoimucapture;
+
+/**
+ * Adapts the encoder bit rate to how fast the camera turns.
+ * <p>
+ * A still camera gives frames that predict well from the previous one, while a fast pan
+ * changes every block, which is where tracking needs image quality the most.  The bit rate
+ * steps between a low, the configured and a high level depending on the smoothed gyro
+ * magnitude from IMUManager.  Thresholds have hysteresis, the level changes at most once
+ * per MIN_CHANGE_INTERVAL_NS, and it only steps down after the motion has stayed low for
+ * HOLD_NS, so a short stop in a pan does not cost quality.
+ * <p>
+ * update() is called from the encoder output thread, the getters from any thread.
+ */
+public class MotionBitRateController {
+    private static final float[] LEVEL_SCALE = {0.5f, 1.0f, 2.0f};
+    private static final int DEFAULT_LEVEL = 1;
+    // Angular rate in rad/s to step up from level i, and to step down to level i.
+    private static final float[] UP_THRESHOLD = {0.15f, 1.0f};
+    private static final float[] DOWN_THRESHOLD = {0.08f, 0.6f};
+    private static final long MIN_CHANGE_INTERVAL_NS = 500000000L;
+    private static final long HOLD_NS = 1500000000L;
+
+    private final IMUManager mImuManager;
+    private int mBaseBitRate;
+    private int mMaxBitRate;
+    private int mLevel = DEFAULT_LEVEL;
+    private long mLastChangeNs = 0;
+    private long mLowSinceNs = -1;
+    private volatile int mBitRate;
+    private volatile float mAngularRate = 0;
+
+    public MotionBitRateController(IMUManager imuManager) {
+        mImuManager = imuManager;
+    }
+
+    /**
+     * Starts at the configured bit rate, the high level is capped at maxBitRate.
+     */
+    public void start(int baseBitRate, int maxBitRate, long nowNs) {
+        mBaseBitRate = baseBitRate;
+        mMaxBitRate = maxBitRate;
+        mLevel = DEFAULT_LEVEL;
+        mLastChangeNs = nowNs;
+        mLowSinceNs = -1;
+        mBitRate = levelBitRate(mLevel);
+    }
+
+    /**
+     * Reads the current angular rate and decides on the level.
+     *
+     * @return True if the bit rate changed and should be passed to the encoder.
+     */
+    public boolean update(long nowNs) {
+        float rate = mImuManager.getAngularRate();
+        mAngularRate = rate;
+
+        int target = mLevel;
+        while (target < LEVEL_SCALE.length - 1 && rate > UP_THRESHOLD[target]) {
+            target++;
+        }
+        if (target == mLevel) {
+            if (mLevel > 0 && rate < DOWN_THRESHOLD[mLevel - 1]) {
+                if (mLowSinceNs < 0) {
+                    mLowSinceNs = nowNs;
+                } else if (nowNs - mLowSinceNs >= HOLD_NS) {
+                    target = mLevel - 1;
+                }
+            } else {
+                mLowSinceNs = -1;
+            }
+        }
+
+        if (target == mLevel || nowNs - mLastChangeNs < MIN_CHANGE_INTERVAL_NS) {
+            return false;
+        }
+        int bitRate = levelBitRate(target);
+        mLevel = target;
+        mLastChangeNs = nowNs;
+        mLowSinceNs = -1;
+        if (bitRate == mBitRate) {
+            // Capped at the codec maximum.
+            return false;
+        }
+        mBitRate = bitRate;
+        return true;
+    }
+
+    private int levelBitRate(int level) {
+        return (int) Math.min((long) (mBaseBitRate * LEVEL_SCALE[level]), mMaxBitRate);
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * Angular rate in rad/s at the last update().
+     */
+    public float getAngularRate() {
+        return mAngularRate;
+    }
+}
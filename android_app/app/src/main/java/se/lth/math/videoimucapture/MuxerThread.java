@@ -0,0 +1,159 @@
+package se.lth.math.videoimucapture;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes encoded frames to storage on a dedicated thread.
+ * <p>
+ * queue() copies a frame out of the codec output buffer into a pooled direct buffer, so the
+ * codec buffer can be released right away and a slow write never holds up the encoder.
+ * The pool holds about a second of video.  If storage falls further behind, queue() blocks
+ * until a slot is free; encoded frames cannot be dropped without breaking the stream.
+ */
+public class MuxerThread implements Runnable {
+    private static final String TAG = "MuxerThread";
+    private static final boolean VERBOSE = false;
+
+    private static final int MIN_SLOTS = 8;
+
+    private static class Slot {
+        ByteBuffer mData;
+        final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        long mCaptureToOutputNs;
+        long mQueuedNs;
+    }
+
+    private final EncodedFrameRing.FrameConsumer mConsumer;
+    private final int mInitialSlotBytes;
+    private final BlockingQueue<Slot> mFree;
+    private final BlockingQueue<Slot> mPending;
+    private final Slot mPoisonPill = new Slot();
+    private final Thread mThread;
+
+    // Written on the muxer thread, readable from the consumer.
+    private int mLastDepth = 0;
+    private long mLastQueueDelayNs = 0;
+
+    // Totals, logged by stop().
+    private volatile long mStalls = 0;
+    private int mMaxDepth = 0;
+    private long mFrames = 0;
+    private long mSumWriteNs = 0;
+    private long mMaxWriteNs = 0;
+    private long mMaxQueueDelayNs = 0;
+
+    /**
+     * @param consumer Called on the muxer thread for each frame, in queue order.
+     */
+    public MuxerThread(EncodedFrameRing.FrameConsumer consumer, int bitRate, int frameRate) {
+        mConsumer = consumer;
+        int slots = Math.max(MIN_SLOTS, frameRate);
+        // Twice the average frame, key frames grow their slot on demand.
+        mInitialSlotBytes = Math.max(bitRate / 8 / Math.max(frameRate, 1) * 2, 4096);
+        mFree = new ArrayBlockingQueue<>(slots);
+        // Room for the poison pill on top of every slot.
+        mPending = new ArrayBlockingQueue<>(slots + 1);
+        for (int i = 0; i < slots; i++) {
+            mFree.add(new Slot());
+        }
+        mThread = new Thread(this, "MuxerThread");
+        mThread.start();
+    }
+
+    /**
+     * Copies the frame described by info and queues it for writing.  Returns once the copy
+     * is done, the caller may release the codec buffer.
+     */
+    public void queue(ByteBuffer encodedData, MediaCodec.BufferInfo info, long captureToOutputNs) {
+        Slot slot = mFree.poll();
+        if (slot == null) {
+            if (mStalls++ == 0) {
+                Log.w(TAG, "Muxer queue full, storage is not keeping up");
+            }
+            try {
+                slot = mFree.take();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted waiting for a free slot, frame lost");
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (slot.mData == null || slot.mData.capacity() < info.size) {
+            if (VERBOSE) Log.d(TAG, "Allocating slot for " + info.size + " bytes");
+            slot.mData = ByteBuffer.allocateDirect(Math.max(info.size, mInitialSlotBytes));
+        }
+        encodedData.limit(info.offset + info.size);
+        encodedData.position(info.offset);
+        slot.mData.clear();
+        slot.mData.put(encodedData);
+        slot.mData.flip();
+        slot.mInfo.set(0, info.size, info.presentationTimeUs, info.flags);
+        slot.mCaptureToOutputNs = captureToOutputNs;
+        slot.mQueuedNs = System.nanoTime();
+        mPending.add(slot);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Slot slot = mPending.take();
+                if (slot == mPoisonPill) {
+                    return;
+                }
+                long startNs = System.nanoTime();
+                mLastDepth = mPending.size() + 1;
+                mLastQueueDelayNs = startNs - slot.mQueuedNs;
+                mMaxDepth = Math.max(mMaxDepth, mLastDepth);
+                mMaxQueueDelayNs = Math.max(mMaxQueueDelayNs, mLastQueueDelayNs);
+
+                mConsumer.onFrame(slot.mData, slot.mInfo, slot.mCaptureToOutputNs);
+
+                long writeNs = System.nanoTime() - startNs;
+                mSumWriteNs += writeNs;
+                mMaxWriteNs = Math.max(mMaxWriteNs, writeNs);
+                mFrames++;
+                mFree.add(slot);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the frames still queued and stops the thread.
+     */
+    public void stop() {
+        try {
+            mPending.put(mPoisonPill);
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting for muxer thread");
+        }
+        if (mFrames > 0) {
+            Log.i(TAG, String.format("Muxer wrote %d frames: write mean %.2f ms, max %.2f ms, " +
+                            "queue max %d frames, %.2f ms, %d stalls",
+                    mFrames, mSumWriteNs / (mFrames * 1e6), mMaxWriteNs / 1e6,
+                    mMaxDepth, mMaxQueueDelayNs / 1e6, mStalls));
+        }
+    }
+
+    /**
+     * Frames queued, including the one being written.  Valid in the consumer.
+     */
+    public int getQueueDepth() {
+        return mLastDepth;
+    }
+
+    /**
+     * Time the frame being written waited in the queue.  Valid in the consumer.
+     */
+    public long getQueueDelayNs() {
+        return mLastQueueDelayNs;
+    }
+}
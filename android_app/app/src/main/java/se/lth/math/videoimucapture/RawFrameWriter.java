@@ -0,0 +1,399 @@
+package se.lth.math.videoimucapture;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes uncompressed frames from a camera output to disk.
+ * <p>
+ * The writer owns an ImageReader, whose surface is added to the capture session.  Each
+ * Image is copied into one of a fixed number of reused buffers on the ImageReader
+ * thread and closed right away, so the camera always gets its buffers back.  A writer
+ * thread appends the frames to memory mapped segment files and indexes them by sensor
+ * timestamp.  If every buffer is waiting for I/O the frame is dropped and counted instead.
+ * <p>
+ * Container layout, all integers little endian:
+ * <ul>
+ * <li>&lt;prefix&gt;.idx: "VIMURAW1", int32 version, int32 format, int32 width, int32 height,
+ * followed by one record per frame: int64 timestamp_ns, int32 segment, int64 offset,
+ * int32 length.
+ * <li>&lt;prefix&gt;_NNN.bin: frames back to back.  A frame is the Y plane with packed rows,
+ * followed by the U and V planes (I420) unless the format is luma only.  Depth frames are
+ * packed uint16 DEPTH16 pixels, or with DEPTH16_DELTA coded by DepthFrameCodec, in which
+ * case the frame length varies.
+ * </ul>
+ * Frames from different writers on the same capture requests share sensor timestamps.
+ * The calibration/raw2images.py script reads this format.
+ */
+public class RawFrameWriter implements ImageReader.OnImageAvailableListener {
+    private static final String TAG = "RawFrameWriter";
+    private static final boolean VERBOSE = false;
+
+    // Ordinal is stored in the index header.
+    public enum Format {LUMA, YUV_I420, DEPTH16, DEPTH16_DELTA}
+
+    private static final byte[] MAGIC = "VIMURAW1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int INDEX_RECORD_SIZE = 24;
+    private static final long SEGMENT_SIZE = 256L * 1024 * 1024;
+    private static final int RING_SIZE = 8;
+    private static final int MAX_IMAGES = 4;
+
+    private static class Frame {
+        final ByteBuffer mData;
+        long mTimestampNs;
+
+        Frame(int size) {
+            mData = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private final String mName;
+    private final Format mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+
+    private final BlockingQueue<Frame> mFreeFrames = new ArrayBlockingQueue<>(RING_SIZE);
+    private final BlockingQueue<Frame> mFilledFrames = new ArrayBlockingQueue<>(RING_SIZE + 1);
+    private final Frame mPoisonPill = new Frame(0);
+    private byte[] mRowBuffer;  // ImageReader thread only
+    private short[] mDepthRow;  // ImageReader thread only
+
+    private final HandlerThread mReaderThread;
+    private final ImageReader mImageReader;
+
+    private Thread mWriterThread;
+    private volatile boolean mRecording = false;
+    private final AtomicLong mWrittenFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+
+    // ----- accessed exclusively by writer thread -----
+    private String mPrefix;
+    private OutputStream mIndexStream;
+    private final ByteBuffer mIndexRecord =
+            ByteBuffer.allocate(INDEX_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private RandomAccessFile mSegmentFile;
+    private MappedByteBuffer mSegment;
+    private int mSegmentNbr;
+
+    /**
+     * @param name        File prefix inside the recording directory, also names the threads.
+     * @param format      What to store from each frame.
+     * @param size        Camera output size.
+     * @param imageFormat ImageReader format, YUV_420_888 or Y8 for luma only, DEPTH16 for
+     *                    the depth formats.
+     */
+    public RawFrameWriter(String name, Format format, Size size, int imageFormat) {
+        mName = name;
+        mFormat = format;
+        mWidth = size.getWidth();
+        mHeight = size.getHeight();
+        int lumaSize = mWidth * mHeight;
+        switch (format) {
+            case LUMA:
+                mFrameSize = lumaSize;
+                break;
+            case YUV_I420:
+                mFrameSize = lumaSize + 2 * ((mWidth / 2) * (mHeight / 2));
+                break;
+            case DEPTH16:
+                mFrameSize = 2 * lumaSize;
+                break;
+            default:
+                // Largest possible, the written frames are usually about half the raw size.
+                mFrameSize = DepthFrameCodec.maxEncodedSize(mWidth, mHeight);
+                break;
+        }
+        mRowBuffer = new byte[2 * mWidth];
+        mDepthRow = new short[mWidth];
+        for (int i = 0; i < RING_SIZE; i++) {
+            mFreeFrames.add(new Frame(mFrameSize));
+        }
+
+        mReaderThread = new HandlerThread(name + "Reader");
+        mReaderThread.start();
+        mImageReader = ImageReader.newInstance(mWidth, mHeight, imageFormat, MAX_IMAGES);
+        mImageReader.setOnImageAvailableListener(this, new Handler(mReaderThread.getLooper()));
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Stops any recording and releases the ImageReader, the surface must no longer be in use.
+     */
+    public void release() {
+        stopRecording();
+        mImageReader.close();
+        mReaderThread.quitSafely();
+    }
+
+    public Size getSize() {
+        return new Size(mWidth, mHeight);
+    }
+
+    public long getWrittenFrames() {
+        return mWrittenFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * Starts the writer thread, frames are accepted until stopRecording().
+     */
+    public void startRecording(String outputDir) {
+        if (mRecording) {
+            Log.w(TAG, "Already recording");
+            return;
+        }
+        mPrefix = outputDir + File.separator + mName;
+        // A frame that slipped in after the last stop, from the previous recording.
+        recycleFilledFrames();
+        mWrittenFrames.set(0);
+        mDroppedFrames.set(0);
+        mWriterThread = new Thread(this::writeLoop, mName + "Writer");
+        mWriterThread.start();
+        mRecording = true;
+    }
+
+    /**
+     * Stops accepting frames and waits for queued frames to reach the files.
+     */
+    public void stopRecording() {
+        if (!mRecording) {
+            return;
+        }
+        mRecording = false;
+        try {
+            mFilledFrames.put(mPoisonPill);
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWriterThread = null;
+        Log.d(TAG, String.format(Locale.US, "%s: wrote %d frames, dropped %d",
+                mName, getWrittenFrames(), getDroppedFrames()));
+    }
+
+    @Override  // runs on the ImageReader handler thread
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (image == null) {
+            return;
+        }
+        try {
+            if (!mRecording) {
+                return;
+            }
+            Frame frame = mFreeFrames.poll();
+            if (frame == null) {
+                // Writer is behind, never hold the camera buffer waiting for it.
+                mDroppedFrames.incrementAndGet();
+                if (VERBOSE) Log.d(TAG, "Dropped frame " + image.getTimestamp());
+                return;
+            }
+            frame.mTimestampNs = image.getTimestamp();
+            frame.mData.clear();
+            Image.Plane[] planes = image.getPlanes();
+            if (mFormat == Format.DEPTH16 || mFormat == Format.DEPTH16_DELTA) {
+                copyDepth(planes[0], frame.mData);
+                frame.mData.flip();
+                mFilledFrames.add(frame);
+                return;
+            }
+            copyPlane(planes[0], mWidth, mHeight, frame.mData);
+            if (mFormat == Format.YUV_I420) {
+                copyPlane(planes[1], mWidth / 2, mHeight / 2, frame.mData);
+                copyPlane(planes[2], mWidth / 2, mHeight / 2, frame.mData);
+            }
+            frame.mData.flip();
+            mFilledFrames.add(frame);
+        } finally {
+            image.close();
+        }
+    }
+
+    // Copies a plane into dst with packed rows and pixels.
+    private void copyPlane(Image.Plane plane, int width, int height, ByteBuffer dst) {
+        ByteBuffer src = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        for (int row = 0; row < height; row++) {
+            int rowStart = row * rowStride;
+            if (pixelStride == 1) {
+                src.position(rowStart);
+                src.get(mRowBuffer, 0, width);
+                dst.put(mRowBuffer, 0, width);
+            } else {
+                // Interleaved chroma, pick every pixelStride byte.
+                for (int col = 0; col < width; col++) {
+                    dst.put(src.get(rowStart + col * pixelStride));
+                }
+            }
+        }
+    }
+
+    // Copies the DEPTH16 plane as little endian uint16 with packed rows, delta coded if asked.
+    private void copyDepth(Image.Plane plane, ByteBuffer dst) {
+        ByteBuffer src = plane.getBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        int rowStride = plane.getRowStride();
+        int rowBytes = 2 * mWidth;
+        for (int row = 0; row < mHeight; row++) {
+            int rowStart = row * rowStride;
+            if (mFormat == Format.DEPTH16) {
+                src.position(rowStart);
+                src.get(mRowBuffer, 0, rowBytes);
+                dst.put(mRowBuffer, 0, rowBytes);
+            } else {
+                for (int col = 0; col < mWidth; col++) {
+                    mDepthRow[col] = src.getShort(rowStart + 2 * col);
+                }
+                DepthFrameCodec.encodeRow(mDepthRow, mWidth, dst);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        boolean failed = false;
+        try {
+            openIndex();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open raw frame files: " + e);
+            failed = true;
+        }
+        try {
+            while (true) {
+                Frame frame = mFilledFrames.take();
+                if (frame == mPoisonPill) {
+                    break;
+                }
+                if (!failed) {
+                    try {
+                        writeFrame(frame);
+                        mWrittenFrames.incrementAndGet();
+                    } catch (IOException e) {
+                        // Keep consuming so the remaining frames are accounted as dropped.
+                        Log.e(TAG, "Raw frame write failed, dropping remaining frames: " + e);
+                        failed = true;
+                    }
+                }
+                if (failed) {
+                    mDroppedFrames.incrementAndGet();
+                }
+                mFreeFrames.add(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeFiles();
+            // The reader may have queued a frame behind the poison pill.
+            recycleFilledFrames();
+        }
+    }
+
+    // Returns frames queued outside a recording to the free pool, the pill is dropped.
+    private void recycleFilledFrames() {
+        Frame frame;
+        while ((frame = mFilledFrames.poll()) != null) {
+            if (frame != mPoisonPill) {
+                mFreeFrames.offer(frame);
+            }
+        }
+    }
+
+    private void openIndex() throws IOException {
+        mIndexStream = new BufferedOutputStream(new FileOutputStream(mPrefix + ".idx"));
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 16).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC)
+                .putInt(VERSION)
+                .putInt(mFormat.ordinal())
+                .putInt(mWidth)
+                .putInt(mHeight);
+        mIndexStream.write(header.array());
+        mSegmentNbr = -1;
+        openNextSegment();
+    }
+
+    private void openNextSegment() throws IOException {
+        closeSegment();
+        mSegmentNbr++;
+        String path = String.format(Locale.US, "%s_%03d.bin", mPrefix, mSegmentNbr);
+        mSegmentFile = new RandomAccessFile(path, "rw");
+        mSegment = mSegmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        if (VERBOSE) Log.d(TAG, "Opened segment " + path);
+    }
+
+    private void writeFrame(Frame frame) throws IOException {
+        int length = frame.mData.remaining();
+        if (mSegment.remaining() < length) {
+            openNextSegment();
+        }
+        long offset = mSegment.position();
+        mSegment.put(frame.mData);
+
+        mIndexRecord.clear();
+        mIndexRecord.putLong(frame.mTimestampNs)
+                .putInt(mSegmentNbr)
+                .putLong(offset)
+                .putInt(length);
+        mIndexStream.write(mIndexRecord.array());
+    }
+
+    // Flushes the mapping and cuts the file at the last written frame.
+    private void closeSegment() throws IOException {
+        if (mSegment == null) {
+            return;
+        }
+        long length = mSegment.position();
+        mSegment.force();
+        mSegment = null;
+        mSegmentFile.getChannel().truncate(length);
+        mSegmentFile.close();
+        mSegmentFile = null;
+    }
+
+    private void closeFiles() {
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (mIndexStream != null) {
+            try {
+                mIndexStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mIndexStream = null;
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package se.lth.math.videoimucapture;
 
+import android.os.Trace;
 import android.util.Log;
 
 import com.google.protobuf.Timestamp;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -16,6 +25,7 @@ import se.lth.math.videoimucapture.RecordingProtos.VideoFrameToTimestamp;
 import se.lth.math.videoimucapture.RecordingProtos.IMUData;
 import se.lth.math.videoimucapture.RecordingProtos.IMUInfo;
 import se.lth.math.videoimucapture.RecordingProtos.CameraInfo;
+import se.lth.math.videoimucapture.RecordingProtos.CaptureSummary;
 import se.lth.math.videoimucapture.RecordingProtos.MessageWrapper;
 
 import static java.lang.Math.abs;
@@ -24,30 +34,184 @@ public class RecordingWriter implements Runnable{
     final private static String TAG = "RecordingWriter";
     final private Boolean VERBOSE = false;
 
-    private FileOutputStream mFileStream;
-    private BlockingQueue<MessageWrapper> mQueue = new ArrayBlockingQueue<>(1000);
+    // Sized for 240 fps frame data plus IMU without blocking the producers.
+    private static final int QUEUE_SIZE = 4000;
+    private static final int MERGE_QUEUE_SIZE = 1000;  // ~4s of frames at 240 fps
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+    // IMU at 100Hz, with margin.  Frame data is added at the camera frame rate.
+    private static final int PRE_ROLL_IMU_MESSAGES_PER_SECOND = 340;
+
+    private OutputStream mFileStream;
+    private CountingOutputStream mCountingStream;
+    private long mReportedBytes = 0;
+    private CaptureHud mCaptureHud = null;
+    private LatencyTracer mLatencyTracer = null;
+    private String mLatencySummaryFile;
+    // Earlier frames are from the pre-record ring, writer thread only.
+    private long mFirstLiveFrameNs;
+    private BlockingQueue<MessageWrapper> mQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private List<MessageWrapper> mBatch = new ArrayList<>(QUEUE_SIZE);
     //Empty message as poison pill
     private final MessageWrapper mPoisonPill = MessageWrapper.newBuilder().build();
 
-    //Queues to handle merging of video frames
-    private Queue<VideoFrameMetaData> mFrameDataQueue = new ArrayBlockingQueue<>(100);
-    private Queue<VideoFrameToTimestamp> mFrameTimeQueue = new ArrayBlockingQueue<>(100);
+    //Queues to handle merging of video frames, one pair per video stream
+    private static class MergeQueues {
+        final Queue<VideoFrameMetaData> mFrameDataQueue = new ArrayBlockingQueue<>(MERGE_QUEUE_SIZE);
+        final Queue<VideoFrameToTimestamp> mFrameTimeQueue = new ArrayBlockingQueue<>(MERGE_QUEUE_SIZE);
+    }
+    private final MergeQueues mMainMerge = new MergeQueues();
+    // Extra physical camera streams by camera id, writer thread only.
+    private final Map<String, MergeQueues> mPhysicalMerge = new HashMap<>();
 
     //Other state variables
     private Boolean mIsRecording = false;
+    private SensorTrackBuffer mSensorTrack = null;
+
+    // Pre-record ring of IMU and frame messages, allocated by startPreRoll().
+    private final Object mPreRollLock = new Object();
+    private MessageWrapper[] mPreRollMsgs = null;
+    private long[] mPreRollTimeNs;
+    private int mPreRollTail;
+    private int mPreRollCount;
+    private long mPreRollWindowNs;
+    private List<MessageWrapper> mPreRollSnapshot = new ArrayList<>();
 
     public Boolean isRecording() {return mIsRecording;}
 
+    // Counts bytes written to the file, before buffering.
+    private static class CountingOutputStream extends FilterOutputStream {
+        long mCount = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+
+    /**
+     * Live panel to report written bytes, queue depth and dropped frame data to, may be null.
+     */
+    public void setCaptureHud(CaptureHud hud) {
+        mCaptureHud = hud;
+    }
+
+    /**
+     * Tracer for the queue and write points, may be null.  Its summary is written next to
+     * the result file when the recording has been written.
+     */
+    public void setLatencyTracer(LatencyTracer tracer) {
+        mLatencyTracer = tracer;
+    }
+
+    /**
+     * Also hand IMU and merged frame data to the MP4 metadata track, null to disable.
+     * Call before startRecording().
+     */
+    public void setSensorTrack(SensorTrackBuffer sensorTrack) {
+        mSensorTrack = sensorTrack;
+    }
+
+    /**
+     * Keeps IMU and frame messages queued while not recording, for the given number of
+     * seconds.  They are written first by the next startRecording().  Should cover the same
+     * time as the encoder keeps, see EncoderConfig.Builder#getPreRollRetentionSeconds().
+     * The ring is sized for frame data at frameRate.
+     */
+    public void startPreRoll(int seconds, int frameRate) {
+        synchronized (mPreRollLock) {
+            int capacity = seconds * (PRE_ROLL_IMU_MESSAGES_PER_SECOND + frameRate);
+            if (mPreRollMsgs == null || mPreRollMsgs.length != capacity) {
+                mPreRollMsgs = new MessageWrapper[capacity];
+                mPreRollTimeNs = new long[capacity];
+                mPreRollSnapshot = new ArrayList<>(capacity);
+            }
+            mPreRollTail = mPreRollCount = 0;
+            mPreRollWindowNs = seconds * 1000000000L;
+        }
+    }
+
+    public void stopPreRoll() {
+        synchronized (mPreRollLock) {
+            mPreRollMsgs = null;
+            mPreRollTimeNs = null;
+            mPreRollCount = 0;
+        }
+    }
+
+    // Returns false if the message should be queued for writing instead.
+    private boolean addPreRoll(MessageWrapper msg) {
+        long timeNs;
+        switch (msg.getMsgCase()) {
+            case IMU_DATA:
+                timeNs = msg.getImuData().getTimeNs();
+                break;
+            case FRAME_META:
+                timeNs = msg.getFrameMeta().getTimeNs();
+                break;
+            default:
+                // Only sensor streams are buffered, the rest is written when recording.
+                return true;
+        }
+        synchronized (mPreRollLock) {
+            if (mIsRecording) {
+                return false;
+            }
+            if (mPreRollMsgs == null) {
+                return true;
+            }
+            int capacity = mPreRollMsgs.length;
+            while (mPreRollCount > 0 && (mPreRollCount == capacity
+                    || timeNs - mPreRollTimeNs[mPreRollTail] > mPreRollWindowNs)) {
+                mPreRollMsgs[mPreRollTail] = null;
+                mPreRollTail = (mPreRollTail + 1) % capacity;
+                mPreRollCount--;
+            }
+            int head = (mPreRollTail + mPreRollCount) % capacity;
+            mPreRollMsgs[head] = msg;
+            mPreRollTimeNs[head] = timeNs;
+            mPreRollCount++;
+        }
+        return true;
+    }
+
     public void startRecording(String resultFile) throws IOException {
 
         Log.d(TAG, String.format("Starting on %s thread", Thread.currentThread()));
-        mFileStream = new FileOutputStream(resultFile);
+        // Each message is a separate small write, buffer them to avoid a syscall per message.
+        mCountingStream = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(resultFile), FILE_BUFFER_SIZE));
+        mFileStream = mCountingStream;
+        mReportedBytes = 0;
+        mLatencySummaryFile = new File(resultFile).getParent() + File.separator + "latency.csv";
+        mFirstLiveFrameNs = Long.MAX_VALUE;
 
         //Reset state
-        mIsRecording = true;
-        mFrameDataQueue.clear();
-        mFrameTimeQueue.clear();
+        mMainMerge.mFrameDataQueue.clear();
+        mMainMerge.mFrameTimeQueue.clear();
+        mPhysicalMerge.clear();
         mQueue.clear();
+        synchronized (mPreRollLock) {
+            // Take the pre-record messages, producers switch to the queue from here.
+            mPreRollSnapshot.clear();
+            for (int i = 0; i < mPreRollCount; i++) {
+                int idx = (mPreRollTail + i) % mPreRollMsgs.length;
+                mPreRollSnapshot.add(mPreRollMsgs[idx]);
+                mPreRollMsgs[idx] = null;
+            }
+            mPreRollTail = mPreRollCount = 0;
+            mIsRecording = true;
+        }
 
         //Start background thread
         Thread myThread = new Thread(this, "RecordingWriter");
@@ -69,16 +233,43 @@ public class RecordingWriter implements Runnable{
         Log.d(TAG, String.format("Looping on %s thread", Thread.currentThread()));
         try {
             initializeFile();
+            if (!mPreRollSnapshot.isEmpty()) {
+                Log.d(TAG, "Writing " + mPreRollSnapshot.size() + " pre-record messages");
+                for (MessageWrapper msg : mPreRollSnapshot) {
+                    writeMessage(msg);
+                }
+                mPreRollSnapshot.clear();
+            }
 
             while (true) {
-                MessageWrapper msg = mQueue.take();
-                if (msg.equals(mPoisonPill)) {
-                    mFileStream.flush();
-                    mFileStream.close();
-                    mIsRecording = false;
-                    return;
+                // Block for the first message, then take whatever else is waiting.
+                mBatch.add(mQueue.take());
+                mQueue.drainTo(mBatch);
+                Trace.beginSection("RecordingWriter.write");
+                for (MessageWrapper msg : mBatch) {
+                    if (msg.equals(mPoisonPill)) {
+                        Trace.endSection();
+                        mBatch.clear();
+                        mFileStream.flush();
+                        mFileStream.close();
+                        mIsRecording = false;
+                        if (mLatencyTracer != null) {
+                            mLatencyTracer.stop(mLatencySummaryFile);
+                        }
+                        return;
+                    }
+                    traceMessage(msg, LatencyTracer.Point.FRAME_DEQUEUED,
+                            LatencyTracer.Point.IMU_DEQUEUED);
+                    writeMessage(msg);
+                    traceMessage(msg, null, LatencyTracer.Point.IMU_WRITTEN);
+                }
+                Trace.endSection();
+                mBatch.clear();
+                if (mCaptureHud != null) {
+                    mCaptureHud.addMetaBytes((int) (mCountingStream.mCount - mReportedBytes),
+                            mQueue.size());
+                    mReportedBytes = mCountingStream.mCount;
                 }
-                writeMessage(msg);
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -108,18 +299,35 @@ public class RecordingWriter implements Runnable{
         switch (msgCase) {
             case FRAME_META:
                 if (VERBOSE) Log.d(TAG,"Got Frame Meta");
-                mFrameDataQueue.add(msg.getFrameMeta());
-                tryVideoDataMerge();
+                VideoFrameMetaData frameMeta = msg.getFrameMeta();
+                MergeQueues metaQueues = getMergeQueues(frameMeta.getPhysicalCameraId());
+                if (!metaQueues.mFrameDataQueue.offer(frameMeta)) {
+                    Log.w(TAG, "Frame meta queue full, dropping oldest");
+                    reportDropped();
+                    metaQueues.mFrameDataQueue.poll();
+                    metaQueues.mFrameDataQueue.offer(frameMeta);
+                }
+                tryVideoDataMerge(metaQueues, frameMeta.getPhysicalCameraId());
                 break;
             case FRAME_TIME:
                 if (VERBOSE) Log.d(TAG,"Got Frame Time");
-                mFrameTimeQueue.add(msg.getFrameTime());
-                tryVideoDataMerge();
+                VideoFrameToTimestamp frameTime = msg.getFrameTime();
+                MergeQueues timeQueues = getMergeQueues(frameTime.getPhysicalCameraId());
+                if (!timeQueues.mFrameTimeQueue.offer(frameTime)) {
+                    Log.w(TAG, "Frame time queue full, dropping oldest");
+                    reportDropped();
+                    timeQueues.mFrameTimeQueue.poll();
+                    timeQueues.mFrameTimeQueue.offer(frameTime);
+                }
+                tryVideoDataMerge(timeQueues, frameTime.getPhysicalCameraId());
                 break;
             case IMU_DATA:
                 if (VERBOSE) Log.d(TAG,"Got IMU data");
                 VideoCaptureData.newBuilder().addImu(msg.getImuData())
                         .build().writeTo(mFileStream);
+                if (mSensorTrack != null) {
+                    mSensorTrack.add(msg.getImuData());
+                }
                 break;
             case IMU_META:
                 if (VERBOSE) Log.d(TAG,"Got IMU Info");
@@ -128,19 +336,44 @@ public class RecordingWriter implements Runnable{
                 break;
             case CAMERA_META:
                 if (VERBOSE) Log.d(TAG,"Got Camera Meta");
-                VideoCaptureData.newBuilder().mergeCameraMeta(msg.getCameraMeta())
+                if (msg.getCameraMeta().getPhysicalCameraId().isEmpty()) {
+                    VideoCaptureData.newBuilder().mergeCameraMeta(msg.getCameraMeta())
+                            .build().writeTo(mFileStream);
+                } else {
+                    VideoCaptureData.newBuilder().addPhysicalCameraMeta(msg.getCameraMeta())
+                            .build().writeTo(mFileStream);
+                }
+                break;
+            case CAPTURE_SUMMARY:
+                if (VERBOSE) Log.d(TAG,"Got Capture Summary");
+                VideoCaptureData.newBuilder().mergeCaptureSummary(msg.getCaptureSummary())
                         .build().writeTo(mFileStream);
                 break;
         }
     }
 
 
-    private void tryVideoDataMerge() throws IOException {
-        if (VERBOSE)  Log.d(TAG, String.format("Trying to merge, Queue lengths: %d,%d", mFrameDataQueue.size(), mFrameTimeQueue.size()));
+    // Empty id for the main stream.
+    private MergeQueues getMergeQueues(String physicalCameraId) {
+        if (physicalCameraId.isEmpty()) {
+            return mMainMerge;
+        }
+        MergeQueues queues = mPhysicalMerge.get(physicalCameraId);
+        if (queues == null) {
+            queues = new MergeQueues();
+            mPhysicalMerge.put(physicalCameraId, queues);
+        }
+        return queues;
+    }
+
+    private void tryVideoDataMerge(MergeQueues queues, String physicalCameraId) throws IOException {
+        Queue<VideoFrameMetaData> frameDataQueue = queues.mFrameDataQueue;
+        Queue<VideoFrameToTimestamp> frameTimeQueue = queues.mFrameTimeQueue;
+        if (VERBOSE)  Log.d(TAG, String.format("Trying to merge, Queue lengths: %d,%d", frameDataQueue.size(), frameTimeQueue.size()));
 
         // Peek at oldest frame time message
-        VideoFrameToTimestamp frameTimeMsg = mFrameTimeQueue.peek();
-        VideoFrameMetaData frameMetaMsg = mFrameDataQueue.peek();
+        VideoFrameToTimestamp frameTimeMsg = frameTimeQueue.peek();
+        VideoFrameMetaData frameMetaMsg = frameDataQueue.peek();
 
         //Try to find frames to match
         while ((frameTimeMsg != null) && (frameMetaMsg != null)) {
@@ -150,30 +383,51 @@ public class RecordingWriter implements Runnable{
             if (abs(timeDiffNs) <= 10000) {
                 // They are from the same capture frame
                 VideoFrameMetaData.Builder frameBuilder = VideoFrameMetaData.newBuilder().mergeFrom(frameMetaMsg)
-                        .setFrameNumber(frameTimeMsg.getFrameNbr());
-                VideoCaptureData.newBuilder().addVideoMeta(frameBuilder).build().writeTo(mFileStream);
+                        .setFrameNumber(frameTimeMsg.getFrameNbr())
+                        .setEncoderStats(frameTimeMsg.getEncoderStats());
+                VideoFrameMetaData frameData = frameBuilder.build();
+                if (!physicalCameraId.isEmpty()) {
+                    VideoCaptureData.newBuilder().addPhysicalVideoMeta(frameData).build()
+                            .writeTo(mFileStream);
+                } else {
+                    VideoCaptureData.newBuilder().addVideoMeta(frameData).build().writeTo(mFileStream);
+                    if (mLatencyTracer != null && frameData.getTimeNs() >= mFirstLiveFrameNs) {
+                        mLatencyTracer.mark(LatencyTracer.Point.FRAME_WRITTEN, frameData.getTimeNs());
+                    }
+                    if (mSensorTrack != null) {
+                        mSensorTrack.add(frameData);
+                    }
+                }
                 // Remove frames from queue
-                mFrameTimeQueue.poll();
-                mFrameDataQueue.poll();
+                frameTimeQueue.poll();
+                frameDataQueue.poll();
                 //We are done
                 break;
             } else if (timeDiffNs > 0) {
                 //Meta message is too old, try another one
-                mFrameDataQueue.poll(); // throw old
-                frameMetaMsg = mFrameDataQueue.peek();
+                frameDataQueue.poll(); // throw old
+                reportDropped();
+                frameMetaMsg = frameDataQueue.peek();
                 Log.d(TAG, "Diff too large, skipping frame meta data");
             } else {
                 // Frame Time message too old, try another one
-                mFrameTimeQueue.poll(); // throw old
-                frameTimeMsg = mFrameTimeQueue.peek();
+                frameTimeQueue.poll(); // throw old
+                reportDropped();
+                frameTimeMsg = frameTimeQueue.peek();
                 Log.d(TAG, "Diff too large, skipping frame time data");
             }
         }
 
     }
 
+    private void reportDropped() {
+        if (mCaptureHud != null) {
+            mCaptureHud.addMetaDropped();
+        }
+    }
+
     private void queueData(MessageWrapper msg) {
-        if (!isRecording()) {
+        if (!isRecording() && addPreRoll(msg)) {
             return;
         }
         try {
@@ -181,6 +435,32 @@ public class RecordingWriter implements Runnable{
         } catch (InterruptedException e) {
             throw new RuntimeException("Could not queue data: " + msg + "due to" + e);
         }
+        traceMessage(msg, LatencyTracer.Point.FRAME_QUEUED, LatencyTracer.Point.IMU_QUEUED);
+    }
+
+    // Marks main stream frame data or IMU data at the given point, null to skip the stream.
+    private void traceMessage(MessageWrapper msg, LatencyTracer.Point framePoint,
+                              LatencyTracer.Point imuPoint) {
+        LatencyTracer tracer = mLatencyTracer;
+        if (tracer == null || !tracer.isEnabled()) {
+            return;
+        }
+        switch (msg.getMsgCase()) {
+            case FRAME_META:
+                VideoFrameMetaData frameMeta = msg.getFrameMeta();
+                if (framePoint != null && frameMeta.getPhysicalCameraId().isEmpty()) {
+                    if (framePoint == LatencyTracer.Point.FRAME_DEQUEUED) {
+                        mFirstLiveFrameNs = Math.min(mFirstLiveFrameNs, frameMeta.getTimeNs());
+                    }
+                    tracer.mark(framePoint, frameMeta.getTimeNs());
+                }
+                break;
+            case IMU_DATA:
+                if (imuPoint != null) {
+                    tracer.mark(imuPoint, msg.getImuData().getTimeNs());
+                }
+                break;
+        }
     }
     public void queueData(VideoFrameMetaData msg) {
         queueData(MessageWrapper.newBuilder().setFrameMeta(msg).build());
@@ -197,5 +477,8 @@ public class RecordingWriter implements Runnable{
     public void queueData(CameraInfo msg) {
         queueData(MessageWrapper.newBuilder().setCameraMeta(msg).build());
     }
+    public void queueData(CaptureSummary msg) {
+        queueData(MessageWrapper.newBuilder().setCaptureSummary(msg).build());
+    }
 
 }
@@ -0,0 +1,557 @@
+package se.lth.math.videoimucapture;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Index of the access units in a recorded video, to extract frame subsets by seeking to the
+ * nearest key frame instead of decoding the whole video.
+ * <p>
+ * Layout, all integers little endian as in raw_frames.idx:
+ * <ul>
+ * <li>"VIMUIDX1", int32 version, int32 codec config length, the codec config (csd buffers,
+ * Annex B), followed by one record per access unit: int64 frame number, int64 pts_us,
+ * int64 file offset, int32 size, int32 flags.
+ * </ul>
+ * Frame numbers match frame_nbr in video_meta.pb3.  The muxers do not report where samples
+ * end up, so the app writes offset -1; resolveOffsets() takes them from the sample tables of
+ * the MP4, plain or fragmented, and the tool writes the resolved index back.
+ * <p>
+ * Plain Java so it also runs on a desktop JVM, see main().
+ */
+public class SampleIndex {
+    private static final byte[] MAGIC = "VIMUIDX1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 32;
+
+    public static final int FLAG_KEY_FRAME = 1;
+    public static final long UNKNOWN_OFFSET = -1;
+
+    private final byte[] mCodecConfig;
+    private final long[] mFrameNbr;
+    private final long[] mPtsUs;
+    private final long[] mOffset;
+    private final int[] mSize;
+    private final int[] mFlags;
+
+    /**
+     * Appends records as the video is written.
+     */
+    public static class Writer implements Closeable {
+        private final OutputStream mStream;
+        private final ByteBuffer mRecord =
+                ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        public Writer(String path) throws IOException {
+            mStream = new BufferedOutputStream(new FileOutputStream(path));
+        }
+
+        /**
+         * Writes the header, call once before the first add().
+         */
+        public void writeHeader(ByteBuffer... codecConfig) throws IOException {
+            int length = 0;
+            for (ByteBuffer csd : codecConfig) {
+                length += csd.remaining();
+            }
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 8 + length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(length);
+            for (ByteBuffer csd : codecConfig) {
+                header.put(csd.duplicate());
+            }
+            mStream.write(header.array());
+        }
+
+        public void add(long frameNbr, long ptsUs, long offset, int size, boolean keyFrame)
+                throws IOException {
+            mRecord.clear();
+            mRecord.putLong(frameNbr)
+                    .putLong(ptsUs)
+                    .putLong(offset)
+                    .putInt(size)
+                    .putInt(keyFrame ? FLAG_KEY_FRAME : 0);
+            mStream.write(mRecord.array());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mStream.close();
+        }
+    }
+
+    /**
+     * Access units to decode for some wanted frames: from a key frame up to the last
+     * wanted frame before the next key frame.  Each GOP decodes on its own.
+     */
+    public static class Gop {
+        public final int mKeyFrame;
+        public final int mEnd;              // exclusive
+        public final List<Integer> mWanted;
+
+        Gop(int keyFrame, int end, List<Integer> wanted) {
+            mKeyFrame = keyFrame;
+            mEnd = end;
+            mWanted = wanted;
+        }
+    }
+
+    private SampleIndex(byte[] codecConfig, int count) {
+        mCodecConfig = codecConfig;
+        mFrameNbr = new long[count];
+        mPtsUs = new long[count];
+        mOffset = new long[count];
+        mSize = new int[count];
+        mFlags = new int[count];
+    }
+
+    public static SampleIndex read(String path) throws IOException {
+        byte[] data;
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            data = new byte[(int) file.length()];
+            file.readFully(data);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[MAGIC.length];
+        buf.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a sample index: " + path);
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported sample index version " + version);
+        }
+        byte[] codecConfig = new byte[buf.getInt()];
+        buf.get(codecConfig);
+
+        // A recording cut short may end with a partial record.
+        SampleIndex index = new SampleIndex(codecConfig, buf.remaining() / RECORD_SIZE);
+        for (int i = 0; i < index.size(); i++) {
+            index.mFrameNbr[i] = buf.getLong();
+            index.mPtsUs[i] = buf.getLong();
+            index.mOffset[i] = buf.getLong();
+            index.mSize[i] = buf.getInt();
+            index.mFlags[i] = buf.getInt();
+        }
+        return index;
+    }
+
+    public void write(String path) throws IOException {
+        try (Writer writer = new Writer(path)) {
+            writer.writeHeader(ByteBuffer.wrap(mCodecConfig));
+            for (int i = 0; i < size(); i++) {
+                writer.add(mFrameNbr[i], mPtsUs[i], mOffset[i], mSize[i], isKeyFrame(i));
+            }
+        }
+    }
+
+    public int size() {
+        return mFrameNbr.length;
+    }
+
+    public long getFrameNbr(int i) {
+        return mFrameNbr[i];
+    }
+
+    public long getPtsUs(int i) {
+        return mPtsUs[i];
+    }
+
+    public long getOffset(int i) {
+        return mOffset[i];
+    }
+
+    public int getSize(int i) {
+        return mSize[i];
+    }
+
+    public boolean isKeyFrame(int i) {
+        return (mFlags[i] & FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean hasOffsets() {
+        for (long offset : mOffset) {
+            if (offset == UNKNOWN_OFFSET) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Groups the wanted records, in increasing order, by the key frame they need.
+     * Records before the first key frame cannot be decoded and are skipped.
+     */
+    public List<Gop> planExtraction(int[] wanted) {
+        List<Gop> gops = new ArrayList<>();
+        int keyFrame = -1;
+        int searched = 0;
+        int currentKeyFrame = -1;
+        List<Integer> current = null;
+        for (int record : wanted) {
+            // Latest key frame at or before the record.
+            for (; searched <= record; searched++) {
+                if (isKeyFrame(searched)) {
+                    keyFrame = searched;
+                }
+            }
+            if (keyFrame < 0) {
+                continue;
+            }
+            if (keyFrame != currentKeyFrame) {
+                addGop(gops, currentKeyFrame, current);
+                currentKeyFrame = keyFrame;
+                current = new ArrayList<>();
+            }
+            current.add(record);
+        }
+        addGop(gops, currentKeyFrame, current);
+        return gops;
+    }
+
+    private static void addGop(List<Gop> gops, int keyFrame, List<Integer> wanted) {
+        if (wanted != null) {
+            gops.add(new Gop(keyFrame, wanted.get(wanted.size() - 1) + 1, wanted));
+        }
+    }
+
+    /**
+     * Writes the access units of a GOP as an Annex B elementary stream, codec config first,
+     * which any H.264 or HEVC decoder can read.  Needs resolved offsets.
+     */
+    public void writeAnnexB(FileChannel video, Gop gop, WritableByteChannel out)
+            throws IOException {
+        writeFully(out, ByteBuffer.wrap(mCodecConfig));
+        for (int i = gop.mKeyFrame; i < gop.mEnd; i++) {
+            if (mOffset[i] == UNKNOWN_OFFSET) {
+                throw new IllegalStateException("Offset of record " + i + " not resolved");
+            }
+            ByteBuffer sample = ByteBuffer.allocate(mSize[i]);
+            while (sample.hasRemaining()) {
+                if (video.read(sample, mOffset[i] + sample.position()) < 0) {
+                    throw new IOException("Video ends before record " + i);
+                }
+            }
+            // Samples hold NAL units with 4 byte length prefixes, replace them by start codes.
+            int pos = 0;
+            while (pos + 4 <= mSize[i]) {
+                int nalLength = sample.getInt(pos);
+                sample.putInt(pos, 1);
+                pos += 4 + nalLength;
+            }
+            sample.position(0);
+            writeFully(out, sample);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /**
+     * Takes the file offset and size of every record from the video track of the MP4.
+     * Records and samples are matched in order.
+     *
+     * @return The number of records resolved.
+     */
+    public int resolveOffsets(FileChannel video) throws IOException {
+        List<long[]> samples = new ArrayList<>();
+        int trackId = -1;
+        long pos = 0;
+        long fileSize = video.size();
+        while (pos + 8 <= fileSize) {
+            ByteBuffer header = readBytes(video, pos, 16);
+            long size = header.getInt(0) & 0xffffffffL;
+            String type = typeAt(header, 4);
+            if (size == 1) {
+                size = header.getLong(8);
+            } else if (size == 0) {
+                size = fileSize - pos;
+            }
+            if (size < 8) {
+                throw new IOException("Bad box size at " + pos);
+            }
+            if (type.equals("moov")) {
+                ByteBuffer moov = readBytes(video, pos, (int) size);
+                trackId = readSampleTable(moov, samples);
+            } else if (type.equals("moof")) {
+                ByteBuffer moof = readBytes(video, pos, (int) size);
+                readFragment(moof, pos, trackId, samples);
+            }
+            pos += size;
+        }
+
+        int resolved = Math.min(samples.size(), size());
+        for (int i = 0; i < resolved; i++) {
+            mOffset[i] = samples.get(i)[0];
+            mSize[i] = (int) samples.get(i)[1];
+        }
+        return resolved;
+    }
+
+    // Adds {offset, size} for the samples in the stbl of the first video track, returns its id.
+    private static int readSampleTable(ByteBuffer moov, List<long[]> samples) throws IOException {
+        int trak = -1;
+        for (int child : children(moov, 0)) {
+            if (!typeAt(moov, child + 4).equals("trak")) {
+                continue;
+            }
+            int mdia = findChild(moov, child, "mdia");
+            int hdlr = findChild(moov, mdia, "hdlr");
+            if (typeAt(moov, hdlr + 16).equals("vide")) {
+                trak = child;
+                break;
+            }
+        }
+        if (trak < 0) {
+            throw new IOException("No video track");
+        }
+        int tkhd = findChild(moov, trak, "tkhd");
+        int trackId = moov.getInt(tkhd + (moov.get(tkhd + 8) == 1 ? 28 : 20));
+        int stbl = findChild(moov, findChild(moov, findChild(moov, trak, "mdia"), "minf"), "stbl");
+
+        int stsz = findChild(moov, stbl, "stsz");
+        int uniformSize = moov.getInt(stsz + 12);
+        int sampleCount = moov.getInt(stsz + 16);
+        if (sampleCount == 0) {
+            // Fragmented, samples are in the moof boxes.
+            return trackId;
+        }
+
+        long[] chunkOffsets;
+        int stco = findChildOrNegative(moov, stbl, "stco");
+        if (stco >= 0) {
+            chunkOffsets = new long[moov.getInt(stco + 12)];
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                chunkOffsets[i] = moov.getInt(stco + 16 + 4 * i) & 0xffffffffL;
+            }
+        } else {
+            int co64 = findChild(moov, stbl, "co64");
+            chunkOffsets = new long[moov.getInt(co64 + 12)];
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                chunkOffsets[i] = moov.getLong(co64 + 16 + 8 * i);
+            }
+        }
+
+        int stsc = findChild(moov, stbl, "stsc");
+        int entries = moov.getInt(stsc + 12);
+        int sample = 0;
+        for (int e = 0; e < entries; e++) {
+            int entry = stsc + 16 + 12 * e;
+            int firstChunk = moov.getInt(entry) - 1;
+            int samplesPerChunk = moov.getInt(entry + 4);
+            int endChunk = e + 1 < entries ? moov.getInt(entry + 12) - 1 : chunkOffsets.length;
+            for (int chunk = firstChunk; chunk < endChunk; chunk++) {
+                long offset = chunkOffsets[chunk];
+                for (int s = 0; s < samplesPerChunk && sample < sampleCount; s++, sample++) {
+                    int size = uniformSize != 0 ? uniformSize : moov.getInt(stsz + 20 + 4 * sample);
+                    samples.add(new long[]{offset, size});
+                    offset += size;
+                }
+            }
+        }
+        return trackId;
+    }
+
+    // Adds {offset, size} for the samples of the track in one moof box at moofPos.
+    private static void readFragment(ByteBuffer moof, long moofPos, int trackId,
+                                     List<long[]> samples) throws IOException {
+        for (int traf : children(moof, 0)) {
+            if (!typeAt(moof, traf + 4).equals("traf")) {
+                continue;
+            }
+            int tfhd = findChild(moof, traf, "tfhd");
+            int flags = moof.getInt(tfhd + 8) & 0xffffff;
+            if (moof.getInt(tfhd + 12) != trackId) {
+                continue;
+            }
+            int field = tfhd + 16;
+            long base = moofPos;
+            if ((flags & 0x01) != 0) {
+                base = moof.getLong(field);
+                field += 8;
+            }
+            if ((flags & 0x02) != 0) field += 4;
+            if ((flags & 0x08) != 0) field += 4;
+            int defaultSize = 0;
+            if ((flags & 0x10) != 0) {
+                defaultSize = moof.getInt(field);
+            }
+
+            for (int trun : children(moof, traf)) {
+                if (!typeAt(moof, trun + 4).equals("trun")) {
+                    continue;
+                }
+                int trunFlags = moof.getInt(trun + 8) & 0xffffff;
+                int count = moof.getInt(trun + 12);
+                int p = trun + 16;
+                long offset = base;
+                if ((trunFlags & 0x01) != 0) {
+                    offset += moof.getInt(p);
+                    p += 4;
+                }
+                if ((trunFlags & 0x04) != 0) p += 4;
+                for (int s = 0; s < count; s++) {
+                    if ((trunFlags & 0x100) != 0) p += 4;
+                    int size = defaultSize;
+                    if ((trunFlags & 0x200) != 0) {
+                        size = moof.getInt(p);
+                        p += 4;
+                    }
+                    if ((trunFlags & 0x400) != 0) p += 4;
+                    if ((trunFlags & 0x800) != 0) p += 4;
+                    samples.add(new long[]{offset, size});
+                    offset += size;
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer readBytes(FileChannel channel, long pos, int length)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, channel.size() - pos));
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                break;
+            }
+        }
+        buf.clear();
+        return buf;
+    }
+
+    private static String typeAt(ByteBuffer buf, int pos) {
+        byte[] type = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = buf.get(pos + i);
+        }
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+
+    // Start of every child of the box at parent, full boxes are not containers here.
+    private static List<Integer> children(ByteBuffer buf, int parent) throws IOException {
+        List<Integer> children = new ArrayList<>();
+        int end = parent + buf.getInt(parent);
+        int pos = parent + 8;
+        while (pos + 8 <= end) {
+            int size = buf.getInt(pos);
+            if (size < 8 || pos + size > end) {
+                throw new IOException("Bad box size at " + pos);
+            }
+            children.add(pos);
+            pos += size;
+        }
+        return children;
+    }
+
+    private static int findChildOrNegative(ByteBuffer buf, int parent, String type)
+            throws IOException {
+        for (int child : children(buf, parent)) {
+            if (typeAt(buf, child + 4).equals(type)) {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    private static int findChild(ByteBuffer buf, int parent, String type) throws IOException {
+        int child = findChildOrNegative(buf, parent, type);
+        if (child < 0) {
+            throw new IOException("No " + type + " box in " + typeAt(buf, parent + 4));
+        }
+        return child;
+    }
+
+    /**
+     * Writes every n-th frame of a recording, with the frames needed to decode it, as one
+     * Annex B file per GOP.  GOPs are written in parallel.  Decode a GOP file with e.g.
+     * ffmpeg and keep the frames listed for it in frames.csv.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: SampleIndex <video_recording.mp4> <video_recording.idx> " +
+                    "<result dir> [subsample]");
+            System.exit(1);
+        }
+        String videoPath = args[0];
+        String indexPath = args[1];
+        File resultDir = new File(args[2]);
+        int subsample = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        SampleIndex index = read(indexPath);
+        try (FileChannel video = new RandomAccessFile(videoPath, "r").getChannel()) {
+            if (!index.hasOffsets()) {
+                int resolved = index.resolveOffsets(video);
+                if (resolved != index.size()) {
+                    System.err.println("Warning: " + index.size() + " records but " + resolved +
+                            " samples in video");
+                }
+                index.write(indexPath);
+            }
+
+            int[] wanted = new int[(index.size() + subsample - 1) / subsample];
+            for (int i = 0; i < wanted.length; i++) {
+                wanted[i] = i * subsample;
+            }
+            List<Gop> gops = index.planExtraction(wanted);
+
+            if (!resultDir.isDirectory() && !resultDir.mkdirs()) {
+                throw new IOException("Could not create " + resultDir);
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors());
+            List<Future<?>> results = new ArrayList<>();
+            for (Gop gop : gops) {
+                results.add(executor.submit(() -> {
+                    File out = new File(resultDir, index.gopFileName(gop));
+                    // FileChannel reads at a position are safe from several threads.
+                    try (FileChannel channel = new FileOutputStream(out).getChannel()) {
+                        index.writeAnnexB(video, gop, channel);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            executor.shutdown();
+
+            try (PrintWriter csv = new PrintWriter(new File(resultDir, "frames.csv"), "UTF-8")) {
+                csv.println("gop_file,decode_index,frame_nbr,pts_us");
+                for (Gop gop : gops) {
+                    for (int record : gop.mWanted) {
+                        csv.printf(Locale.US, "%s,%d,%d,%d%n", index.gopFileName(gop),
+                                record - gop.mKeyFrame, index.mFrameNbr[record],
+                                index.mPtsUs[record]);
+                    }
+                }
+            }
+            System.out.println("Wrote " + wanted.length + " frames in " + gops.size() + " GOPs");
+        }
+    }
+
+    private String gopFileName(Gop gop) {
+        return String.format(Locale.US, "gop_%06d.h264", mFrameNbr[gop.mKeyFrame]);
+    }
+}
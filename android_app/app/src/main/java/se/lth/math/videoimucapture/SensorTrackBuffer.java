@@ -0,0 +1,75 @@
+package se.lth.math.videoimucapture;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+import se.lth.math.videoimucapture.RecordingProtos.IMUData;
+import se.lth.math.videoimucapture.RecordingProtos.VideoCaptureData;
+import se.lth.math.videoimucapture.RecordingProtos.VideoFrameMetaData;
+
+/**
+ * Collects IMU samples and frame metadata for the timed metadata track in the MP4.
+ * <p>
+ * RecordingWriter adds messages as they are written to video_meta.pb3, the video encoder
+ * takes everything collected since the previous frame each time it writes a frame.  A batch
+ * is a serialized VideoCaptureData with only the imu and video_meta fields set, so readers
+ * can parse the track samples with the same proto as the sidecar file.  Frame metadata is
+ * merged with the encoder output first, so it usually lands in the batch of the next frame.
+ */
+public class SensorTrackBuffer {
+    private static final String TAG = "SensorTrackBuffer";
+
+    // MediaMuxer requires metadata track mime types to start with "application/".
+    public static final String MIME_TYPE = "application/x-videoimu-capture-data";
+
+    // Bound the batch if the muxer never starts, ~10s of IMU at 200Hz.
+    private static final int MAX_PENDING = 2000;
+
+    private VideoCaptureData.Builder mBatch = VideoCaptureData.newBuilder();
+    private int mPending = 0;
+    private long mDropped = 0;
+
+    public synchronized void add(IMUData msg) {
+        if (isFull()) {
+            return;
+        }
+        mBatch.addImu(msg);
+        mPending++;
+    }
+
+    public synchronized void add(VideoFrameMetaData msg) {
+        if (isFull()) {
+            return;
+        }
+        mBatch.addVideoMeta(msg);
+        mPending++;
+    }
+
+    private boolean isFull() {
+        if (mPending < MAX_PENDING) {
+            return false;
+        }
+        if (mDropped++ == 0) {
+            Log.w(TAG, "Sensor track batch full, dropping samples");
+        }
+        return true;
+    }
+
+    /**
+     * Returns the serialized batch collected since the last call, or null if nothing was added.
+     */
+    public synchronized ByteBuffer takeBatch() {
+        if (mPending == 0) {
+            return null;
+        }
+        ByteBuffer batch = ByteBuffer.wrap(mBatch.build().toByteArray());
+        mBatch = VideoCaptureData.newBuilder();
+        mPending = 0;
+        return batch;
+    }
+
+    public synchronized long getDroppedSamples() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,200 @@
+package se.lth.math.videoimucapture;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes full resolution JPEG stills, requested now and then during video recording.
+ * <p>
+ * The camera encodes the JPEG, the ImageReader thread only copies it into one of a few
+ * reused buffers and closes the Image.  A writer thread stores it as
+ * stills/&lt;sensor_timestamp_ns&gt;.jpg, the same timestamp as time_ns in video_meta and
+ * on the IMU clock when the camera timestamp source is realtime.  When all buffers are
+ * waiting for the disk the still is dropped, the camera is never kept waiting.
+ */
+public class StillFrameWriter implements ImageReader.OnImageAvailableListener {
+    private static final String TAG = "StillFrameWriter";
+
+    private static final int RING_SIZE = 3;
+    private static final int MAX_IMAGES = 2;
+
+    public interface Listener {
+        /**
+         * A still arrived from the camera, on the ImageReader thread.
+         */
+        void onStillAvailable(long timestampNs);
+    }
+
+    private static class Still {
+        byte[] mData;
+        int mLength;
+        long mTimestampNs;
+    }
+
+    private final BlockingQueue<Still> mFreeStills = new ArrayBlockingQueue<>(RING_SIZE);
+    private final BlockingQueue<Still> mFilledStills = new ArrayBlockingQueue<>(RING_SIZE + 1);
+    private final Still mPoisonPill = new Still();
+    private final Listener mListener;
+    private final int mInitialBufferSize;
+
+    private final HandlerThread mReaderThread;
+    private final ImageReader mImageReader;
+
+    private Thread mWriterThread;
+    private String mOutputDir;
+    private volatile boolean mRecording = false;
+    private final AtomicLong mWrittenStills = new AtomicLong();
+    private final AtomicLong mDroppedStills = new AtomicLong();
+
+    public StillFrameWriter(Size size, Listener listener) {
+        mListener = listener;
+        // Camera JPEGs are well below a byte per pixel, buffers grow if not.
+        mInitialBufferSize = size.getWidth() * size.getHeight() / 2;
+        for (int i = 0; i < RING_SIZE; i++) {
+            mFreeStills.add(new Still());
+        }
+        mReaderThread = new HandlerThread("StillReader");
+        mReaderThread.start();
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.JPEG, MAX_IMAGES);
+        mImageReader.setOnImageAvailableListener(this, new Handler(mReaderThread.getLooper()));
+    }
+
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Stops any recording and releases the ImageReader, the surface must no longer be in use.
+     */
+    public void release() {
+        stopRecording();
+        mImageReader.close();
+        mReaderThread.quitSafely();
+    }
+
+    public long getWrittenStills() {
+        return mWrittenStills.get();
+    }
+
+    public long getDroppedStills() {
+        return mDroppedStills.get();
+    }
+
+    public void startRecording(String outputDir) {
+        if (mRecording) {
+            Log.w(TAG, "Already recording");
+            return;
+        }
+        mOutputDir = outputDir + File.separator + "stills";
+        // A still that slipped in after the last stop, from the previous recording.
+        recycleFilledStills();
+        mWrittenStills.set(0);
+        mDroppedStills.set(0);
+        mWriterThread = new Thread(this::writeLoop, "StillWriter");
+        mWriterThread.start();
+        mRecording = true;
+    }
+
+    /**
+     * Stops accepting stills and waits for queued stills to reach the files.
+     */
+    public void stopRecording() {
+        if (!mRecording) {
+            return;
+        }
+        mRecording = false;
+        try {
+            mFilledStills.put(mPoisonPill);
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWriterThread = null;
+        Log.d(TAG, String.format(Locale.US, "Wrote %d stills, dropped %d",
+                getWrittenStills(), getDroppedStills()));
+    }
+
+    @Override  // runs on the ImageReader handler thread
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (image == null) {
+            return;
+        }
+        try {
+            mListener.onStillAvailable(image.getTimestamp());
+            if (!mRecording) {
+                return;
+            }
+            Still still = mFreeStills.poll();
+            if (still == null) {
+                mDroppedStills.incrementAndGet();
+                return;
+            }
+            ByteBuffer jpeg = image.getPlanes()[0].getBuffer();
+            still.mLength = jpeg.remaining();
+            if (still.mData == null || still.mData.length < still.mLength) {
+                still.mData = new byte[Math.max(still.mLength, mInitialBufferSize)];
+            }
+            jpeg.get(still.mData, 0, still.mLength);
+            still.mTimestampNs = image.getTimestamp();
+            mFilledStills.add(still);
+        } finally {
+            image.close();
+        }
+    }
+
+    private void writeLoop() {
+        File dir = new File(mOutputDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Could not create " + mOutputDir);
+        }
+        try {
+            while (true) {
+                Still still = mFilledStills.take();
+                if (still == mPoisonPill) {
+                    break;
+                }
+                String path = mOutputDir + File.separator + still.mTimestampNs + ".jpg";
+                try (FileOutputStream out = new FileOutputStream(path)) {
+                    out.write(still.mData, 0, still.mLength);
+                    mWrittenStills.incrementAndGet();
+                } catch (IOException e) {
+                    Log.e(TAG, "Still write failed: " + e);
+                    mDroppedStills.incrementAndGet();
+                }
+                mFreeStills.add(still);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // The reader may have queued a still behind the poison pill.
+            recycleFilledStills();
+        }
+    }
+
+    // Returns stills queued outside a recording to the free ring, the pill is dropped.
+    private void recycleFilledStills() {
+        Still still;
+        while ((still = mFilledStills.poll()) != null) {
+            if (still != mPoisonPill) {
+                mFreeStills.offer(still);
+            }
+        }
+    }
+}
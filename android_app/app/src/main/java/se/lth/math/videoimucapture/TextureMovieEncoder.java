@@ -17,15 +17,23 @@
 package se.lth.math.videoimucapture;
 
 import android.graphics.SurfaceTexture;
+import android.media.MediaFormat;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
+import android.util.Range;
+import android.view.Surface;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import se.lth.math.videoimucapture.gles.EglCore;
 import se.lth.math.videoimucapture.gles.FullFrameRect;
@@ -48,13 +56,16 @@ import se.lth.math.videoimucapture.gles.WindowSurface;
  * To use:
  * <ul>
  * <li>create TextureMovieEncoder object
- * <li>create an EncoderConfig
+ * <li>create an EncoderConfig with EncoderConfig.Builder
  * <li>call TextureMovieEncoder#startRecording() with the config
  * <li>call TextureMovieEncoder#setTextureId() with the texture object that receives frames
  * <li>for each frame, after latching it with SurfaceTexture#updateTexImage(),
  * call TextureMovieEncoder#frameAvailable().
  * </ul>
  * <p>
+ * The encoder thread is kept between recordings, together with its EGL context and blit
+ * program as long as the shared context stays the same.  Call quit() to end it.
+ * <p>
  * TODO: tweak the API (esp. textureId) so it's less awkward for simple use cases.
  */
 public class TextureMovieEncoder implements Runnable {
@@ -68,6 +79,9 @@ public class TextureMovieEncoder implements Runnable {
     private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
     private static final int MSG_QUIT = 5;
 
+    // Frames that may wait for the encoder thread, newer frames are dropped beyond this.
+    private static final int FRAME_SLOTS = 4;
+
     // ----- accessed exclusively by encoder thread -----
     private WindowSurface mInputWindowSurface;
     private EglCore mEglCore;
@@ -75,19 +89,53 @@ public class TextureMovieEncoder implements Runnable {
     private int mTextureId;
     private int mFrameNum;
     private VideoEncoderCore mVideoEncoder;
+    private EGLContext mEglSharedContext;
+    // Codec configured but not fed, see EncoderConfig.Builder#setPreRoll().
+    private boolean mWarm;
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
 
     private Object mReadyFence = new Object();      // guards ready/running
-    private boolean mReady;
+    private boolean mReady;                         // thread is running
     private boolean mRunning;
+    private boolean mPreRolling;
     private Long mLastFrameTimeNs = null;
     public Float mFrameRate = 15.f;
-    private float[] STMatrix = new float[16];
+    private volatile float mEncoderLatencyMs = 0.f;
+
+    /**
+     * A frame handed to the encoder thread.  Each slot owns its transform so queued frames
+     * never share a matrix with the one being latched.
+     */
+    private static class FrameSlot {
+        final float[] mTransform = new float[16];
+        long mTimestampNs;
+    }
+
+    // Filled once, slots still queued when a session stops are handed back after it.
+    private final BlockingQueue<FrameSlot> mFreeSlots = new ArrayBlockingQueue<>(FRAME_SLOTS);
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private final AtomicLong mQueuedFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mEncodedFrames = new AtomicLong();
 
     public interface EncoderListener {
         void onEncodingFinished();
+
+        /**
+         * Called on the encoder thread in direct input mode, when the camera should start
+         * writing frames to the encoder input surface.
+         */
+        void onDirectInputReady(Surface inputSurface);
+
+        /**
+         * Called on the encoder thread in direct input mode, before the end of stream is
+         * signalled and the encoder released.  Returns once the camera no longer writes to
+         * the encoder input surface.
+         */
+        void onDirectInputStopping(Surface inputSurface);
     }
     private EncoderListener mListener = null; //Listener for the Capture UI to know when we are done.
 
@@ -96,33 +144,315 @@ public class TextureMovieEncoder implements Runnable {
      * <p>
      * Object is immutable, which means we can safely pass it between threads without
      * explicit synchronization (and don't need to worry about it getting tweaked out from
-     * under us).
-     * <p>
-     * TODO: make frame rate and iframe interval configurable?  Maybe use builder pattern
-     * with reasonable defaults for those and bit rate.
+     * under us).  Use the Builder, which has reasonable defaults for the codec parameters
+     * and derives the bit rate from the frame size if it is not given.
      */
     public static class EncoderConfig {
+        public static final String DEFAULT_MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+        public static final int DEFAULT_FRAME_RATE = 30;        // 30fps
+        public static final int DEFAULT_IFRAME_INTERVAL = 1;    // seconds between I-frames
+        public static final float DEFAULT_BITS_PER_PIXEL = 0.25f;
+        public static final int UNSET = -1;                     // leave to codec default
+
         final String mOutputFile;
         final int mWidth;
         final int mHeight;
         final int mBitRate;
+        final int mMaxBitRate;
+        final MotionBitRateController mBitRateController;
+        final CaptureHud mCaptureHud;
+        final LatencyTracer mLatencyTracer;
+        final String mPhysicalCameraId;
         final EGLContext mEglContext;
         final RecordingWriter mMetaRecorder;
-
-        public EncoderConfig(String outputFile, int width, int height, int bitRate,
-                             EGLContext sharedEglContext, RecordingWriter metaRecorder) {
-            mOutputFile = outputFile;
-            mWidth = width;
-            mHeight = height;
+        final boolean mAsyncEncoder;
+        final boolean mDirectInput;
+        final int mOrientationHint;
+        final boolean mRealtimeTimestamps;
+        final SensorTrackBuffer mSensorTrack;
+        final boolean mFragmentedMp4;
+        final int mPreRollSeconds;
+        final int mPreRollRetentionSeconds;
+        final long mStartRequestNs;
+        final String mMimeType;
+        final String mCodecName;
+        final int mBitRateMode;
+        final int mQuality;
+        final int mFrameRate;
+        final int mIFrameInterval;
+        final int mProfile;
+        final int mLevel;
+
+        private EncoderConfig(Builder builder) {
+            mOutputFile = builder.mOutputFile;
+            mWidth = builder.mWidth;
+            mHeight = builder.mHeight;
+            mEglContext = builder.mEglContext;
+            mMetaRecorder = builder.mMetaRecorder;
+            // Nothing feeds the encoder thread in direct mode, so output must be drained
+            // on the callback thread.
+            mAsyncEncoder = builder.mAsyncEncoder || builder.mDirectInput;
+            mDirectInput = builder.mDirectInput;
+            mOrientationHint = builder.mOrientationHint;
+            mRealtimeTimestamps = builder.mRealtimeTimestamps;
+            mSensorTrack = builder.mSensorTrack;
+            mFragmentedMp4 = builder.mFragmentedMp4;
+            mPreRollSeconds = builder.mPreRollSeconds;
+            mPreRollRetentionSeconds = builder.getPreRollRetentionSeconds();
+            mStartRequestNs = builder.mStartRequestNs;
+            mMimeType = builder.mMimeType;
+            mCodecName = builder.mCodecName;
+            mBitRateMode = builder.mBitRateMode;
+            mQuality = builder.mQuality;
+            mFrameRate = builder.mFrameRate;
+            mIFrameInterval = builder.mIFrameInterval;
+            mProfile = builder.mProfile;
+            mLevel = builder.mLevel;
+
+            int bitRate = builder.mBitRate > 0 ? builder.mBitRate :
+                    CameraUtils.calcBitRate(mWidth, mHeight, mFrameRate, builder.mBitsPerPixel);
+            if (builder.mBitRateRange != null) {
+                bitRate = builder.mBitRateRange.clamp(bitRate);
+            }
             mBitRate = bitRate;
-            mEglContext = sharedEglContext;
-            mMetaRecorder = metaRecorder;
+            mMaxBitRate = builder.mBitRateRange != null ?
+                    builder.mBitRateRange.getUpper() : Integer.MAX_VALUE;
+            mBitRateController = builder.mBitRateController;
+            mCaptureHud = builder.mCaptureHud;
+            mLatencyTracer = builder.mLatencyTracer;
+            mPhysicalCameraId = builder.mPhysicalCameraId;
         }
 
         @Override
         public String toString() {
-            return "EncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate +
-                    " to '" + mOutputFile + "' ctxt=" + mEglContext;
+            return "EncoderConfig: " + mMimeType + " " + mWidth + "x" + mHeight +
+                    " @" + mBitRate + " " + mFrameRate + "fps gop=" + mIFrameInterval + "s" +
+                    " to '" + mOutputFile + "' ctxt=" + mEglContext +
+                    (mAsyncEncoder ? " async" : "") +
+                    (mDirectInput ? " direct rot=" + mOrientationHint : "") +
+                    (mSensorTrack != null ? " sensor-track" : "") +
+                    (mFragmentedMp4 ? " fmp4" : "") +
+                    (mBitRateController != null ? " motion-bitrate" : "") +
+                    (mPhysicalCameraId != null ? " physical=" + mPhysicalCameraId : "") +
+                    (mOutputFile == null ? (mPreRollSeconds > 0 ?
+                            " pre-roll=" + mPreRollSeconds + "s" : " warm") : "");
+        }
+
+        public static class Builder {
+            private String mOutputFile;
+            private int mWidth;
+            private int mHeight;
+            private int mBitRate = UNSET;
+            private float mBitsPerPixel = DEFAULT_BITS_PER_PIXEL;
+            private Range<Integer> mBitRateRange = null;
+            private MotionBitRateController mBitRateController = null;
+            private CaptureHud mCaptureHud = null;
+            private LatencyTracer mLatencyTracer = null;
+            private String mPhysicalCameraId = null;
+            private EGLContext mEglContext;
+            private RecordingWriter mMetaRecorder;
+            private boolean mAsyncEncoder = false;
+            private boolean mDirectInput = false;
+            private int mOrientationHint = 0;
+            private boolean mRealtimeTimestamps = false;
+            private SensorTrackBuffer mSensorTrack = null;
+            private boolean mFragmentedMp4 = false;
+            private int mPreRollSeconds = 0;
+            private long mStartRequestNs = 0;
+            private String mMimeType = DEFAULT_MIME_TYPE;
+            private String mCodecName = null;
+            private int mBitRateMode = UNSET;
+            private int mQuality = UNSET;
+            private int mFrameRate = DEFAULT_FRAME_RATE;
+            private int mIFrameInterval = DEFAULT_IFRAME_INTERVAL;
+            private int mProfile = UNSET;
+            private int mLevel = UNSET;
+
+            public Builder setOutput(String outputFile, RecordingWriter metaRecorder) {
+                mOutputFile = outputFile;
+                mMetaRecorder = metaRecorder;
+                return this;
+            }
+
+            public Builder setSize(int width, int height) {
+                mWidth = width;
+                mHeight = height;
+                return this;
+            }
+
+            public Builder setEglContext(EGLContext sharedEglContext) {
+                mEglContext = sharedEglContext;
+                return this;
+            }
+
+            public Builder setAsyncEncoder(boolean asyncEncoder) {
+                mAsyncEncoder = asyncEncoder;
+                return this;
+            }
+
+            /**
+             * Lets the camera write directly to the encoder input surface instead of going
+             * through the GL texture.
+             */
+            public Builder setDirectInput(boolean directInput) {
+                mDirectInput = directInput;
+                return this;
+            }
+
+            /**
+             * Rotation in degrees stored in the container for players to apply.
+             */
+            public Builder setOrientationHint(int degrees) {
+                mOrientationHint = degrees;
+                return this;
+            }
+
+            /**
+             * True if sensor timestamps use the elapsedRealtime clock rather than the
+             * monotonic one, see CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE.
+             */
+            public Builder setRealtimeTimestamps(boolean realtimeTimestamps) {
+                mRealtimeTimestamps = realtimeTimestamps;
+                return this;
+            }
+
+            /**
+             * Writes the batches collected in sensorTrack as a timed metadata track next to
+             * the video, one sample per frame.  Needs API 26, ignored on older devices.
+             */
+            public Builder setSensorTrack(SensorTrackBuffer sensorTrack) {
+                mSensorTrack = sensorTrack;
+                return this;
+            }
+
+            /**
+             * Writes a fragmented MP4, one fragment per GOP, so a crash only loses the GOP
+             * being recorded.  Only for H.264, other codecs fall back to MediaMuxer.
+             */
+            public Builder setFragmentedMp4(boolean fragmentedMp4) {
+                mFragmentedMp4 = fragmentedMp4;
+                return this;
+            }
+
+            /**
+             * Seconds to keep in memory when started without an output file, see
+             * TextureMovieEncoder#startRecording().  With 0 the encoder is only kept warm:
+             * codec and EGL state are ready but no frames are encoded until recording starts.
+             */
+            public Builder setPreRoll(int seconds) {
+                mPreRollSeconds = seconds;
+                return this;
+            }
+
+            /**
+             * System.nanoTime() when the user asked to record, to measure the time until the
+             * first encoded frame.
+             */
+            public Builder setStartRequestTime(long timeNs) {
+                mStartRequestNs = timeNs;
+                return this;
+            }
+
+            /**
+             * Time the encoder keeps when pre-recording: the pre-record time plus one I-frame
+             * interval, so that the saved video can start at a key frame.
+             */
+            public int getPreRollRetentionSeconds() {
+                return Math.max(mPreRollSeconds, 1) + Math.max(mIFrameInterval, 1);
+            }
+
+            public boolean isDirectInput() {
+                return mDirectInput;
+            }
+
+            /**
+             * Sets the codec, codecName may be null to let MediaCodec pick an encoder.
+             */
+            public Builder setCodec(String mimeType, String codecName) {
+                mMimeType = mimeType;
+                mCodecName = codecName;
+                return this;
+            }
+
+            public Builder setBitRate(int bitRate) {
+                mBitRate = bitRate;
+                return this;
+            }
+
+            /**
+             * Bits per pixel and valid range used to derive the bit rate when not set.
+             */
+            public Builder setBitRatePolicy(float bitsPerPixel, Range<Integer> validRange) {
+                mBitsPerPixel = bitsPerPixel;
+                mBitRateRange = validRange;
+                return this;
+            }
+
+            /**
+             * Lets the controller raise or lower the bit rate with camera motion.  Has no
+             * effect in constant quality mode.
+             */
+            public Builder setBitRateController(MotionBitRateController controller) {
+                mBitRateController = controller;
+                return this;
+            }
+
+            /**
+             * Live panel to report written bytes, muxer queue and latency to, may be null.
+             */
+            public Builder setCaptureHud(CaptureHud hud) {
+                mCaptureHud = hud;
+                return this;
+            }
+
+            /**
+             * Tracer for the encoder output and muxer write points, may be null.
+             */
+            public Builder setLatencyTracer(LatencyTracer tracer) {
+                mLatencyTracer = tracer;
+                return this;
+            }
+
+            /**
+             * Tags the frame timestamps with a physical camera id, for the extra streams of a
+             * multi-camera recording.  Null for the main stream.
+             */
+            public Builder setPhysicalCameraId(String id) {
+                mPhysicalCameraId = id;
+                return this;
+            }
+
+            public Builder setBitRateMode(int bitRateMode, int quality) {
+                mBitRateMode = bitRateMode;
+                mQuality = quality;
+                return this;
+            }
+
+            public Builder setFrameRate(int frameRate) {
+                mFrameRate = frameRate;
+                return this;
+            }
+
+            public Builder setIFrameInterval(int seconds) {
+                mIFrameInterval = seconds;
+                return this;
+            }
+
+            public Builder setProfileLevel(int profile, int level) {
+                mProfile = profile;
+                mLevel = level;
+                return this;
+            }
+
+            public EncoderConfig build() {
+                return new EncoderConfig(this);
+            }
+        }
+    }
+
+    public TextureMovieEncoder() {
+        for (int i = 0; i < FRAME_SLOTS; i++) {
+            mFreeSlots.add(new FrameSlot());
         }
     }
 
@@ -133,30 +463,47 @@ public class TextureMovieEncoder implements Runnable {
     /**
      * Tells the video recorder to start recording.  (Call from non-encoder thread.)
      * <p>
-     * Creates a new thread, which will create an encoder using the provided configuration.
+     * Starts the encoder thread if needed, which will create an encoder using the provided
+     * configuration.
+     * <p>
+     * If the config has no output file the encoder pre-records: the last seconds of encoded
+     * frames are kept in memory until startRecording() is called again with an output file,
+     * which then starts with the buffered frames.  Only the output fields of that second
+     * config are used.
      * <p>
      * Returns after the recorder thread has started and is ready to accept Messages.  The
-     * encoder may not yet be fully configured.
+     * encoder may not yet be fully configured.  Returns false if the encoder was busy, for
+     * instance still finishing the previous recording.
      */
-    public void startRecording(EncoderConfig config) {
+    public boolean startRecording(EncoderConfig config) {
         Log.d(TAG, "Encoder: startRecording()");
         synchronized (mReadyFence) {
             if (mRunning) {
+                if (mPreRolling && config.mOutputFile != null) {
+                    mPreRolling = false;
+                    mHandler.sendMessage(mHandler.obtainMessage(MSG_START_RECORDING, config));
+                    return true;
+                }
                 Log.w(TAG, "Encoder thread already running");
-                return;
+                return false;
             }
             mRunning = true;
-            new Thread(this, "TextureMovieEncoder").start();
-            while (!mReady) {
-                try {
-                    mReadyFence.wait();
-                } catch (InterruptedException ie) {
-                    // ignore
+            mPreRolling = config.mOutputFile == null;
+            resetFrameStats();
+            if (!mReady) {
+                new Thread(this, "TextureMovieEncoder").start();
+                while (!mReady) {
+                    try {
+                        mReadyFence.wait();
+                    } catch (InterruptedException ie) {
+                        // ignore
+                    }
                 }
             }
         }
 
         mHandler.sendMessage(mHandler.obtainMessage(MSG_START_RECORDING, config));
+        return true;
     }
 
     /**
@@ -166,21 +513,97 @@ public class TextureMovieEncoder implements Runnable {
      * <p>
      */
     public void stopRecording() {
+        synchronized (mReadyFence) {
+            // A stopping pre-record encoder can no longer be turned into a recording.
+            mPreRolling = false;
+        }
         mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
-        // We don't know when these will actually finish (or even start).  We don't want to
+        // We don't know when this will actually finish (or even start).  We don't want to
         // delay the UI thread though, so we return immediately.
     }
 
     /**
-     * Returns true if recording has been started.
+     * Ends the encoder thread after any pending stop, releasing the EGL state.  Call when the
+     * shared EGL context goes away.  (Call from non-encoder thread.)
+     */
+    public void quit() {
+        synchronized (mReadyFence) {
+            if (!mReady) {
+                return;
+            }
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+        }
+    }
+
+    /**
+     * Returns true if recording has been started, not counting pre-record.
      */
     public boolean isRecording() {
         synchronized (mReadyFence) {
-            return mRunning;
+            return mRunning && !mPreRolling;
+        }
+    }
+
+    /**
+     * Returns true if the encoder is running without an output file.
+     */
+    public boolean isPreRolling() {
+        synchronized (mReadyFence) {
+            return mRunning && mPreRolling;
         }
     }
 
+    /**
+     * Returns the latency added by the encoder for the latest frame, from input surface
+     * submit to encoded output, in milliseconds.
+     */
+    public float getEncoderLatencyMs() {
+        return mEncoderLatencyMs;
+    }
+
+    /**
+     * Returns the number of frames handed to the encoder thread during this recording.
+     */
+    public long getQueuedFrames() {
+        return mQueuedFrames.get();
+    }
+
+    /**
+     * Returns the number of frames dropped because the encoder thread was behind.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * Returns the number of frames submitted to the codec.
+     */
+    public long getEncodedFrames() {
+        return mEncodedFrames.get();
+    }
+
+    /**
+     * Returns the number of frames waiting for the encoder thread.
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * Returns the highest number of frames waiting for the encoder thread at once.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    // The queue depth is left alone, it counts slots of the previous session still queued.
+    private void resetFrameStats() {
+        mMaxQueueDepth.set(0);
+        mQueuedFrames.set(0);
+        mDroppedFrames.set(0);
+        mEncodedFrames.set(0);
+    }
+
     /**
      * Tells the video recorder to refresh its EGL surface.  (Call from non-encoder thread.)
      */
@@ -191,15 +614,9 @@ public class TextureMovieEncoder implements Runnable {
     /**
      * Tells the video recorder that a new frame is available.  (Call from non-encoder thread.)
      * <p>
-     * This function sends a message and returns immediately.  This isn't sufficient -- we
-     * don't want the caller to latch a new frame until we're done with this one -- but we
-     * can get away with it so long as the input frame rate is reasonable and the encoder
-     * thread doesn't stall.
-     * <p>
-     * TODO: either block here until the texture has been rendered onto the encoder surface,
-     * or have a separate "block if still busy" method that the caller can execute immediately
-     * before it calls updateTexImage().  The latter is preferred because we don't want to
-     * stall the caller while this thread does work.
+     * This function sends a message and returns immediately.  At most FRAME_SLOTS frames
+     * wait for the encoder thread; if it falls further behind the new frame is dropped and
+     * counted rather than growing the message queue.
      */
     public void frameAvailable(SurfaceTexture st) {
         synchronized (mReadyFence) {
@@ -208,7 +625,6 @@ public class TextureMovieEncoder implements Runnable {
             }
         }
 
-        st.getTransformMatrix(STMatrix);
         long timestamp = st.getTimestamp();
         if (timestamp == 0) {
             // Seeing this after device is toggled off/on with power button.  The
@@ -220,8 +636,22 @@ public class TextureMovieEncoder implements Runnable {
             return;
         }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE,
-                (int) (timestamp >> 32), (int) timestamp, STMatrix));
+        FrameSlot slot = mFreeSlots.poll();
+        if (slot == null) {
+            mDroppedFrames.incrementAndGet();
+            if (VERBOSE) Log.d(TAG, "Encoder behind, dropped frame " + timestamp);
+            return;
+        }
+        st.getTransformMatrix(slot.mTransform);
+        slot.mTimestampNs = timestamp;
+
+        int depth = mQueueDepth.incrementAndGet();
+        int maxDepth = mMaxQueueDepth.get();
+        while (depth > maxDepth && !mMaxQueueDepth.compareAndSet(maxDepth, depth)) {
+            maxDepth = mMaxQueueDepth.get();
+        }
+        mQueuedFrames.incrementAndGet();
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE, slot));
     }
 
     /**
@@ -257,15 +687,11 @@ public class TextureMovieEncoder implements Runnable {
         Looper.loop();
 
         Log.d(TAG, "Encoder thread exiting");
+        releaseEgl();
         synchronized (mReadyFence) {
-            mReady = mRunning = false;
+            mReady = mRunning = mPreRolling = false;
             mHandler = null;
         }
-        // Capture fragment listens for when we are done
-        if (mListener != null) {
-            Log.d(TAG, "Encoder thread calling listener");
-            mListener.onEncodingFinished();
-        }
     }
 
 
@@ -298,9 +724,7 @@ public class TextureMovieEncoder implements Runnable {
                     encoder.handleStopRecording();
                     break;
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp = (((long) inputMessage.arg1) << 32) |
-                            (((long) inputMessage.arg2) & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
+                    encoder.handleFrameAvailable((FrameSlot) obj);
                     break;
                 case MSG_SET_TEXTURE_ID:
                     encoder.handleSetTexture(inputMessage.arg1);
@@ -323,9 +747,24 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleStartRecording(EncoderConfig config) {
         Log.d(TAG, "handleStartRecording " + config);
+        if (mVideoEncoder != null) {
+            // Pre-recording or warm, keep the encoder and start writing.
+            try {
+                mVideoEncoder.startOutput(config);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            if (mWarm) {
+                mWarm = false;
+                if (mInputWindowSurface == null && mListener != null) {
+                    // Direct input, the camera may feed the encoder now.
+                    mListener.onDirectInputReady(mVideoEncoder.getInputSurface());
+                }
+            }
+            return;
+        }
         mFrameNum = 0;
-        prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate,
-                config.mOutputFile, config.mMetaRecorder);
+        prepareEncoder(config);
     }
 
     /**
@@ -334,19 +773,34 @@ public class TextureMovieEncoder implements Runnable {
      * The texture is rendered onto the encoder's input surface, along with a moving
      * box (just because we can).
      * <p>
+     * In async mode the encoder output is drained on its own callback thread, so we never
+     * block on the codec here.
+     * <p>
      *
-     * @param transform      The texture transform, from SurfaceTexture.
-     * @param timestampNanos The frame's timestamp, from SurfaceTexture.
+     * @param slot Texture transform and timestamp from SurfaceTexture, returned to the pool
+     *             once drawn.
      */
-    private void handleFrameAvailable(float[] transform, long timestampNanos) {
+    private void handleFrameAvailable(FrameSlot slot) {
+        float[] transform = slot.mTransform;
+        long timestampNanos = slot.mTimestampNs;
         if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
-        mVideoEncoder.drainEncoder(false);
-        mFullScreen.drawFrame(mTextureId, transform);
+        if (mInputWindowSurface != null && !mWarm) {
+            if (!mVideoEncoder.isAsyncMode()) {
+                mVideoEncoder.drainEncoder(false);
+            }
+            mFullScreen.drawFrame(mTextureId, transform);
 
-//        drawBox(mFrameNum++);
+//            drawBox(mFrameNum++);
 
-        mInputWindowSurface.setPresentationTime(timestampNanos);
-        mInputWindowSurface.swapBuffers();
+            mInputWindowSurface.setPresentationTime(timestampNanos);
+            mInputWindowSurface.swapBuffers();
+            mVideoEncoder.frameSubmitted(timestampNanos);
+            mEncoderLatencyMs = mVideoEncoder.getLastLatencyNs() / 1e6f;
+            mEncodedFrames.incrementAndGet();
+        }
+        mQueueDepth.decrementAndGet();
+        mFreeSlots.add(slot);
+        // In direct mode the camera feeds the encoder, preview frames only drive the fps counter.
 
         if (mLastFrameTimeNs != null) {
             Long gapNs = timestampNanos - mLastFrameTimeNs;
@@ -361,8 +815,25 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
+        Log.d(TAG, String.format(Locale.US,
+                "Frames queued %d, encoded %d, dropped %d, max queue depth %d",
+                getQueuedFrames(), getEncodedFrames(), getDroppedFrames(), getMaxQueueDepth()));
+        if (mInputWindowSurface == null && mListener != null) {
+            // Direct input, take the surface out of the camera session first.
+            mListener.onDirectInputStopping(mVideoEncoder.getInputSurface());
+        }
         mVideoEncoder.drainEncoder(true);
         releaseEncoder();
+
+        // The thread stays for the next session.
+        synchronized (mReadyFence) {
+            mRunning = mPreRolling = false;
+        }
+        // Capture fragment listens for when we are done
+        if (mListener != null) {
+            Log.d(TAG, "Encoder thread calling listener");
+            mListener.onEncodingFinished();
+        }
     }
 
     /**
@@ -382,6 +853,16 @@ public class TextureMovieEncoder implements Runnable {
      */
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
+        if (mEglCore == null) {
+            // Direct input mode, no EGL state to move.
+            return;
+        }
+        if (mInputWindowSurface == null) {
+            // Between sessions, create it again for the next one.
+            releaseEgl();
+            return;
+        }
+        mEglSharedContext = newSharedContext;
 
         // Release the EGLSurface and EGLContext.
         mInputWindowSurface.releaseEglSurface();
@@ -398,28 +879,49 @@ public class TextureMovieEncoder implements Runnable {
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
     }
 
-    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
-                                String outputFile, RecordingWriter metaRecorder) {
+    private void prepareEncoder(EncoderConfig config) {
         try {
-            mVideoEncoder = new VideoEncoderCore(
-                    width, height, bitRate, outputFile, metaRecorder);
+            mVideoEncoder = new VideoEncoderCore(config);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
-        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
+        mWarm = config.mOutputFile == null && config.mPreRollSeconds == 0;
+        if (config.mDirectInput) {
+            // A warm encoder gets its frames once recording starts.
+            if (mListener != null && !mWarm) {
+                mListener.onDirectInputReady(mVideoEncoder.getInputSurface());
+            }
+            return;
+        }
+        if (mEglCore != null && mEglSharedContext != config.mEglContext) {
+            releaseEgl();
+        }
+        if (mEglCore == null) {
+            mEglCore = new EglCore(config.mEglContext, EglCore.FLAG_RECORDABLE);
+            mEglSharedContext = config.mEglContext;
+        }
         mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
         mInputWindowSurface.makeCurrent();
 
-        mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        if (mFullScreen == null) {
+            mFullScreen = new FullFrameRect(
+                    new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        }
     }
 
+    // Keeps the EGL context and program for the next session.
     private void releaseEncoder() {
         mVideoEncoder.release();
+        mVideoEncoder = null;
+        mWarm = false;
         if (mInputWindowSurface != null) {
+            mEglCore.makeNothingCurrent();
             mInputWindowSurface.release();
             mInputWindowSurface = null;
         }
+    }
+
+    private void releaseEgl() {
         if (mFullScreen != null) {
             mFullScreen.release(false);
             mFullScreen = null;
@@ -428,6 +930,7 @@ public class TextureMovieEncoder implements Runnable {
             mEglCore.release();
             mEglCore = null;
         }
+        mEglSharedContext = null;
     }
 
     /**
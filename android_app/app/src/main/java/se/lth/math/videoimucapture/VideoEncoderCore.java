@@ -20,11 +20,22 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
 import android.view.Surface;
 
+import androidx.annotation.NonNull;
+
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class wraps up the core components used for surface-input video encoding.
@@ -35,63 +46,211 @@ import java.nio.ByteBuffer;
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * In async mode the encoder output is instead delivered through MediaCodec.Callback on a
+ * dedicated handler thread, which queues it for the muxer as soon as data is ready.  The
+ * thread feeding the input surface then never blocks on the codec; drainEncoder() only does
+ * work when signalling end of stream.
+ * <p>
+ * For pre-record the encoder can be created without an output file.  Encoded frames are then
+ * kept in an EncodedFrameRing until startOutput() creates the muxer, which writes the ring
+ * from its oldest key frame before any live frames.  Without pre-record seconds the encoder
+ * is only created ahead of time and is not expected to get frames before startOutput().
+ * <p>
+ * H.264 output can instead be written by FragmentedMp4Muxer, which leaves a playable file
+ * up to the last complete GOP if the app dies while recording.
+ * <p>
+ * Encoded frames are copied out of the codec and written on a MuxerThread, so the codec
+ * output buffer is released before any storage I/O.
+ * <p>
+ * Every frame written also gets a record in a SampleIndex next to the video, named as the
+ * video with the extension .idx.
  */
 public class VideoEncoderCore {
     private static final String TAG = CameraCaptureActivity.TAG;
     private static final boolean VERBOSE = false;
 
-    // TODO: these ought to be configurable as well
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    public static final int FRAME_RATE = 30;               // 30fps
-    private static final int IFRAME_INTERVAL = 1;           // seconds between I-frames
-
     private Surface mInputSurface;
     private MediaMuxer mMuxer;
+    private FragmentedMp4Muxer mFragmentedMuxer;
     private MediaCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
     private int mTrackIndex;
     private boolean mMuxerStarted;
+    private MediaFormat mOutputFormat = null;
+    private EncodedFrameRing mPreRollRing = null;
+    private MuxerThread mMuxerThread;
+    private SampleIndex.Writer mSampleIndex;
+    private MotionBitRateController mBitRateController = null;
+    private final CaptureHud mCaptureHud;
+    private final LatencyTracer mLatencyTracer;
+    // Read on the muxer thread for the frame statistics.
+    private volatile int mBitRate;
+    private long mStartRequestNs = 0;
+    private long mStartLatencyNs = 0;
+    // Guards the muxers and ring, output may be written from the callback thread.
+    private final Object mMuxerLock = new Object();
+    private SensorTrackBuffer mSensorTrack = null;
+    private int mSensorTrackIndex = -1;
+    private long mLastSensorTrackUs = -1;
+    private long mLastVideoPtsUs = 0;
     private RecordingWriter mFrameMetadataRecorder = null;
+    private final String mPhysicalCameraId;
+    private boolean mRealtimeTimestamps;
     private long mFrameNbr = 0;
 
+    // ----- async mode, output is handled on the callback thread -----
+    private static final long EOS_TIMEOUT_MS = 5000;
+    private final boolean mAsyncMode;
+    private HandlerThread mCallbackThread;
+    private CountDownLatch mEndOfStreamLatch;
+
+    // Submit time of frames in flight, used to measure latency added by the encoder.
+    // Surface input frames come out in submission order, so a small ring is enough.
+    private static final int LATENCY_RING_SIZE = 64;
+    private final Object mLatencyLock = new Object();
+    private final long[] mSubmitPtsUs = new long[LATENCY_RING_SIZE];
+    private final long[] mSubmitTimeNs = new long[LATENCY_RING_SIZE];
+    private int mSubmitHead = 0;
+    private int mSubmitTail = 0;
+    private volatile long mLastLatencyNs = 0;
+    private long mMaxLatencyNs = 0;
+    private long mSumLatencyNs = 0;
+    private long mLatencyCount = 0;
+
     /**
      * Configures encoder and muxer state, and prepares the input Surface.
+     * <p>
+     * Codec parameters left UNSET in the config are not passed on, so the codec default
+     * is used.  The config is expected to be validated against the codec capabilities.
      */
-    public VideoEncoderCore(int width, int height, int bitRate,
-                            String outputFile, RecordingWriter metaRecorder)
+    public VideoEncoderCore(TextureMovieEncoder.EncoderConfig config)
             throws IOException {
         mBufferInfo = new MediaCodec.BufferInfo();
+        mAsyncMode = config.mAsyncEncoder;
 
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        MediaFormat format = MediaFormat.createVideoFormat(
+                config.mMimeType, config.mWidth, config.mHeight);
 
         // Set some properties.  Failing to specify some of these can cause the MediaCodec
         // configure() call to throw an unhelpful exception.
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.mBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.mIFrameInterval);
+        if (config.mFrameRate > TextureMovieEncoder.EncoderConfig.DEFAULT_FRAME_RATE) {
+            // Ask the codec to clock up for high speed input and treat it as realtime.
+            format.setInteger(MediaFormat.KEY_OPERATING_RATE, config.mFrameRate);
+            format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+        }
+        if (config.mBitRateMode != TextureMovieEncoder.EncoderConfig.UNSET) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, config.mBitRateMode);
+        }
+        if (config.mQuality != TextureMovieEncoder.EncoderConfig.UNSET
+                && Build.VERSION.SDK_INT >= 28) {
+            format.setInteger(MediaFormat.KEY_QUALITY, config.mQuality);
+        }
+        if (config.mProfile != TextureMovieEncoder.EncoderConfig.UNSET) {
+            format.setInteger(MediaFormat.KEY_PROFILE, config.mProfile);
+            format.setInteger(MediaFormat.KEY_LEVEL, config.mLevel);
+        }
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        if (config.mCodecName != null) {
+            mEncoder = MediaCodec.createByCodecName(config.mCodecName);
+        } else {
+            mEncoder = MediaCodec.createEncoderByType(config.mMimeType);
+        }
+        if (mAsyncMode) {
+            // The callback must be set before configure() to put the codec in async mode.
+            mCallbackThread = new HandlerThread("VideoEncoderCallback");
+            mCallbackThread.start();
+            mEndOfStreamLatch = new CountDownLatch(1);
+            mEncoder.setCallback(new EncoderCallback(), new Handler(mCallbackThread.getLooper()));
+        }
+        mTrackIndex = -1;
+        mMuxerStarted = false;
+        mRealtimeTimestamps = config.mRealtimeTimestamps;
+        if (config.mOutputFile != null) {
+            startOutput(config);
+        } else if (config.mPreRollSeconds > 0) {
+            int retentionS = config.mPreRollRetentionSeconds;
+            long bytes = (long) config.mBitRate / 8 * retentionS * 3 / 2;
+            mPreRollRing = new EncodedFrameRing((int) Math.min(bytes, Integer.MAX_VALUE / 2),
+                    config.mFrameRate * retentionS * 2, retentionS * 1000000L);
+        }
+
+        mBitRate = config.mBitRate;
+        mCaptureHud = config.mCaptureHud;
+        mLatencyTracer = config.mLatencyTracer;
+        mPhysicalCameraId = config.mPhysicalCameraId;
+        if (config.mBitRateController != null) {
+            if (config.mBitRateMode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ) {
+                Log.w(TAG, "Constant quality mode ignores the bit rate, not adapting to motion");
+            } else {
+                mBitRateController = config.mBitRateController;
+                mBitRateController.start(config.mBitRate, config.mMaxBitRate, System.nanoTime());
+            }
+        }
+        mMuxerThread = new MuxerThread(this::muxEncodedData, config.mBitRate, config.mFrameRate);
+
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
+    }
 
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
-        // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the encoder after it has started processing data.
-        //
-        // We're not actually interested in multiplexing audio.  We just want to convert
-        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile,
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    /**
+     * Creates the muxer for the output file in config, other codec settings in config are
+     * ignored.  If the encoder was created for pre-record, the buffered frames are written
+     * first.  Call once.
+     */
+    public void startOutput(TextureMovieEncoder.EncoderConfig config) throws IOException {
+        synchronized (mMuxerLock) {
+            mFrameMetadataRecorder = config.mMetaRecorder;
+            mStartRequestNs = config.mStartRequestNs;
+            mSampleIndex = new SampleIndex.Writer(
+                    config.mOutputFile.replaceFirst("\\.mp4$", "") + ".idx");
+            if (config.mFragmentedMp4) {
+                if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(config.mMimeType)) {
+                    if (config.mSensorTrack != null) {
+                        Log.w(TAG, "Fragmented MP4 has no metadata track, not writing sensor track");
+                    }
+                    mFragmentedMuxer = new FragmentedMp4Muxer(
+                            new FileOutputStream(config.mOutputFile).getChannel(),
+                            config.mWidth, config.mHeight, config.mOrientationHint);
+                    if (mOutputFormat != null) {
+                        startMuxer();
+                    }
+                    return;
+                }
+                Log.w(TAG, "Fragmented MP4 only supports H.264, using MediaMuxer for " +
+                        config.mMimeType);
+            }
 
-        mTrackIndex = -1;
-        mMuxerStarted = false;
-        mFrameMetadataRecorder = metaRecorder;
+            // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
+            // because our MediaFormat doesn't have the Magic Goodies.  These can only be
+            // obtained from the encoder after it has started processing data.
+            //
+            // We're not actually interested in multiplexing audio.  We just want to convert
+            // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
+            mMuxer = new MediaMuxer(config.mOutputFile,
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMuxer.setOrientationHint(config.mOrientationHint);
+
+            if (config.mSensorTrack != null) {
+                if (Build.VERSION.SDK_INT >= 26) {
+                    mSensorTrack = config.mSensorTrack;
+                } else {
+                    Log.w(TAG, "Metadata tracks need API 26, not writing sensor track");
+                }
+            }
+            if (mOutputFormat != null) {
+                startMuxer();
+            }
+        }
     }
 
     /**
@@ -101,6 +260,60 @@ public class VideoEncoderCore {
         return mInputSurface;
     }
 
+    /**
+     * Returns true if the encoder output is drained by MediaCodec callbacks.
+     */
+    public boolean isAsyncMode() {
+        return mAsyncMode;
+    }
+
+    /**
+     * Notes that a frame with the given presentation time was submitted to the input surface.
+     * Call right after swapBuffers() to measure the latency added by the encoder.
+     */
+    public void frameSubmitted(long presentationTimeNs) {
+        synchronized (mLatencyLock) {
+            int next = (mSubmitHead + 1) % LATENCY_RING_SIZE;
+            if (next == mSubmitTail) {
+                // Encoder is far behind, forget the oldest frame.
+                mSubmitTail = (mSubmitTail + 1) % LATENCY_RING_SIZE;
+            }
+            mSubmitPtsUs[mSubmitHead] = presentationTimeNs / 1000;
+            mSubmitTimeNs[mSubmitHead] = System.nanoTime();
+            mSubmitHead = next;
+        }
+    }
+
+    /**
+     * Returns the time from submit to encoder output for the latest frame, in nanoseconds.
+     */
+    public long getLastLatencyNs() {
+        return mLastLatencyNs;
+    }
+
+    private void updateLatency(long presentationTimeUs) {
+        long now = System.nanoTime();
+        synchronized (mLatencyLock) {
+            while (mSubmitTail != mSubmitHead) {
+                int idx = mSubmitTail;
+                if (mSubmitPtsUs[idx] > presentationTimeUs) {
+                    // Not submitted through frameSubmitted(), nothing to measure.
+                    return;
+                }
+                mSubmitTail = (idx + 1) % LATENCY_RING_SIZE;
+                if (mSubmitPtsUs[idx] == presentationTimeUs) {
+                    long latencyNs = now - mSubmitTimeNs[idx];
+                    mLastLatencyNs = latencyNs;
+                    mMaxLatencyNs = Math.max(mMaxLatencyNs, latencyNs);
+                    mSumLatencyNs += latencyNs;
+                    mLatencyCount++;
+                    return;
+                }
+                // Older frame was dropped by the encoder, skip it.
+            }
+        }
+    }
+
     /**
      * Releases encoder resources.
      */
@@ -111,6 +324,40 @@ public class VideoEncoderCore {
             mEncoder.release();
             mEncoder = null;
         }
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            try {
+                mCallbackThread.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted waiting for encoder callback thread");
+            }
+            mCallbackThread = null;
+        }
+        if (mMuxerThread != null) {
+            // Encoder output has ended, write what is still queued.
+            mMuxerThread.stop();
+            mMuxerThread = null;
+        }
+        if (mLatencyCount > 0) {
+            Log.i(TAG, String.format("Encoder latency over %d frames: mean %.2f ms, max %.2f ms",
+                    mLatencyCount, mSumLatencyNs / (mLatencyCount * 1e6),
+                    mMaxLatencyNs / 1e6));
+        }
+        if (mFragmentedMuxer != null) {
+            try {
+                mFragmentedMuxer.close();
+                Log.d(TAG, "Wrote " + mFragmentedMuxer.getFragmentCount() + " fragments, " +
+                        mFragmentedMuxer.getBytesWritten() + " bytes");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mFragmentedMuxer = null;
+        }
+        closeSampleIndex();
+        if (mMuxer != null && mMuxerStarted && mFrameNbr > 0) {
+            // Whatever arrived after the last frame.
+            writeSensorTrack(mLastVideoPtsUs + 1);
+        }
         if (mMuxer != null) {
             // stop() and release() throws an exception if you haven't fed it any data.  Keep track
             //       of frames submitted, and don't call stop() if we haven't written anything.
@@ -138,12 +385,21 @@ public class VideoEncoderCore {
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
+        if (mAsyncMode) {
+            // Output is handled by the callback thread, we only need to wait for EOS.
+            if (endOfStream) {
+                if (VERBOSE) Log.d(TAG, "sending EOS to encoder, awaiting callback");
+                mEncoder.signalEndOfInputStream();
+                awaitEndOfStream();
+            }
+            return;
+        }
+
         if (endOfStream) {
             if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
             mEncoder.signalEndOfInputStream();
         }
 
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
         while (true) {
             int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
@@ -153,54 +409,21 @@ public class VideoEncoderCore {
                 } else {
                     if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
                 }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // not expected for an encoder
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
+                handleFormatChanged(mEncoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
                 // let's ignore it
             } else {
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                ByteBuffer encodedData = mEncoder.getOutputBuffer(encoderStatus);
                 if (encodedData == null) {
                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
                             " was null");
                 }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    writeMetadata(mFrameNbr++, mBufferInfo.presentationTimeUs);
-                    if (VERBOSE) {
-                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                mBufferInfo.presentationTimeUs);
-                    }
-                }
+                writeEncodedData(encodedData, mBufferInfo);
 
                 mEncoder.releaseOutputBuffer(encoderStatus, false);
 
@@ -215,10 +438,276 @@ public class VideoEncoderCore {
             }
         }
     }
-    private void writeMetadata(long frameNbr, long timestamp) {
+
+    private void handleFormatChanged(MediaFormat newFormat) {
+        synchronized (mMuxerLock) {
+            if (mOutputFormat != null) {
+                throw new RuntimeException("format changed twice");
+            }
+            Log.d(TAG, "encoder output format changed: " + newFormat);
+            mOutputFormat = newFormat;
+            if (mMuxer != null || mFragmentedMuxer != null) {
+                startMuxer();
+            }
+        }
+    }
+
+    // Called with mMuxerLock held, once both the muxer and the output format exist.
+    private void startMuxer() {
+        if (mFragmentedMuxer != null) {
+            // SPS and PPS, in Annex B format.
+            mFragmentedMuxer.setCodecConfig(mOutputFormat.getByteBuffer("csd-0"));
+            mFragmentedMuxer.setCodecConfig(mOutputFormat.getByteBuffer("csd-1"));
+        } else {
+            // now that we have the Magic Goodies, start the muxer
+            mTrackIndex = mMuxer.addTrack(mOutputFormat);
+            if (mSensorTrack != null) {
+                MediaFormat sensorFormat = new MediaFormat();
+                sensorFormat.setString(MediaFormat.KEY_MIME, SensorTrackBuffer.MIME_TYPE);
+                mSensorTrackIndex = mMuxer.addTrack(sensorFormat);
+            }
+            mMuxer.start();
+        }
+        mMuxerStarted = true;
+        writeIndexHeader();
+
+        if (mPreRollRing != null) {
+            int frames = mPreRollRing.flush(this::writeSample);
+            Log.d(TAG, "Wrote " + frames + " pre-record frames");
+        }
+    }
+
+    private void writeEncodedData(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the muxer when we got
+            // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            bufferInfo.size = 0;
+        }
+
+        if (bufferInfo.size != 0) {
+            updateLatency(bufferInfo.presentationTimeUs);
+            // Presentation time is the sensor timestamp, in the camera's clock.
+            long outputTimeNs = mRealtimeTimestamps ?
+                    SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+            long captureToOutputNs = outputTimeNs - bufferInfo.presentationTimeUs * 1000;
+            if (mLatencyTracer != null) {
+                mLatencyTracer.record(LatencyTracer.Point.VIDEO_ENCODED, captureToOutputNs);
+            }
+            if (mBitRateController != null) {
+                updateBitRate();
+            }
+            mMuxerThread.queue(encodedData, bufferInfo, captureToOutputNs);
+        }
+    }
+
+    // Called on the thread draining the encoder, which is stopped before the encoder is released.
+    private void updateBitRate() {
+        if (!mBitRateController.update(System.nanoTime())) {
+            return;
+        }
+        mBitRate = mBitRateController.getBitRate();
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, mBitRate);
+        mEncoder.setParameters(params);
+        Log.d(TAG, String.format("Bit rate %d at %.2f rad/s", mBitRate,
+                mBitRateController.getAngularRate()));
+    }
+
+    // Called on the muxer thread.
+    private void muxEncodedData(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo,
+                                long captureToOutputNs) {
+        synchronized (mMuxerLock) {
+            if (mMuxer == null && mFragmentedMuxer == null) {
+                if (mPreRollRing != null) {
+                    mPreRollRing.add(encodedData, bufferInfo, captureToOutputNs);
+                }
+                return;
+            }
+            if (!mMuxerStarted) {
+                throw new RuntimeException("muxer hasn't started");
+            }
+            if (mStartRequestNs > 0) {
+                // First frame encoded after the record request.
+                mStartLatencyNs = System.nanoTime() - mStartRequestNs;
+                mStartRequestNs = 0;
+                Log.i(TAG, String.format("Record request to first encoded frame: %.1f ms",
+                        mStartLatencyNs / 1e6));
+            }
+            writeSample(encodedData, bufferInfo, captureToOutputNs);
+            if (mLatencyTracer != null) {
+                // Pre-record frames flushed by startOutput() are not traced.
+                mLatencyTracer.mark(LatencyTracer.Point.VIDEO_WRITTEN,
+                        bufferInfo.presentationTimeUs * 1000);
+            }
+        }
+    }
+
+    // Called with mMuxerLock held.
+    private void writeSample(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo,
+                             long captureToOutputNs) {
+        // adjust the ByteBuffer values to match BufferInfo (not needed?)
+        encodedData.position(bufferInfo.offset);
+        encodedData.limit(bufferInfo.offset + bufferInfo.size);
+        Trace.beginSection("VideoEncoder.writeSample");
+        long muxStartNs = System.nanoTime();
+        if (mFragmentedMuxer != null) {
+            try {
+                mFragmentedMuxer.writeSampleData(encodedData, bufferInfo.presentationTimeUs,
+                        (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            } catch (IOException e) {
+                throw new RuntimeException("Fragmented MP4 write failed", e);
+            }
+        } else {
+            mMuxer.writeSampleData(mTrackIndex, encodedData, bufferInfo);
+        }
+        long muxDurationNs = System.nanoTime() - muxStartNs;
+        Trace.endSection();
+
+        RecordingProtos.EncoderStats stats = RecordingProtos.EncoderStats.newBuilder()
+                .setEncodedSize(bufferInfo.size)
+                .setKeyFrame((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)
+                .setCaptureToOutputNs(captureToOutputNs)
+                .setMuxerWriteNs(muxDurationNs)
+                .setMuxerQueueDepth(mMuxerThread.getQueueDepth())
+                .setMuxerQueueNs(mMuxerThread.getQueueDelayNs())
+                .setTargetBitRate(mBitRate)
+                .setRecordStartLatencyNs(mStartLatencyNs)
+                .setAngularRate(mBitRateController != null ?
+                        mBitRateController.getAngularRate() : 0)
+                .build();
+        mStartLatencyNs = 0;
+        if (mCaptureHud != null) {
+            mCaptureHud.addVideoBytes(bufferInfo.size, mMuxerThread.getQueueDepth(),
+                    captureToOutputNs);
+        }
+        writeIndexRecord(bufferInfo);
+        writeMetadata(mFrameNbr++, bufferInfo.presentationTimeUs, stats);
+        mLastVideoPtsUs = bufferInfo.presentationTimeUs;
+        writeSensorTrack(bufferInfo.presentationTimeUs);
+        if (VERBOSE) {
+            Log.d(TAG, "sent " + bufferInfo.size + " bytes to muxer, ts=" +
+                    bufferInfo.presentationTimeUs);
+        }
+    }
+
+    private void writeIndexHeader() {
+        if (mSampleIndex == null) {
+            return;
+        }
+        try {
+            if (mOutputFormat.containsKey("csd-1")) {
+                mSampleIndex.writeHeader(mOutputFormat.getByteBuffer("csd-0"),
+                        mOutputFormat.getByteBuffer("csd-1"));
+            } else {
+                mSampleIndex.writeHeader(mOutputFormat.getByteBuffer("csd-0"));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write sample index, " + e);
+            closeSampleIndex();
+        }
+    }
+
+    private void writeIndexRecord(MediaCodec.BufferInfo bufferInfo) {
+        if (mSampleIndex == null) {
+            return;
+        }
+        try {
+            // Offsets are resolved from the MP4 sample tables later, see SampleIndex.
+            mSampleIndex.add(mFrameNbr, bufferInfo.presentationTimeUs,
+                    SampleIndex.UNKNOWN_OFFSET, bufferInfo.size,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write sample index, " + e);
+            closeSampleIndex();
+        }
+    }
+
+    private void closeSampleIndex() {
+        if (mSampleIndex == null) {
+            return;
+        }
+        try {
+            mSampleIndex.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mSampleIndex = null;
+    }
+
+    /**
+     * Writes the sensor data collected since the previous frame as one metadata sample.
+     */
+    private void writeSensorTrack(long presentationTimeUs) {
+        if (mSensorTrackIndex < 0 || presentationTimeUs <= mLastSensorTrackUs) {
+            return;
+        }
+        ByteBuffer batch = mSensorTrack.takeBatch();
+        if (batch == null) {
+            return;
+        }
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, batch.remaining(), presentationTimeUs, 0);
+        mMuxer.writeSampleData(mSensorTrackIndex, batch, info);
+        mLastSensorTrackUs = presentationTimeUs;
+    }
+
+    private void awaitEndOfStream() {
+        try {
+            if (!mEndOfStreamLatch.await(EOS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for end of stream from encoder");
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting for end of stream");
+        }
+    }
+
+    /**
+     * Receives encoder output in async mode.  Runs on the callback thread.
+     */
+    private class EncoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // Input comes from the Surface.
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            ByteBuffer encodedData = codec.getOutputBuffer(index);
+            if (encodedData == null) {
+                throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+            }
+            writeEncodedData(encodedData, info);
+            codec.releaseOutputBuffer(index, false);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "end of stream reached");
+                mEndOfStreamLatch.countDown();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error: " + e.getDiagnosticInfo(), e);
+            // Don't leave the encoder thread waiting for an EOS that will never come.
+            mEndOfStreamLatch.countDown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            handleFormatChanged(format);
+        }
+    }
+
+    private void writeMetadata(long frameNbr, long timestamp, RecordingProtos.EncoderStats stats) {
         RecordingProtos.VideoFrameToTimestamp.Builder metaBuilder = RecordingProtos.VideoFrameToTimestamp.newBuilder()
                 .setFrameNbr(frameNbr)
-                .setTimeUs(timestamp);
+                .setTimeUs(timestamp)
+                .setEncoderStats(stats);
+        if (mPhysicalCameraId != null) {
+            metaBuilder.setPhysicalCameraId(mPhysicalCameraId);
+        }
         mFrameMetadataRecorder.queueData(metaBuilder.build());
     }
 }
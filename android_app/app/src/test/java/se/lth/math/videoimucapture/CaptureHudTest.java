@@ -0,0 +1,99 @@
+package se.lth.math.videoimucapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host test of the CaptureHud formatting.
+ */
+public class CaptureHudTest {
+
+    private static String fixed(double value, int decimals) {
+        StringBuilder sb = new StringBuilder();
+        CaptureHud.appendFixed(sb, value, decimals);
+        return sb.toString();
+    }
+
+    @Test
+    public void appendsFixedPoint() {
+        assertEquals("29.970", fixed(29.97, 3));
+        assertEquals("0.05", fixed(0.049, 2));
+        assertEquals("1.005", fixed(1.005, 3));
+        assertEquals("2.0", fixed(1.96, 1));
+        assertEquals("240", fixed(239.6, 0));
+        assertEquals("-1.50", fixed(-1.5, 2));
+        assertEquals("0.00", fixed(-0.001, 2));
+        assertEquals("-", fixed(Float.NaN, 1));
+    }
+
+    @Test
+    public void rendersPreviewAndCaptureLines() {
+        CaptureHud hud = new CaptureHud();
+        StringBuilder preview = new StringBuilder("old");
+        StringBuilder capture = new StringBuilder();
+        StringBuilder pipeline = new StringBuilder("old");
+        hud.setPreview(1920, 1080, 29.96f);
+        hud.setImuRate(199.6f);
+        hud.setCaptureResult(1500.1234f, 8330000);
+        hud.setCaptureStats(Float.NaN, 0, 0);
+        hud.render(1000, false, preview, capture, pipeline);
+
+        assertEquals("1920x1080@30.0 FPS", preview.toString());
+        assertEquals("|FL: 1500.123|Exp: 8.33 ms|IMU: 200Hz|", capture.toString());
+        assertEquals("", pipeline.toString());
+    }
+
+    @Test
+    public void rendersFrameInterval() {
+        CaptureHud hud = new CaptureHud();
+        StringBuilder preview = new StringBuilder();
+        StringBuilder capture = new StringBuilder();
+        StringBuilder pipeline = new StringBuilder();
+        hud.setCaptureResult(Float.NaN, 1000000);
+        hud.setImuRate(100f);
+        hud.setFrameInterval(33.3333f, 0.456f);
+        hud.render(1000, false, preview, capture, pipeline);
+
+        assertEquals("|FL: -|Exp: 1.00 ms|IMU: 100Hz|Dt: 33.33 ms (sd 0.46)|", capture.toString());
+    }
+
+    @Test
+    public void rendersFrameTimingWhileRecording() {
+        CaptureHud hud = new CaptureHud();
+        StringBuilder preview = new StringBuilder();
+        StringBuilder capture = new StringBuilder();
+        StringBuilder pipeline = new StringBuilder();
+        hud.setCaptureResult(Float.NaN, -1);
+        hud.setCaptureStats(30.0f, 2, 0);
+        hud.setFrameTiming(0.125f, 66.67f);
+        hud.render(1000, false, preview, capture, pipeline);
+        assertEquals("|FL: -|Exp: null ms|IMU: 0Hz|", capture.toString());
+
+        hud.render(2000, true, preview, capture, pipeline);
+        assertEquals("|FL: -|Exp: null ms|IMU: 0Hz|Cap: 30Hz|Drop: 2|Max dt: 66.7 ms|AF scan: 13%|",
+                capture.toString());
+    }
+
+    @Test
+    public void rendersPipelineWhileRecording() {
+        CaptureHud hud = new CaptureHud();
+        StringBuilder preview = new StringBuilder();
+        StringBuilder capture = new StringBuilder();
+        StringBuilder pipeline = new StringBuilder();
+        hud.setCaptureResult(Float.NaN, -1);
+        hud.setCaptureStats(60.2f, 3, 1);
+        hud.setEncoderState(2, 5);
+        hud.render(1000000000L, true, preview, capture, pipeline);
+
+        hud.addVideoBytes(1500000, 4, 12500000);
+        hud.addMetaBytes(500000, 7);
+        hud.addMetaDropped();
+        hud.render(1500000000L, true, preview, capture, pipeline);
+
+        assertTrue(preview.toString().endsWith(" Enc drop: 5"));
+        assertEquals("|FL: -|Exp: null ms|IMU: 0Hz|Cap: 60Hz|Drop: 3|", capture.toString());
+        assertEquals("|Queue enc/res/mux/wr: 2/1/4/7|Lat: 12.5 ms|Disk: 4.0 MB/s|Meta drop: 1|",
+                pipeline.toString());
+    }
+}
@@ -0,0 +1,69 @@
+package se.lth.math.videoimucapture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host test of the DEPTH16 delta coding.
+ */
+public class DepthFrameCodecTest {
+
+    private static ByteBuffer encode(short[] frame, int width, int height) {
+        ByteBuffer dst = ByteBuffer.allocate(DepthFrameCodec.maxEncodedSize(width, height));
+        short[] row = new short[width];
+        for (int r = 0; r < height; r++) {
+            System.arraycopy(frame, r * width, row, 0, width);
+            DepthFrameCodec.encodeRow(row, width, dst);
+        }
+        dst.flip();
+        return dst;
+    }
+
+    private static void checkRoundTrip(short[] frame, int width, int height) {
+        ByteBuffer encoded = encode(frame, width, height);
+        short[] decoded = new short[width * height];
+        DepthFrameCodec.decode(encoded, width, height, decoded);
+        assertArrayEquals(frame, decoded);
+        assertFalse(encoded.hasRemaining());
+    }
+
+    @Test
+    public void smoothSurfaceTakesOneBytePerPixel() {
+        int width = 16;
+        int height = 4;
+        short[] frame = new short[width * height];
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                // First pixel of a row is a large step from zero.
+                frame[r * width + c] = (short) (c == 0 ? 50 : 50 + c * 3 - r);
+            }
+        }
+        ByteBuffer encoded = encode(frame, width, height);
+        assertEquals(width * height, encoded.remaining());
+        checkRoundTrip(frame, width, height);
+    }
+
+    @Test
+    public void keepsFullRangeAndConfidenceBits() {
+        short[] frame = {0, (short) 0xffff, 0, (short) 0xe123, 0x1fff, (short) 0x8000};
+        checkRoundTrip(frame, 3, 2);
+        ByteBuffer encoded = encode(frame, 3, 2);
+        assertTrue(encoded.remaining() <= DepthFrameCodec.maxEncodedSize(3, 2));
+    }
+
+    @Test
+    public void roundTripsRandomFrames() {
+        Random random = new Random(42);
+        int width = 40;
+        int height = 30;
+        short[] frame = new short[width * height];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (short) random.nextInt(1 << 16);
+        }
+        checkRoundTrip(frame, width, height);
+    }
+}
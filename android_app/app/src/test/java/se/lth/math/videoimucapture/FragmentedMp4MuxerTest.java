@@ -0,0 +1,237 @@
+package se.lth.math.videoimucapture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host test of FragmentedMp4Muxer with canned H.264 NAL units.
+ */
+public class FragmentedMp4MuxerTest {
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1e, (byte) 0x8d, 0x68, 0x14, 0x1f, 0x20};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33, 0x7f};
+    private static final byte[] P_FRAME = {0x41, (byte) 0x9a, 0x21, 0x6c};
+    private static final long FRAME_US = 33333;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("fmp4", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static ByteBuffer annexB(byte[]... nals) {
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        for (byte[] nal : nals) {
+            buf.put(START_CODE).put(nal);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private FragmentedMp4Muxer createMuxer() throws IOException {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(
+                new FileOutputStream(mFile).getChannel(), 640, 480, 90);
+        muxer.setCodecConfig(annexB(SPS));
+        muxer.setCodecConfig(annexB(PPS));
+        return muxer;
+    }
+
+    // Writes GOPs of one key frame followed by P frames.
+    private static void writeGops(FragmentedMp4Muxer muxer, int gops, int gopLength)
+            throws IOException {
+        long pts = 1000000;
+        for (int g = 0; g < gops; g++) {
+            for (int i = 0; i < gopLength; i++) {
+                muxer.writeSampleData(annexB(i == 0 ? IDR : P_FRAME), pts, i == 0);
+                pts += FRAME_US;
+            }
+        }
+    }
+
+    private static class Box {
+        final String type;
+        final int offset;
+        final int size;
+
+        Box(String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private static List<Box> children(byte[] data, int start, int end) {
+        List<Box> boxes = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int pos = start;
+        while (pos + 8 <= end) {
+            int size = buf.getInt(pos);
+            String type = new String(data, pos + 4, 4, StandardCharsets.US_ASCII);
+            assertTrue("Box " + type + " overruns parent", size >= 8 && pos + size <= end);
+            boxes.add(new Box(type, pos, size));
+            pos += size;
+        }
+        assertEquals(end, pos);
+        return boxes;
+    }
+
+    private static Box find(byte[] data, Box parent, String type) {
+        for (Box box : children(data, parent.offset + 8, parent.offset + parent.size)) {
+            if (box.type.equals(type)) {
+                return box;
+            }
+        }
+        fail("No " + type + " in " + parent.type);
+        return null;
+    }
+
+    private static List<String> types(List<Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+
+    @Test
+    public void writesInitSegmentAndFragmentPerGop() throws IOException {
+        FragmentedMp4Muxer muxer = createMuxer();
+        writeGops(muxer, 2, 3);
+        muxer.close();
+
+        byte[] data = Files.readAllBytes(mFile.toPath());
+        List<Box> top = children(data, 0, data.length);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat"), types(top));
+        assertEquals(2, muxer.getFragmentCount());
+        assertEquals(data.length, muxer.getBytesWritten());
+    }
+
+    @Test
+    public void storesParameterSetsInAvcC() throws IOException {
+        FragmentedMp4Muxer muxer = createMuxer();
+        writeGops(muxer, 1, 2);
+        muxer.close();
+
+        byte[] data = Files.readAllBytes(mFile.toPath());
+        Box moov = children(data, 0, data.length).get(1);
+        Box trak = find(data, moov, "trak");
+        Box stbl = find(data, find(data, find(data, trak, "mdia"), "minf"), "stbl");
+        Box stsd = find(data, stbl, "stsd");
+        // stsd: full box header and entry count, then the avc1 sample entry.
+        int avc1 = stsd.offset + 16;
+        assertEquals("avc1", new String(data, avc1 + 4, 4, StandardCharsets.US_ASCII));
+        // avc1: 8 byte header, 78 bytes of visual sample entry, then avcC.
+        int avcC = avc1 + 8 + 78;
+        assertEquals("avcC", new String(data, avcC + 4, 4, StandardCharsets.US_ASCII));
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        assertEquals(SPS[1], data[avcC + 9]);
+        assertEquals(0xff, data[avcC + 12] & 0xff);
+        assertEquals(SPS.length, buf.getShort(avcC + 14));
+        assertArrayEquals(SPS, Arrays.copyOfRange(data, avcC + 16, avcC + 16 + SPS.length));
+        int pps = avcC + 16 + SPS.length;
+        assertEquals(1, data[pps]);
+        assertEquals(PPS.length, buf.getShort(pps + 1));
+        assertArrayEquals(PPS, Arrays.copyOfRange(data, pps + 3, pps + 3 + PPS.length));
+    }
+
+    @Test
+    public void trunDescribesLengthPrefixedSamples() throws IOException {
+        FragmentedMp4Muxer muxer = createMuxer();
+        writeGops(muxer, 2, 3);
+        muxer.close();
+
+        byte[] data = Files.readAllBytes(mFile.toPath());
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        List<Box> top = children(data, 0, data.length);
+        Box moof = top.get(2);
+        Box mdat = top.get(3);
+        Box traf = find(data, moof, "traf");
+
+        Box tfdt = find(data, traf, "tfdt");
+        assertEquals(0, buf.getLong(tfdt.offset + 12));
+
+        Box trun = find(data, traf, "trun");
+        int pos = trun.offset + 12;
+        assertEquals(3, buf.getInt(pos));
+        int dataOffset = buf.getInt(pos + 4);
+        assertEquals(mdat.offset + 8, moof.offset + dataOffset);
+        pos += 8;
+        int sampleStart = moof.offset + dataOffset;
+        for (int i = 0; i < 3; i++) {
+            byte[] nal = i == 0 ? IDR : P_FRAME;
+            assertEquals(FRAME_US, buf.getInt(pos));
+            assertEquals(4 + nal.length, buf.getInt(pos + 4));
+            int flags = buf.getInt(pos + 8);
+            assertEquals(i == 0, (flags & 0x00010000) == 0);
+            assertEquals(nal.length, buf.getInt(sampleStart));
+            assertArrayEquals(nal, Arrays.copyOfRange(data, sampleStart + 4, sampleStart + 4 + nal.length));
+            sampleStart += 4 + nal.length;
+            pos += 12;
+        }
+        assertEquals(mdat.offset + mdat.size, sampleStart);
+
+        Box tfdt2 = find(data, find(data, top.get(4), "traf"), "tfdt");
+        assertEquals(3 * FRAME_US, buf.getLong(tfdt2.offset + 12));
+    }
+
+    @Test
+    public void dropsFramesBeforeFirstKeyFrameAndStripsInlineParameterSets() throws IOException {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(
+                new FileOutputStream(mFile).getChannel(), 640, 480, 0);
+        muxer.writeSampleData(annexB(P_FRAME), 0, false);
+        muxer.writeSampleData(annexB(SPS, PPS, IDR), FRAME_US, true);
+        muxer.writeSampleData(annexB(P_FRAME), 2 * FRAME_US, false);
+        muxer.close();
+
+        byte[] data = Files.readAllBytes(mFile.toPath());
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        List<Box> top = children(data, 0, data.length);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat"), types(top));
+        Box trun = find(data, find(data, top.get(2), "traf"), "trun");
+        assertEquals(2, buf.getInt(trun.offset + 12));
+        assertEquals(4 + IDR.length, buf.getInt(trun.offset + 20 + 4));
+    }
+
+    @Test
+    public void completeGopsAreOnDiskBeforeClose() throws IOException {
+        FragmentedMp4Muxer muxer = createMuxer();
+        writeGops(muxer, 2, 3);
+
+        // As after a crash: the last GOP is lost, everything before it is readable.
+        byte[] data = Files.readAllBytes(mFile.toPath());
+        List<Box> top = children(data, 0, data.length);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat"), types(top));
+        muxer.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void requiresParameterSets() throws IOException {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(
+                new FileOutputStream(mFile).getChannel(), 640, 480, 0);
+        try {
+            muxer.writeSampleData(annexB(IDR), 0, true);
+        } finally {
+            muxer.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package se.lth.math.videoimucapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host test of the frame interval statistics.
+ */
+public class FrameIntervalMonitorTest {
+    private static final long FRAME_NS = 33333333L;
+
+    @Test
+    public void constantRateHasNoDeviation() {
+        FrameIntervalMonitor monitor = new FrameIntervalMonitor();
+        assertTrue(Double.isNaN(monitor.getMeanNs()));
+        for (int i = 0; i < 10; i++) {
+            monitor.add(1000 + i * FRAME_NS);
+        }
+        assertEquals(9, monitor.getCount());
+        assertEquals(FRAME_NS, monitor.getMeanNs(), 1e-6);
+        assertEquals(0, monitor.getStdDevNs(), 1e-6);
+    }
+
+    @Test
+    public void alternatingIntervals() {
+        FrameIntervalMonitor monitor = new FrameIntervalMonitor();
+        long t = 0;
+        monitor.add(t);
+        for (int i = 0; i < 10; i++) {
+            t += (i % 2 == 0) ? 30000000L : 40000000L;
+            monitor.add(t);
+        }
+        assertEquals(35000000.0, monitor.getMeanNs(), 1e-6);
+        assertEquals(5000000.0, monitor.getStdDevNs(), 1e-3);
+    }
+
+    @Test
+    public void windowForgetsOldIntervals() {
+        FrameIntervalMonitor monitor = new FrameIntervalMonitor();
+        long t = 0;
+        monitor.add(t);
+        t += 5000000000L;  // long stall, clamped
+        monitor.add(t);
+        assertEquals(FrameIntervalMonitor.MAX_INTERVAL_NS, monitor.getMeanNs(), 1e-6);
+        for (int i = 0; i < FrameIntervalMonitor.WINDOW_SIZE; i++) {
+            t += FRAME_NS;
+            monitor.add(t);
+        }
+        assertEquals(FrameIntervalMonitor.WINDOW_SIZE, monitor.getCount());
+        assertEquals(FRAME_NS, monitor.getMeanNs(), 1e-6);
+        assertEquals(0, monitor.getStdDevNs(), 1e-3);
+    }
+
+    @Test
+    public void windowOfLongIntervalsDoesNotOverflow() {
+        FrameIntervalMonitor monitor = new FrameIntervalMonitor();
+        long t = 0;
+        monitor.add(t);
+        for (int i = 0; i < FrameIntervalMonitor.WINDOW_SIZE; i++) {
+            t += 1000000000L;
+            monitor.add(t);
+        }
+        assertEquals(FrameIntervalMonitor.WINDOW_SIZE, monitor.getCount());
+        assertEquals(FrameIntervalMonitor.MAX_INTERVAL_NS, monitor.getMeanNs(), 1e-6);
+        assertEquals(0, monitor.getStdDevNs(), 1e-3);
+    }
+
+    @Test
+    public void ignoresRepeatedTimestamps() {
+        FrameIntervalMonitor monitor = new FrameIntervalMonitor();
+        monitor.add(100);
+        monitor.add(100);
+        monitor.add(50);
+        assertEquals(0, monitor.getCount());
+        monitor.add(100 + FRAME_NS);
+        assertEquals(FRAME_NS, monitor.getMeanNs(), 1e-6);
+    }
+}
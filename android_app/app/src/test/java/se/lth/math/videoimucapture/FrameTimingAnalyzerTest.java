@@ -0,0 +1,84 @@
+package se.lth.math.videoimucapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host test of the per recording frame timing.
+ */
+public class FrameTimingAnalyzerTest {
+    private static final long FRAME_NS = 33333333L;
+
+    @Test
+    public void countsDroppedFramesInGaps() {
+        FrameTimingAnalyzer analyzer = new FrameTimingAnalyzer();
+        long t = 1000;
+        analyzer.add(t, FRAME_NS, true);
+        t += FRAME_NS;
+        analyzer.add(t, FRAME_NS, true);
+        t += 3 * FRAME_NS;  // two frames lost
+        analyzer.add(t, FRAME_NS, true);
+        t += FRAME_NS * 14 / 10;  // late, not a drop
+        analyzer.add(t, FRAME_NS, true);
+
+        assertEquals(4, analyzer.getFrameCount());
+        assertEquals(3, analyzer.getIntervalCount());
+        assertEquals(1, analyzer.getGapCount());
+        assertEquals(2, analyzer.getDroppedFrames());
+        assertEquals(FRAME_NS, analyzer.getMinIntervalNs());
+        assertEquals(3 * FRAME_NS, analyzer.getMaxIntervalNs());
+    }
+
+    @Test
+    public void usesLastKnownFrameDuration() {
+        FrameTimingAnalyzer analyzer = new FrameTimingAnalyzer();
+        analyzer.add(0, -1, true);
+        analyzer.add(3 * FRAME_NS, -1, true);
+        assertEquals(0, analyzer.getDroppedFrames());
+        analyzer.add(4 * FRAME_NS, FRAME_NS, true);
+        analyzer.add(6 * FRAME_NS, -1, true);
+        assertEquals(FRAME_NS, analyzer.getNominalFrameDurationNs());
+        assertEquals(1, analyzer.getDroppedFrames());
+    }
+
+    @Test
+    public void histogramAndMoments() {
+        FrameTimingAnalyzer analyzer = new FrameTimingAnalyzer();
+        assertTrue(Double.isNaN(analyzer.getMeanIntervalNs()));
+        long t = 0;
+        analyzer.add(t, 0, true);
+        for (int i = 0; i < 10; i++) {
+            t += (i % 2 == 0) ? 30000000L : 40000000L;
+            analyzer.add(t, 0, true);
+        }
+        t += 200000000L;  // beyond the last bin
+        analyzer.add(t, 0, true);
+
+        assertEquals(5, analyzer.getHistogramBin((int) (30000000L / FrameTimingAnalyzer.BIN_WIDTH_NS)));
+        assertEquals(5, analyzer.getHistogramBin((int) (40000000L / FrameTimingAnalyzer.BIN_WIDTH_NS)));
+        assertEquals(1, analyzer.getHistogramBin(FrameTimingAnalyzer.BIN_COUNT - 1));
+        assertEquals(550000000.0 / 11, analyzer.getMeanIntervalNs(), 1e-3);
+
+        analyzer.reset();
+        analyzer.add(0, 0, true);
+        for (int i = 1; i <= 10; i++) {
+            analyzer.add(i * 35000000L + ((i % 2 == 0) ? 0 : 5000000L), 0, true);
+        }
+        assertEquals(0, analyzer.getHistogramBin(FrameTimingAnalyzer.BIN_COUNT - 1));
+        assertEquals(35000000.0, analyzer.getMeanIntervalNs(), 1e-3);
+        assertEquals(5000000.0, analyzer.getStdDevIntervalNs(), 1e-3);
+    }
+
+    @Test
+    public void countsUnlockedFocus() {
+        FrameTimingAnalyzer analyzer = new FrameTimingAnalyzer();
+        assertTrue(Double.isNaN(analyzer.getFocusUnlockedFraction()));
+        for (int i = 0; i < 8; i++) {
+            analyzer.add(i * FRAME_NS, FRAME_NS, i >= 2);
+        }
+        analyzer.add(7 * FRAME_NS, FRAME_NS, false);  // repeated timestamp, ignored
+        assertEquals(2, analyzer.getFocusUnlockedFrames());
+        assertEquals(0.25, analyzer.getFocusUnlockedFraction(), 1e-9);
+    }
+}
@@ -0,0 +1,54 @@
+package se.lth.math.videoimucapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host test of the still keyframe timing.
+ */
+public class KeyframeSchedulerTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void takesStillsAtInterval() {
+        KeyframeScheduler scheduler = new KeyframeScheduler(1000 * MS, 0);
+        assertTrue(scheduler.isEnabled());
+        scheduler.start(0);
+        assertTrue(scheduler.isDue(0, 0));
+        scheduler.onRequested(0, 0);
+        scheduler.onCompleted();
+        assertFalse(scheduler.isDue(999 * MS, 10));
+        assertTrue(scheduler.isDue(1000 * MS, 0));
+    }
+
+    @Test
+    public void takesStillsOnRotation() {
+        KeyframeScheduler scheduler = new KeyframeScheduler(0, 0.2);
+        scheduler.start(5.0);
+        scheduler.onRequested(0, 5.0);
+        scheduler.onCompleted();
+        assertFalse(scheduler.isDue(10000 * MS, 5.19));
+        assertTrue(scheduler.isDue(10000 * MS, 5.2));
+        // Never closer than the minimum spacing.
+        scheduler.onRequested(10000 * MS, 5.2);
+        scheduler.onCompleted();
+        assertFalse(scheduler.isDue(10100 * MS, 6.0));
+        assertTrue(scheduler.isDue(10000 * MS + KeyframeScheduler.MIN_SPACING_NS, 6.0));
+    }
+
+    @Test
+    public void waitsForPendingStill() {
+        KeyframeScheduler scheduler = new KeyframeScheduler(500 * MS, 0);
+        scheduler.start(0);
+        scheduler.onRequested(0, 0);
+        assertFalse(scheduler.isDue(1000 * MS, 0));
+        // Lost stills do not block the schedule for ever.
+        assertTrue(scheduler.isDue(KeyframeScheduler.TIMEOUT_NS, 0));
+    }
+
+    @Test
+    public void disabledWithoutIntervalOrRotation() {
+        assertFalse(new KeyframeScheduler(0, 0).isEnabled());
+    }
+}
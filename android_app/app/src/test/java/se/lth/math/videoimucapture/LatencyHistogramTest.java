@@ -0,0 +1,62 @@
+package se.lth.math.videoimucapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host test of the latency buckets and percentiles.
+ */
+public class LatencyHistogramTest {
+    private static final long US = 1000L;
+    private static final long MS = 1000000L;
+
+    @Test
+    public void bucketsByPowerOfTwoMicroseconds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(500);        // below 1 us
+        histogram.add(1 * US);
+        histogram.add(3 * US);
+        histogram.add(4 * US);
+        histogram.add(100 * 1000 * MS);  // beyond the last bucket
+        assertEquals(2, histogram.getBucket(0));
+        assertEquals(1, histogram.getBucket(1));
+        assertEquals(1, histogram.getBucket(2));
+        assertEquals(1, histogram.getBucket(LatencyHistogram.BUCKET_COUNT - 1));
+        assertEquals(5, histogram.getCount());
+    }
+
+    @Test
+    public void percentilesAndMoments() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertTrue(Double.isNaN(histogram.getMeanNs()));
+        assertEquals(0, histogram.getPercentileNs(0.5));
+        for (int i = 0; i < 90; i++) {
+            histogram.add(3 * MS);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.add(40 * MS);
+        }
+        // 3 ms is in [2048, 4096) us, 40 ms in [32768, 65536) us.
+        assertEquals(4096 * US, histogram.getPercentileNs(0.5));
+        assertEquals(4096 * US, histogram.getPercentileNs(0.9));
+        assertEquals(40 * MS, histogram.getPercentileNs(0.99));
+        assertEquals(6.7 * MS, histogram.getMeanNs(), 1e-3);
+        assertEquals(40 * MS, histogram.getMaxNs());
+    }
+
+    @Test
+    public void countsNegativeLatencySeparately() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(-5 * MS);
+        histogram.add(2 * MS);
+        assertEquals(1, histogram.getNegativeCount());
+        assertEquals(1, histogram.getCount());
+        assertEquals(2 * MS, histogram.getMaxNs());
+
+        histogram.reset();
+        assertEquals(0, histogram.getNegativeCount());
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getBucket(0));
+    }
+}
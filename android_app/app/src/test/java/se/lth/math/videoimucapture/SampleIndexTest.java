@@ -0,0 +1,265 @@
+package se.lth.math.videoimucapture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host test of SampleIndex with small hand made MP4 files.
+ */
+public class SampleIndexTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1e, (byte) 0x8d, 0x68};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private File mVideo;
+    private File mIndex;
+
+    @Before
+    public void setUp() throws IOException {
+        mVideo = File.createTempFile("video", ".mp4");
+        mIndex = File.createTempFile("video", ".idx");
+    }
+
+    @After
+    public void tearDown() {
+        mVideo.delete();
+        mIndex.delete();
+    }
+
+    // NAL unit of the given type, filled with non-zero bytes to tell frames apart.
+    private static byte[] nal(int type, int frame, int length) {
+        byte[] nal = new byte[length];
+        Arrays.fill(nal, (byte) (frame + 1));
+        nal[0] = (byte) type;
+        return nal;
+    }
+
+    private static byte[] frame(int frame, boolean keyFrame) {
+        return keyFrame ? nal(0x65, frame, 10 + frame) : nal(0x41, frame, 5 + frame);
+    }
+
+    private static byte[] annexB(byte[]... nals) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nal : nals) {
+            out.write(START_CODE, 0, 4);
+            out.write(nal, 0, nal.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] box(String type, byte[]... content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int size = 8;
+        for (byte[] c : content) {
+            size += c.length;
+        }
+        out.write(ByteBuffer.allocate(4).putInt(size).array(), 0, 4);
+        out.write(type.getBytes(StandardCharsets.US_ASCII), 0, 4);
+        for (byte[] c : content) {
+            out.write(c, 0, c.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] ints(int... values) {
+        ByteBuffer buf = ByteBuffer.allocate(4 * values.length);
+        for (int v : values) {
+            buf.putInt(v);
+        }
+        return buf.array();
+    }
+
+    private static boolean isKey(int frame, int gopLength) {
+        return frame % gopLength == 0;
+    }
+
+    // Index as the app writes it, without offsets.
+    private void writeIndex(int frames, int gopLength) throws IOException {
+        try (SampleIndex.Writer writer = new SampleIndex.Writer(mIndex.getPath())) {
+            writer.writeHeader(ByteBuffer.wrap(annexB(SPS)), ByteBuffer.wrap(annexB(PPS)));
+            for (int i = 0; i < frames; i++) {
+                boolean key = isKey(i, gopLength);
+                writer.add(i, 1000 + i * 33333L, SampleIndex.UNKNOWN_OFFSET,
+                        4 + frame(i, key).length, key);
+            }
+        }
+    }
+
+    // Plain MP4 with a sensor track first and the video samples in chunks of two.
+    private void writePlainMp4(int frames, int gopLength) throws IOException {
+        ByteArrayOutputStream mdat = new ByteArrayOutputStream();
+        int[] sizes = new int[frames];
+        for (int i = 0; i < frames; i++) {
+            byte[] f = frame(i, isKey(i, gopLength));
+            sizes[i] = 4 + f.length;
+            mdat.write(ints(f.length), 0, 4);
+            mdat.write(f, 0, f.length);
+        }
+        byte[] sensorTrak = box("trak",
+                box("tkhd", ints(0, 0, 0, 2)),
+                box("mdia", box("hdlr", ints(0, 0), "meta".getBytes(StandardCharsets.US_ASCII))));
+
+        int chunks = (frames + 1) / 2;
+        // Chunk offsets depend on the moov size, which does not depend on their values.
+        int[] stco = new int[chunks + 2];
+        int[] stsz = new int[frames + 3];
+        stsz[2] = frames;
+        System.arraycopy(sizes, 0, stsz, 3, frames);
+        byte[] moov = null;
+        for (int pass = 0; pass < 2; pass++) {
+            int ftypSize = 16;
+            int mdatStart = moov == null ? 0 : ftypSize + moov.length + 8;
+            stco[1] = chunks;
+            int offset = mdatStart;
+            for (int c = 0; c < chunks; c++) {
+                stco[2 + c] = offset;
+                offset += sizes[2 * c] + (2 * c + 1 < frames ? sizes[2 * c + 1] : 0);
+            }
+            byte[] stbl = box("stbl",
+                    box("stsz", ints(stsz)),
+                    box("stsc", ints(0, 1, 1, 2, 1)),
+                    box("stco", ints(stco)));
+            byte[] videoTrak = box("trak",
+                    box("tkhd", ints(0, 0, 0, 1)),
+                    box("mdia",
+                            box("hdlr", ints(0, 0), "vide".getBytes(StandardCharsets.US_ASCII)),
+                            box("minf", stbl)));
+            moov = box("moov", sensorTrak, videoTrak);
+        }
+        try (FileOutputStream out = new FileOutputStream(mVideo)) {
+            out.write(box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII), ints(0)));
+            out.write(moov);
+            out.write(box("mdat", mdat.toByteArray()));
+        }
+    }
+
+    private void writeFragmentedMp4(int frames, int gopLength) throws IOException {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(
+                new FileOutputStream(mVideo).getChannel(), 640, 480, 0);
+        muxer.setCodecConfig(ByteBuffer.wrap(annexB(SPS, PPS)));
+        for (int i = 0; i < frames; i++) {
+            boolean key = isKey(i, gopLength);
+            muxer.writeSampleData(ByteBuffer.wrap(annexB(frame(i, key))), 1000 + i * 33333L, key);
+        }
+        muxer.close();
+    }
+
+    private void checkResolved(SampleIndex index, int frames, int gopLength) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mVideo, "r")) {
+            for (int i = 0; i < frames; i++) {
+                byte[] expected = frame(i, isKey(i, gopLength));
+                assertEquals(4 + expected.length, index.getSize(i));
+                byte[] sample = new byte[index.getSize(i)];
+                file.seek(index.getOffset(i));
+                file.readFully(sample);
+                assertEquals(expected.length, ByteBuffer.wrap(sample).getInt());
+                assertArrayEquals(expected, Arrays.copyOfRange(sample, 4, sample.length));
+            }
+        }
+    }
+
+    @Test
+    public void readsWhatWriterWrote() throws IOException {
+        writeIndex(7, 3);
+        SampleIndex index = SampleIndex.read(mIndex.getPath());
+        assertEquals(7, index.size());
+        assertFalse(index.hasOffsets());
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i, index.getFrameNbr(i));
+            assertEquals(1000 + i * 33333L, index.getPtsUs(i));
+            assertEquals(isKey(i, 3), index.isKeyFrame(i));
+        }
+    }
+
+    @Test
+    public void ignoresPartialLastRecord() throws IOException {
+        writeIndex(4, 2);
+        try (RandomAccessFile file = new RandomAccessFile(mIndex, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        assertEquals(3, SampleIndex.read(mIndex.getPath()).size());
+    }
+
+    @Test
+    public void resolvesOffsetsInPlainMp4() throws IOException {
+        writePlainMp4(7, 3);
+        writeIndex(7, 3);
+        SampleIndex index = SampleIndex.read(mIndex.getPath());
+        try (FileChannel video = new RandomAccessFile(mVideo, "r").getChannel()) {
+            assertEquals(7, index.resolveOffsets(video));
+        }
+        assertTrue(index.hasOffsets());
+        checkResolved(index, 7, 3);
+    }
+
+    @Test
+    public void resolvesOffsetsInFragmentedMp4() throws IOException {
+        writeFragmentedMp4(8, 3);
+        writeIndex(8, 3);
+        SampleIndex index = SampleIndex.read(mIndex.getPath());
+        try (FileChannel video = new RandomAccessFile(mVideo, "r").getChannel()) {
+            assertEquals(8, index.resolveOffsets(video));
+        }
+        checkResolved(index, 8, 3);
+
+        // Resolved offsets survive a round trip.
+        index.write(mIndex.getPath());
+        SampleIndex reread = SampleIndex.read(mIndex.getPath());
+        assertTrue(reread.hasOffsets());
+        checkResolved(reread, 8, 3);
+    }
+
+    @Test
+    public void plansOneGopPerKeyFrame() throws IOException {
+        writeIndex(10, 4);
+        SampleIndex index = SampleIndex.read(mIndex.getPath());
+        List<SampleIndex.Gop> gops = index.planExtraction(new int[]{1, 2, 5, 9});
+        assertEquals(3, gops.size());
+        assertEquals(0, gops.get(0).mKeyFrame);
+        assertEquals(3, gops.get(0).mEnd);
+        assertEquals(Arrays.asList(1, 2), gops.get(0).mWanted);
+        assertEquals(4, gops.get(1).mKeyFrame);
+        assertEquals(6, gops.get(1).mEnd);
+        assertEquals(8, gops.get(2).mKeyFrame);
+        assertEquals(10, gops.get(2).mEnd);
+        assertEquals(Arrays.asList(9), gops.get(2).mWanted);
+    }
+
+    @Test
+    public void writesDecodableAnnexBPerGop() throws IOException {
+        writeFragmentedMp4(6, 3);
+        writeIndex(6, 3);
+        SampleIndex index = SampleIndex.read(mIndex.getPath());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileChannel video = new RandomAccessFile(mVideo, "r").getChannel()) {
+            index.resolveOffsets(video);
+            SampleIndex.Gop gop = index.planExtraction(new int[]{4}).get(0);
+            index.writeAnnexB(video, gop, Channels.newChannel(out));
+        }
+        byte[] expected = annexB(SPS, PPS, frame(3, true), frame(4, false));
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void annexBNeedsResolvedOffsets() throws IOException {
+        writeIndex(3, 3);
+        SampleIndex index = SampleIndex.read(mIndex.getPath());
+        index.writeAnnexB(null, index.planExtraction(new int[]{0}).get(0),
+                Channels.newChannel(new ByteArrayOutputStream()));
+    }
+}
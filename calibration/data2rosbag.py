@@ -15,6 +15,7 @@ import numpy as np
 import shutil
 import yaml
 from utils import OpenCVDumper
+from raw2images import raw_frames
 import time
 
 class VideoFinishedException(Exception):
@@ -23,7 +24,7 @@ class VideoFinishedException(Exception):
 bridge = CvBridge()
 NSECS_IN_SEC=long(1e9)
 
-def convert_to_bag(proto, video_path, result_path, subsample=1, compress_img=False, compress_bag=False, resize = [], raw_imu =False):
+def convert_to_bag(proto, video_path, result_path, subsample=1, compress_img=False, compress_bag=False, resize = [], raw_imu =False, gray_index_path = None):
     #Init rosbag
     # bz2 is better compression but lz4 is 3 times faster
     resolution = None
@@ -31,48 +32,51 @@ def convert_to_bag(proto, video_path, result_path, subsample=1, compress_img=Fal
     try:
         bag = rosbag.Bag(result_path, 'w', compression='lz4' if compress_bag else 'none')
 
-        # Open video stream
-        try:
-            cap = cv2.VideoCapture(video_path)
+        if gray_index_path:
+            resolution = write_gray_frames(bag, img_topic, proto, gray_index_path, subsample, compress_img, resize)
+        else:
+            # Open video stream
+            try:
+                cap = cv2.VideoCapture(video_path)
 
-            # Generate images from video and frame data
-            for frame_data in proto.video_meta:
+                # Generate images from video and frame data
+                for frame_data in proto.video_meta:
 
-                # Read video frames until we find correct number
-                while  True:
-                    video_frame_idx = int(cap.get(cv2.CAP_PROP_POS_FRAMES))
-                    ret, frame = cap.read()
-                    if not ret:
-                        raise VideoFinishedException()
+                    # Read video frames until we find correct number
+                    while  True:
+                        video_frame_idx = int(cap.get(cv2.CAP_PROP_POS_FRAMES))
+                        ret, frame = cap.read()
+                        if not ret:
+                            raise VideoFinishedException()
 
-                    if video_frame_idx==frame_data.frame_number and (video_frame_idx % subsample) == 0:
-                        # Correct frame and subsample index
-                        rosimg, timestamp, resolution = img_to_rosimg(frame,
-                                                                      frame_data.time_ns,
-                                                                      compress=compress_img,
-                                                                      resize = resize)
-                        bag.write(img_topic, rosimg, timestamp)
+                        if video_frame_idx==frame_data.frame_number and (video_frame_idx % subsample) == 0:
+                            # Correct frame and subsample index
+                            rosimg, timestamp, resolution = img_to_rosimg(frame,
+                                                                          frame_data.time_ns,
+                                                                          compress=compress_img,
+                                                                          resize = resize)
+                            bag.write(img_topic, rosimg, timestamp)
 
-                        # Go to next data frame
-                        break
+                            # Go to next data frame
+                            break
 
-                    elif video_frame_idx==frame_data.frame_number:
-                        #Skipping subsample
-                        break
+                        elif video_frame_idx==frame_data.frame_number:
+                            #Skipping subsample
+                            break
 
-                    elif video_frame_idx < frame_data.frame_number:
-                        print('skipping frame {}, missing data'.format(video_frame_idx))
+                        elif video_frame_idx < frame_data.frame_number:
+                            print('skipping frame {}, missing data'.format(video_frame_idx))
 
-                    else:
-                        raise NotImplementedError('Missing video frame idx is not supported and not expected. \
-                                                  Video frame idx {} > frame_data.frame_number {}'.format(video_frame_idx, frame_data.frame_number))
+                        else:
+                            raise NotImplementedError('Missing video frame idx is not supported and not expected. \
+                                                      Video frame idx {} > frame_data.frame_number {}'.format(video_frame_idx, frame_data.frame_number))
 
-        except VideoFinishedException:
-            # Nothing to worry about, video stream ended.
-            pass
+            except VideoFinishedException:
+                # Nothing to worry about, video stream ended.
+                pass
 
-        finally:
-            cap.release()
+            finally:
+                cap.release()
 
         # Now IMU
         for imu_frame in proto.imu:
@@ -91,11 +95,28 @@ def convert_to_bag(proto, video_path, result_path, subsample=1, compress_img=Fal
 
 
 
+def write_gray_frames(bag, img_topic, proto, gray_index_path, subsample, compress_img, resize):
+    # The gray stream shares sensor timestamps with the video, use them to get the frame numbers.
+    frame_numbers = {frame_data.time_ns: frame_data.frame_number for frame_data in proto.video_meta}
+    resolution = None
+    for time_ns, gray_img in raw_frames(gray_index_path):
+        frame_number = frame_numbers.get(time_ns)
+        if frame_number is None:
+            print('skipping gray frame {}, missing data'.format(time_ns))
+            continue
+        if (frame_number % subsample) == 0:
+            rosimg, timestamp, resolution = img_to_rosimg(gray_img,
+                                                          time_ns,
+                                                          compress=compress_img,
+                                                          resize = resize)
+            bag.write(img_topic, rosimg, timestamp)
+    return resolution
+
 def img_to_rosimg(img, timestamp_nsecs, compress = True, resize = []):
     timestamp = rospy.Time(secs=timestamp_nsecs//NSECS_IN_SEC,
                            nsecs=timestamp_nsecs%NSECS_IN_SEC)
 
-    gray_img  = cv2.cvtColor(img, cv2.COLOR_BGR2GRAY)
+    gray_img  = img if img.ndim == 2 else cv2.cvtColor(img, cv2.COLOR_BGR2GRAY)
 
     if resize:
         gray_img = cv2.resize(gray_img, tuple(resize), cv2.INTER_AREA)
@@ -160,6 +181,7 @@ if __name__ == "__main__":
     parser.add_argument('--raw-image', action='store_true', help='Store raw images in rosbag')
     parser.add_argument('--resize', type=int, nargs = 2, default = [], help='Resize image to this <width height>')
     parser.add_argument('--raw-imu', action='store_true', help='Do not compensate for bias')
+    parser.add_argument('--gray-stream', action='store_true', help='Use the low resolution gray stream (gray_frames.idx) instead of decoding the video')
     parser.add_argument('--calibration', type=str, help='YAML file with kalibr camera and IMU calibration to copy, will also adjust for difference in resolution.', default = None)
 
     args = parser.parse_args()
@@ -179,13 +201,19 @@ if __name__ == "__main__":
 
         video_path = osp.join(root, 'video_recording.mp4')
         bag_path = osp.join(result_dir, 'data.bag')
+        gray_index_path = osp.join(root, 'gray_frames.idx')
+        if args.gray_stream and not osp.isfile(gray_index_path):
+            print('No gray stream in {}, using video'.format(root))
+        if not args.gray_stream or not osp.isfile(gray_index_path):
+            gray_index_path = None
         resolution = convert_to_bag(proto,
                                     video_path,
                                     bag_path,
                                     subsample = args.subsample,
                                     compress_img = not args.raw_image,
                                     resize = args.resize,
-                                    raw_imu = args.raw_imu)
+                                    raw_imu = args.raw_imu,
+                                    gray_index_path = gray_index_path)
 
         if args.calibration:
             out_path = osp.join(result_dir, 'calibration.yaml')
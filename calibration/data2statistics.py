@@ -12,9 +12,18 @@ def stats(proto, result_path, show = True):
 
     print(proto.camera_meta)
     print(proto.imu_meta)
+    print(proto.capture_summary)
+    for camera_meta in proto.physical_camera_meta:
+        frames = sum(1 for f in proto.physical_video_meta
+                     if f.physical_camera_id == camera_meta.physical_camera_id)
+        print('Physical camera {}: {} frames'.format(camera_meta.physical_camera_id, frames))
+        print(camera_meta)
 
     camera_stats(proto, result_path)
 
+    if proto.capture_summary.frame_timing.interval_histogram:
+        frame_timing_stats(proto, result_path)
+
     imu_stats(proto, result_path)
 
     if show:
@@ -68,6 +77,64 @@ def camera_stats(proto, result_path):
     if proto.video_meta[0].OIS_samples:
         ois_stats(proto, result_path)
 
+    if proto.video_meta[0].HasField('encoder_stats'):
+        encoder_stats(proto, result_path)
+
+
+def encoder_stats(proto, result_path):
+    time_ns = []
+    encoder_data = {
+        'encoded_size': [],
+        'capture_to_output_ns': [],
+        'muxer_write_ns': [],
+        'muxer_queue_depth': [],
+        'muxer_queue_ns': [],
+        'target_bit_rate': [],
+        'angular_rate': [],
+        }
+    key_frame_ns = []
+
+    for frame_data in proto.video_meta:
+        time_ns.append(frame_data.time_ns)
+        for stat, stat_list in encoder_data.items():
+            stat_list.append(getattr(frame_data.encoder_stats, stat))
+        if frame_data.encoder_stats.key_frame:
+            key_frame_ns.append(frame_data.time_ns)
+        if frame_data.encoder_stats.record_start_latency_ns:
+            print('Record start latency: {:.1f} ms'.format(
+                frame_data.encoder_stats.record_start_latency_ns*1e-6))
+
+    fig,ax = plt.subplots(len(encoder_data), 1, sharex='all', figsize=FIG_SIZE)
+    for i, (stat, stat_list) in enumerate(encoder_data.items()):
+        ax[i].set_title(stat)
+        ax[i].plot(time_ns, stat_list, '.-')
+        for t in key_frame_ns:
+            ax[i].axvline(t, color='r', alpha=0.3)
+    ax[-1].set_xlabel('Timestamp, key frames in red')
+    fig.tight_layout()
+    plt.savefig(osp.join(result_path, 'encoder_stats.svg'))
+
+
+def frame_timing_stats(proto, result_path):
+    timing = proto.capture_summary.frame_timing
+    bin_ms = timing.histogram_bin_width_ns*1e-6
+    counts = np.array(timing.interval_histogram)
+    edges_ms = np.arange(len(counts))*bin_ms
+
+    fig,ax = plt.subplots(1, 1, figsize=FIG_SIZE)
+    ax.set_title('Frame interval, {} gaps, {} dropped, {:.1f}% focus unlocked'.format(
+        timing.gap_count, timing.dropped_frames, 100*timing.focus_unlocked_fraction))
+    ax.bar(edges_ms, counts, width=bin_ms, align='edge')
+    if timing.nominal_frame_duration_ns:
+        nominal_ms = timing.nominal_frame_duration_ns*1e-6
+        ax.axvline(nominal_ms, color='g')
+        ax.axvline(1.5*nominal_ms, color='r')
+    ax.set_yscale('log')
+    ax.set_xlabel('Interval [ms], nominal in green, drop threshold in red')
+    ax.set_ylabel('Frames')
+    fig.tight_layout()
+    plt.savefig(osp.join(result_path, 'frame_timing.svg'))
+
 
 def ois_stats(proto, result_path):
     time_ns = []
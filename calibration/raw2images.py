@@ -0,0 +1,76 @@
+#!/usr/bin/python
+import argparse
+import os.path as osp
+import struct
+import cv2
+import numpy as np
+from data2rosbag import _makedir
+
+# See RawFrameWriter.java for the container layout.
+MAGIC = b'VIMURAW1'
+HEADER = struct.Struct('<8siiii')
+RECORD = struct.Struct('<qiqi')
+FORMATS = ['LUMA', 'YUV_I420', 'DEPTH16', 'DEPTH16_DELTA']
+
+def read_index(index_path):
+    with open(index_path, 'rb') as f:
+        magic, version, fmt, width, height = HEADER.unpack(f.read(HEADER.size))
+        if magic != MAGIC:
+            raise ValueError('Not a raw frame index: {}'.format(index_path))
+        records = []
+        data = f.read(RECORD.size)
+        while len(data) == RECORD.size:
+            records.append(RECORD.unpack(data))
+            data = f.read(RECORD.size)
+    return FORMATS[fmt], width, height, records
+
+def decode_depth_delta(frame, width, height):
+    """Undoes the DepthFrameCodec coding: LEB128 varints of zigzag row deltas."""
+    end = frame < 0x80
+    group = np.concatenate(([0], np.cumsum(end)[:-1]))
+    starts = np.flatnonzero(np.concatenate(([True], end[:-1])))
+    shift = 7*(np.arange(len(frame)) - starts[group])
+    zigzag = np.zeros(width*height, dtype=np.int64)
+    np.add.at(zigzag, group, (frame & 0x7f).astype(np.int64) << shift)
+    delta = (zigzag >> 1) ^ -(zigzag & 1)
+    return np.cumsum(delta.reshape(height, width), axis=1).astype(np.uint16)
+
+def raw_frames(index_path):
+    """Yields (timestamp_ns, image) for every frame, image is grayscale, BGR or uint16
+    DEPTH16 with the confidence in the top three bits."""
+    fmt, width, height, records = read_index(index_path)
+    prefix = osp.splitext(index_path)[0]
+    segments = {}
+    try:
+        for timestamp_ns, segment, offset, length in records:
+            if segment not in segments:
+                segments[segment] = np.memmap('{}_{:03d}.bin'.format(prefix, segment), dtype=np.uint8, mode='r')
+            frame = segments[segment][offset:offset+length]
+            if fmt == 'LUMA':
+                image = frame.reshape(height, width)
+            elif fmt == 'DEPTH16':
+                image = frame.view('<u2').reshape(height, width)
+            elif fmt == 'DEPTH16_DELTA':
+                image = decode_depth_delta(frame, width, height)
+            else:
+                image = cv2.cvtColor(frame.reshape(height*3//2, width), cv2.COLOR_YUV2BGR_I420)
+            yield timestamp_ns, image
+    finally:
+        segments.clear()
+
+if __name__ == "__main__":
+
+    parser = argparse.ArgumentParser(description='Create images from uncompressed frame recording')
+    parser.add_argument('index_path', type=str, help='Path to raw_frames.idx, gray_frames.idx or depth_frames.idx')
+    parser.add_argument('--result-dir', type=str, help='Path to result folder, default raw_images next to the index', default = None)
+    parser.add_argument('--subsample', type=int, help='Take every n-th frame', default = 1)
+
+    args = parser.parse_args()
+
+    result_dir = args.result_dir if args.result_dir else osp.join(osp.dirname(args.index_path), 'raw_images')
+    _makedir(result_dir)
+
+    for i, (timestamp_ns, image) in enumerate(raw_frames(args.index_path)):
+        if (i % args.subsample) == 0:
+            # Named by sensor timestamp to match time_ns in video_meta.
+            cv2.imwrite(osp.join(result_dir, '{:d}.png'.format(timestamp_ns)), image)